@@ -3,9 +3,15 @@ package simpledb;
 import java.io.*;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -15,6 +21,23 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table maps each PageId to a {@link FrameDescriptor}. Lookups do
+ * not take any BufferPool-wide lock, so concurrent readers only contend on
+ * the page table itself; misses reserve a frame under a small eviction lock
+ * and then read the page outside of it, and every other thread asking for
+ * the same page waits for that single read.
+ * <p>
+ * Operators that keep using a page across calls pin it with
+ * {@link #pinPage}; a pinned page is never evicted.
+ * <p>
+ * Sequential scans report the pages they read to the pool's
+ * {@link ReadAheadPrefetcher}, which reads the following pages in the
+ * background.
+ * <p>
+ * Transactions that begin a snapshot ({@link #beginSnapshot}) only read:
+ * they take no locks and see every page as of their snapshot, from the
+ * pool's {@link VersionStore}.
  * 
  * @Threadsafe, all fields are final
  */
@@ -26,10 +49,50 @@ public class BufferPool {
 
     private final int numPages;
 
-    private ConcurrentHashMap<PageId, Page> pageCache;
+    private final ConcurrentHashMap<PageId, FrameDescriptor> frames;
+    private final EvictionPolicy policy;
+    // Serializes victim selection, so that the number of frames never
+    // exceeds numPages
+    private final Object evictionLock;
     private LockManager lock;
     private Set<TransactionId> activeTids;
+    // Page handles each transaction has not closed yet
+    private final ConcurrentHashMap<TransactionId, Set<PageHandle>> openHandles;
+    // Pages each running transaction has changed, including the ones that
+    // were written out and are clean again by the time it completes
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> changedPages;
+
+    // Pages brought in by large sequential scans. They are kept out of the
+    // eviction policy and evicted first, oldest first, so that a scan over a
+    // big table recycles its own pages instead of the pool's working set.
+    // A page leaves this set (and enters the policy) on a non-scan access.
+    private final LinkedHashSet<PageId> coldPages;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    // Writes committed dirty pages in the background; null when not running
+    private PageFlusher flusher;
+
+    private final ReadAheadPrefetcher prefetcher;
+
+    // Committed versions of pages for snapshot transactions
+    private final VersionStore versions;
+
+    /** Default fraction of the pool that may be dirty before the background
+    flusher starts writing pages. */
+    public static final double DEFAULT_DIRTY_HIGH_WATERMARK = 0.5;
+
+    /** Default fraction of the pool the background flusher writes down to. */
+    public static final double DEFAULT_DIRTY_LOW_WATERMARK = 0.25;
+
+    /** A scan is treated as a large scan when its table has more pages than
+    this fraction of the buffer pool. */
+    private static final int LARGE_SCAN_DIVISOR = 4;
     
+    /** Number of pages bulkInsert fills and writes at a time. */
+    private static final int BULK_BATCH_PAGES = 64;
+
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
@@ -37,16 +100,36 @@ public class BufferPool {
 
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, evicting pages
+     * with the CLOCK policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        // some code goes here
+        this(numPages, new ClockEvictionPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the policy used to choose which page to evict when the
+     *               buffer pool is full.
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
         this.numPages = numPages;
-        pageCache = new ConcurrentHashMap<>();
+        this.policy = policy;
+        frames = new ConcurrentHashMap<>();
+        evictionLock = new Object();
         lock = new LockManager();
-        activeTids = new HashSet<>();
+        activeTids = ConcurrentHashMap.newKeySet();
+        openHandles = new ConcurrentHashMap<>();
+        changedPages = new ConcurrentHashMap<>();
+        coldPages = new LinkedHashSet<>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        prefetcher = new ReadAheadPrefetcher(this);
+        versions = new VersionStore();
     }
     
     public static int getPageSize() {
@@ -63,6 +146,210 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /** @return the maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** @return the policy this buffer pool uses to choose eviction victims */
+    public EvictionPolicy getEvictionPolicy() {
+        return policy;
+    }
+
+    /** @return the number of getPage calls served from the buffer pool */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** @return the number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** @return the read-ahead prefetcher of this buffer pool */
+    public ReadAheadPrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Decide whether a sequential scan over a table should load its pages
+     * cold, i.e. without displacing the rest of the buffer pool.
+     *
+     * @param tablePages the number of pages in the scanned table
+     * @return true if the table is large relative to this buffer pool
+     */
+    public boolean isLargeScan(int tablePages) {
+        return tablePages > numPages / LARGE_SCAN_DIVISOR;
+    }
+
+    /** @return the store of page versions read by snapshot transactions */
+    public VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /**
+     * Make a transaction a snapshot transaction: it reads the database as of
+     * the last commit, without taking locks, and may not change it. Called
+     * before the transaction reads anything; its snapshot ends when it
+     * completes.
+     *
+     * @param tid the transaction
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.beginSnapshot(tid);
+    }
+
+    /** @return the lock manager that grants this buffer pool's page locks */
+    public LockManager getLockManager() {
+        return lock;
+    }
+
+    /**
+     * @return the descriptor of the frame holding the specified page, or null
+     *         if the page is not in the buffer pool
+     */
+    public FrameDescriptor getFrameDescriptor(PageId pid) {
+        return frames.get(pid);
+    }
+
+    /** @return the descriptors of all frames currently in the buffer pool */
+    public Collection<FrameDescriptor> getFrameDescriptors() {
+        return Collections.unmodifiableCollection(frames.values());
+    }
+
+    /**
+     * Start a background thread that writes committed dirty pages to disk
+     * whenever more than highWatermark of the pool is dirty, until at most
+     * lowWatermark of it is. Replaces a flusher that is already running.
+     *
+     * @param highWatermark fraction of the pool (0..1) that may be dirty
+     *                      before pages are written
+     * @param lowWatermark fraction of the pool (0..highWatermark) that is
+     *                     left dirty after a round of writes
+     * @see PageFlusher
+     */
+    public synchronized void startBackgroundFlusher(double highWatermark, double lowWatermark) {
+        PageFlusher next = new PageFlusher(this, highWatermark, lowWatermark);
+        stopBackgroundFlusher();
+        flusher = next;
+        flusher.start();
+    }
+
+    /** Stop the background flusher, if one is running. */
+    public synchronized void stopBackgroundFlusher() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher = null;
+        }
+    }
+
+    /** @return the number of dirty pages in the buffer pool */
+    int countDirtyPages() {
+        int dirty = 0;
+        for (FrameDescriptor frame : frames.values()) {
+            if (frame.isDirty()) {
+                dirty++;
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Write out up to max dirty pages whose changes are all committed, and
+     * mark them clean. Used by the background flusher.
+     * <p>
+     * What is written is the page's before image, i.e. its state as of the
+     * last commit, so a transaction that starts changing the page while it
+     * is being written cannot get uncommitted data onto disk.
+     *
+     * @param max the maximum number of pages to write
+     * @return the number of pages written
+     */
+    int flushCommittedPages(int max) throws IOException {
+        int written = 0;
+        for (FrameDescriptor frame : frames.values()) {
+            if (written >= max) {
+                break;
+            }
+            Page page = frame.getPage();
+            if (page == null) {
+                continue;
+            }
+            TransactionId dirtier = page.isDirty();
+            if (dirtier == null || activeTids.contains(dirtier)) {
+                continue;
+            }
+
+            DbFile file;
+            try {
+                file = Database.getCatalog().getDatabaseFile(frame.getPageId().getTableId());
+            } catch (NoSuchElementException e) {
+                // The table was dropped from the catalog
+                continue;
+            }
+            synchronized (frame) {
+                // The LSN is read after the image, so it covers the record
+                // of the committed change
+                Page committed = page.getBeforeImage();
+                Database.getLogFile().flushTo(page.getLSN());
+                file.writePage(committed);
+                // Only mark the page clean if nobody dirtied it meanwhile
+                synchronized (page) {
+                    if (dirtier.equals(page.isDirty())) {
+                        page.markDirty(false, null);
+                        frame.clearRecLSN();
+                    }
+                }
+            }
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Write out the committed image of a cached page whose tuples changed
+     * by a transaction were just undone in place, so that those changes do
+     * not survive on disk if the page was written out before the rollback.
+     * Tuples other running transactions changed are not in the image; the
+     * page stays dirty so that they are written once those commit.
+     *
+     * @param pid the page to write
+     * @param tid the transaction that was rolled back
+     * @see HeapPage#abortWrites
+     */
+    void writeCommittedImage(PageId pid, TransactionId tid) throws IOException {
+        FrameDescriptor frame = frames.get(pid);
+        Page page = frame == null ? null : frame.getPage();
+        if (page == null) {
+            return;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        synchronized (frame) {
+            Page committed;
+            synchronized (page) {
+                committed = page.getBeforeImage();
+                TransactionId dirtier = page.isDirty();
+                if (tid.equals(dirtier)) {
+                    // Only the undone changes made the page dirty, so the
+                    // image is all of it
+                    page.markDirty(false, null);
+                    frame.clearRecLSN();
+                } else if (dirtier != null) {
+                    page.markDirty(true, dirtier);
+                }
+            }
+            Database.getLogFile().flushTo(page.getLSN());
+            file.writePage(committed);
+        }
+    }
+
+    /** Reset the hit and miss counters, e.g. between benchmark runs. */
+    public void resetCounters() {
+        hits.set(0);
+        misses.set(0);
+        prefetcher.resetCounters();
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -80,26 +367,358 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, false);
+    }
 
-        lock.acquireLock(tid, pid, perm);
-        activeTids.add(tid);
+    /**
+     * Retrieve the specified page with the associated permissions, as
+     * {@link #getPage(TransactionId, PageId, Permissions)} does.
+     * <p>
+     * When scan is true the caller is a large sequential scan: a page that
+     * has to be read from disk is inserted cold, so it is among the first
+     * pages evicted, and hits do not make pages look hotter to the eviction
+     * policy. The scan locks the whole table instead of each page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param scan whether the page is requested by a large sequential scan
+     * @see #isLargeScan
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean scan)
+        throws TransactionAbortedException, DbException {
+
+        boolean snapshot = versions.isSnapshot(tid);
+        if (snapshot) {
+            checkReadOnly(tid, perm);
+        } else {
+            lockFor(tid, pid, perm, scan);
+        }
+
+        FrameDescriptor frame = pinFrame(pid, scan);
+        try {
+            Page page = frame.awaitPage();
+            return snapshot ? versions.read(tid, page) : page;
+        } finally {
+            frame.unpin();
+        }
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, as
+     * {@link #getPage(TransactionId, PageId, Permissions)} does, and pin it
+     * so that it stays in the buffer pool until the returned handle is
+     * closed.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return an open handle on the pinned page
+     */
+    public PageHandle pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return pinPage(tid, pid, perm, false);
+    }
 
-        //lock.acquireLock(tid, pid, perm);
-        if(pageCache.containsKey(pid)){
-            return pageCache.get(pid);
+    /**
+     * Retrieve and pin the specified page, as {@link #pinPage(TransactionId,
+     * PageId, Permissions)} does, possibly on behalf of a large scan.
+     *
+     * @param scan whether the page is requested by a large sequential scan
+     * @see #getPage(TransactionId, PageId, Permissions, boolean)
+     */
+    public PageHandle pinPage(TransactionId tid, PageId pid, Permissions perm, boolean scan)
+        throws TransactionAbortedException, DbException {
+
+        boolean snapshot = versions.isSnapshot(tid);
+        if (snapshot) {
+            checkReadOnly(tid, perm);
         } else {
-            if(pageCache.size() == this.numPages){
+            lockFor(tid, pid, perm, scan);
+        }
+        return pin(tid, pid, scan, snapshot);
+    }
+
+    /**
+     * Retrieve and pin a page for changing single tuples of it, as
+     * {@link #pinPage(TransactionId, PageId, Permissions)} does for
+     * READ_WRITE, but locking the page IX instead of X: other transactions
+     * may change other tuples of the page meanwhile. The caller locks the
+     * tuples it changes with {@link #lockRecord}, and changes them with the
+     * HeapPage methods that take its transaction.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @return an open handle on the pinned page
+     * @see HeapPage#insertTuple(Tuple, TransactionId)
+     */
+    PageHandle pinPageForRows(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        boolean snapshot = versions.isSnapshot(tid);
+        if (snapshot) {
+            checkReadOnly(tid, Permissions.READ_WRITE);
+        } else {
+            lock.acquireLock(tid, pid, LockMode.IX);
+            activeTids.add(tid);
+        }
+        return pin(tid, pid, false, snapshot);
+    }
+
+    /**
+     * Lock a single tuple, under an intention lock on its page.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the tuple to lock
+     * @param perm the requested permissions on the tuple
+     * @see LockManager#acquireRecordLock
+     */
+    void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        lock.acquireRecordLock(tid, rid, perm);
+        activeTids.add(tid);
+    }
+
+    // Pin a page that is locked already, for pinPage
+    private PageHandle pin(TransactionId tid, PageId pid, boolean scan, boolean snapshot)
+        throws TransactionAbortedException, DbException {
+        FrameDescriptor frame = pinFrame(pid, scan);
+        Page version = null;
+        try {
+            Page page = frame.awaitPage();
+            if (snapshot) {
+                version = versions.read(tid, page);
+            }
+        } catch (DbException | TransactionAbortedException e) {
+            frame.unpin();
+            throw e;
+        }
+        PageHandle handle = new PageHandle(this, tid, frame, version);
+        openHandles.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(handle);
+        return handle;
+    }
+
+    /**
+     * Release the pin held by a page handle. Unpinning a handle that was
+     * already released has no effect.
+     *
+     * @param handle the handle to release
+     * @see PageHandle#close
+     */
+    public void unpinPage(PageHandle handle) {
+        if (!handle.markClosed()) {
+            return;
+        }
+        handle.getFrame().unpin();
+        Set<PageHandle> handles = openHandles.get(handle.getTransactionId());
+        if (handles != null) {
+            handles.remove(handle);
+        }
+    }
+
+    /**
+     * Find the frame holding the specified page, reading the page into a new
+     * frame if it is not resident, and pin it.
+     * Only one thread reads a given page; others asking for it meanwhile
+     * pin the same frame and wait for the read to finish.
+     *
+     * @return the pinned frame; its page may still be being read
+     */
+    private FrameDescriptor pinFrame(PageId pid, boolean scan) throws DbException {
+        while (true) {
+            FrameDescriptor frame = frames.get(pid);
+            if (frame != null) {
+                // A frame that was claimed for eviction cannot be pinned; look again
+                if (frame.pin()) {
+                    hits.incrementAndGet();
+                    if (frame.takePrefetched()) {
+                        prefetcher.prefetchHit();
+                    }
+                    recordAccess(pid, scan);
+                    return frame;
+                }
+                continue;
+            }
+
+            FrameDescriptor fresh = new FrameDescriptor(pid);
+            fresh.pin();
+            if (!reserveFrame(fresh, scan)) {
+                continue;
+            }
+            misses.incrementAndGet();
+            loadFrame(fresh);
+            return fresh;
+        }
+    }
+
+    /**
+     * Read a page into the buffer pool ahead of a scan, without locking it.
+     * The page is loaded cold. Nothing happens if the page is resident, if a
+     * transaction holds an exclusive lock on it, or if no frame can be freed.
+     *
+     * @return true if the page was read
+     * @see ReadAheadPrefetcher
+     */
+    boolean prefetchPage(PageId pid) {
+        // Pages that are not resident and not exclusively locked are
+        // current on disk
+        if (frames.containsKey(pid) || lock.isExclusivelyLocked(pid)) {
+            return false;
+        }
+        FrameDescriptor fresh = new FrameDescriptor(pid);
+        fresh.pin();
+        fresh.markPrefetched();
+        try {
+            if (!reserveFrame(fresh, true)) {
+                return false;
+            }
+            loadFrame(fresh);
+        } catch (DbException e) {
+            // Every page is dirty or pinned, or the page could not be read;
+            // the scan reads it itself
+            return false;
+        }
+        fresh.unpin();
+        return true;
+    }
+
+    /**
+     * Add a new frame for a page that is not resident, evicting a page first
+     * if the buffer pool is full.
+     *
+     * @param fresh the new frame, already pinned
+     * @param cold whether the page goes to the cold set instead of the policy
+     * @return false if another thread added a frame for the page first
+     */
+    private boolean reserveFrame(FrameDescriptor fresh, boolean cold) throws DbException {
+        PageId pid = fresh.getPageId();
+        synchronized (evictionLock) {
+            if (frames.containsKey(pid)) {
+                return false;
+            }
+            while (frames.size() >= this.numPages) {
                 evictPage();
-                Page newPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                pageCache.put(pid, newPage);
-                return newPage;
+            }
+            frames.put(pid, fresh);
+            if (cold) {
+                synchronized (coldPages) {
+                    coldPages.add(pid);
+                }
             } else {
-                Page newPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                pageCache.put(pid, newPage);
-                return newPage;
+                policy.pageLoaded(pid);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the page of a frame added by {@link #reserveFrame} from its
+     * DbFile. If the read fails, the frame is removed and unpinned.
+     */
+    private void loadFrame(FrameDescriptor fresh) throws DbException {
+        PageId pid = fresh.getPageId();
+        try {
+            Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            if (page == null) {
+                throw new IllegalArgumentException("page does not exist");
+            }
+            fresh.setPage(page);
+        } catch (RuntimeException e) {
+            frames.remove(pid, fresh);
+            forget(pid, false);
+            fresh.failLoad(e);
+            fresh.unpin();
+            throw new DbException("could not read page " + pid.getPageNumber()
+                    + " of table " + pid.getTableId() + ": " + e);
+        }
+    }
+
+    /**
+     * Tell the eviction policy about a hit. Scans do not count as accesses;
+     * any other access to a cold page hands it over to the policy.
+     */
+    private void recordAccess(PageId pid, boolean scan) {
+        if (scan) {
+            return;
+        }
+        synchronized (coldPages) {
+            if (coldPages.remove(pid)) {
+                policy.pageLoaded(pid);
+                return;
+            }
+        }
+        policy.pageAccessed(pid);
+    }
+
+    /**
+     * Install a page in the cache, replacing any cached version of it, and
+     * tell the eviction policy about it.
+     */
+    private void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        FrameDescriptor frame = frames.get(pid);
+        if (frame != null && frame.pin()) {
+            frame.setPage(page);
+            frame.unpin();
+            return;
+        }
+
+        synchronized (evictionLock) {
+            frame = frames.get(pid);
+            if (frame == null) {
+                while (frames.size() >= this.numPages) {
+                    evictPage();
+                }
+                frame = new FrameDescriptor(pid);
+                frames.put(pid, frame);
+                policy.pageLoaded(pid);
             }
+            frame.setPage(page);
         }
+    }
+
+    private static void checkReadOnly(TransactionId tid, Permissions perm) throws DbException {
+        if (perm == Permissions.READ_WRITE) {
+            throw new DbException("snapshot transaction " + tid.getId() + " cannot write");
+        }
+    }
+
+    // Lock a page, or its whole table for a large scan
+    private void lockFor(TransactionId tid, PageId pid, Permissions perm, boolean scan)
+        throws TransactionAbortedException {
+        if (scan) {
+            lock.acquireTableLock(tid, pid.getTableId(), perm);
+        } else {
+            lock.acquireLock(tid, pid, perm);
+        }
+        activeTids.add(tid);
+    }
+
+    /**
+     * Acquire a lock on a whole table, e.g. an intention lock ahead of
+     * adding pages to it.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param mode the lock mode
+     */
+    void acquireTableLock(TransactionId tid, int tableId, LockMode mode)
+        throws TransactionAbortedException {
+        lock.acquireTableLock(tid, tableId, mode);
+        activeTids.add(tid);
+    }
 
+    /**
+     * Acquire a lock on a page without reading the page, e.g. for a page
+     * that is being created.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the ID of the page to lock
+     * @param perm the requested permissions on the page
+     */
+    void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        lock.acquireLock(tid, pid, perm);
+        activeTids.add(tid);
     }
 
     /**
@@ -138,34 +757,99 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        Set<PageId> pages = pageCache.keySet();
+        transactionComplete(tid, commit, false);
+    }
 
+    /**
+     * Commit or abort a given transaction, and on commit optionally write
+     * its commit record. The record follows the records of the pages the
+     * transaction changed and is durable before its locks are released and
+     * the background flusher may write those pages, so no other transaction
+     * sees the changes, and no page reaches disk, before the commit does.
+     *
+     * @param tid the ID of the transaction requesting the unlock
+     * @param commit a flag indicating whether we should commit or abort
+     * @param logCommit whether to write and force the commit record
+     * @see LogFile#logCommit
+     */
+    void transactionComplete(TransactionId tid, boolean commit, boolean logCommit)
+        throws IOException {
+        if (versions.isSnapshot(tid)) {
+            // Nothing to log, roll back or unlock
+            closeHandles(tid);
+            versions.endSnapshot(tid);
+            return;
+        }
+        // Removed only once the pages are published or rolled back, so
+        // they cannot be evicted before
+        Set<PageId> mine = changedPages.get(tid);
         if(commit) {
-            for (PageId pid : pages) {
-                Page page = pageCache.get(pid);
+            List<Page> changed = new ArrayList<>();
+            for (FrameDescriptor frame : frames.values()) {
+                Page page = frame.getPage();
+                if (page == null) {
+                    continue;
+                }
                 TransactionId dirty = page.isDirty();
-                if(tid.equals(dirty)){
+                if(tid.equals(dirty) || hasRowChanges(page, tid)){
                     //flushPage(pid);
-                    Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
-                    Database.getLogFile().force();
+                    // Forced along with the commit record, by group commit
+                    logPage(frame, tid, page);
+                    changed.add(page);
+                } else if (mine != null && mine.contains(frame.getPageId())) {
+                    // Written out before the commit, and logged then; its
+                    // before image must still become the committed page
+                    changed.add(page);
                 }
-                page.setBeforeImage();
             }
+            if (logCommit) {
+                Database.getLogFile().logCommit(tid);
+            }
+            // Only pages this transaction changed get a new before image;
+            // other pages may hold uncommitted changes of other transactions.
+            // The versions they replace are kept for running snapshots.
+            versions.publish(tid, changed);
         } else {
-            for (PageId pid : pages) {
-                Page page = pageCache.get(pid);
+            for (FrameDescriptor frame : frames.values()) {
+                Page page = frame.getPage();
+                if (page == null) {
+                    continue;
+                }
                 TransactionId dirty = page.isDirty();
-                if(tid.equals(dirty)){
-                    Page ogPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                    ogPage.markDirty(false, null);
-                    pageCache.put(pid, ogPage);
-
+                if (hasRowChanges(page, tid)) {
+                    // Undone in place: other transactions may be changing
+                    // other tuples of the page. The page no longer matches
+                    // what may have been written out of it.
+                    synchronized (page) {
+                        ((HeapPage) page).abortWrites(tid);
+                        if (page.isDirty() == null) {
+                            page.markDirty(true, tid);
+                        }
+                    }
+                } else if(tid.equals(dirty)){
+                    // The before image is the last committed state of the page, which may
+                    // include committed changes that have not reached disk yet, so keep it
+                    // dirty rather than re-reading the page from disk
+                    Page ogPage = page.getBeforeImage();
+                    ogPage.markDirty(true, tid);
+                    frame.setPage(ogPage);
                 }
             }
         }
+        if (!commit) {
+            versions.abandon(tid);
+        }
+        changedPages.remove(tid);
+        closeHandles(tid);
+
         lock.releaseTransaction(tid);
         activeTids.remove(tid);
 
+        PageFlusher f = flusher;
+        if (commit && f != null) {
+            f.wake();
+        }
+
         /*
         Set<PageId> pages = lock.pagesTouched(tid);
         if(commit) {
@@ -184,6 +868,27 @@ public class BufferPool {
          */
     }
 
+    // Whether a transaction has changed single tuples of a page, which may
+    // be marked dirty by another transaction changing other tuples
+    private static boolean hasRowChanges(Page page, TransactionId tid) {
+        return page instanceof HeapPage && ((HeapPage) page).hasWriter(tid);
+    }
+
+    // Remember that a transaction changed a page, for transactionComplete
+    private void noteChanged(TransactionId tid, PageId pid) {
+        changedPages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    // Pins are only needed while the transaction runs
+    private void closeHandles(TransactionId tid) {
+        Set<PageHandle> handles = openHandles.remove(tid);
+        if (handles != null) {
+            for (PageHandle handle : handles) {
+                unpinPage(handle);
+            }
+        }
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other 
@@ -207,8 +912,31 @@ public class BufferPool {
 
         // For the modified pages, we mark as dirty and replace the page with dirtied page in cache
         for(Page page : dirtyPages){
-            page.markDirty(true, tid);
-            pageCache.put(page.getId(), page);
+            synchronized (page) {
+                page.markDirty(true, tid);
+            }
+            noteChanged(tid, page.getId());
+            cachePage(page);
+        }
+    }
+
+    /**
+     * Add many tuples to the specified table on behalf of transaction tid,
+     * bypassing the cache. The tuples are packed onto new pages at the end
+     * of the table, which are written straight to disk a batch at a time
+     * with one log record per batch; existing pages are not touched.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     * @see HeapFile#appendPages
+     */
+    public void bulkInsert(TransactionId tid, int tableId, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        HeapFile table = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        int batch = BULK_BATCH_PAGES * table.tuplesPerPage();
+        for (int i = 0; i < tuples.size(); i += batch) {
+            table.appendPages(tid, tuples.subList(i, Math.min(i + batch, tuples.size())));
         }
     }
 
@@ -234,8 +962,11 @@ public class BufferPool {
 
         // For the modified pages, we mark as dirty and replace the page with dirtied page in cache
         for(Page page : dirtyPages){
-            page.markDirty(true, tid);
-            pageCache.put(page.getId(), page);
+            synchronized (page) {
+                page.markDirty(true, tid);
+            }
+            noteChanged(tid, page.getId());
+            cachePage(page);
         }
     }
 
@@ -245,10 +976,18 @@ public class BufferPool {
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        for(PageId pid : pageCache.keySet()){
-            flushPage(pid);
+        for (FrameDescriptor frame : frames.values()) {
+            flushPage(frame);
         }
 
+        // Free space maps are hints, saved along with the pages they describe
+        Iterator<Integer> tableIds = Database.getCatalog().tableIdIterator();
+        while (tableIds.hasNext()) {
+            DbFile file = Database.getCatalog().getDatabaseFile(tableIds.next());
+            if (file instanceof HeapFile) {
+                ((HeapFile) file).saveFreeSpaceMap();
+            }
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -260,31 +999,108 @@ public class BufferPool {
         are removed from the cache so they can be reused safely
     */
     public synchronized void discardPage(PageId pid) {
-        pageCache.remove(pid);
+        if (frames.remove(pid) != null) {
+            forget(pid, false);
+        }
+    }
+
+    /**
+     * Drop a page that has left the cache from the cold set or the policy.
+     * @param evicted whether the page was evicted, rather than discarded
+     */
+    private void forget(PageId pid, boolean evicted) {
+        synchronized (coldPages) {
+            if (coldPages.remove(pid)) {
+                return;
+            }
+            if (evicted) {
+                policy.pageRemoved(pid);
+            } else {
+                policy.pageDiscarded(pid);
+            }
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        HeapPage page = (HeapPage) pageCache.get(pid);
+    private void flushPage(FrameDescriptor frame) throws IOException {
+        // The frame is the latch for writing its page out, so that two
+        // threads never write the same page concurrently
+        synchronized (frame) {
+            flushPage(frame, frame.getPage());
+        }
+    }
+
+    private void flushPage(FrameDescriptor frame, Page page) throws IOException {
+        if (page == null) {
+            return;
+        }
+        PageId pid = frame.getPageId();
         TransactionId tid = page.isDirty();
 
         // isDirty returns transaction that has dirtied the page, null if it isn't dirty
         if(tid != null){
             // Get file where dirty page belongs
-            HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
 
             if(activeTids.contains(tid)) {
-                Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
-                Database.getLogFile().force();
+                logPage(frame, tid, page);
             }
+            if (page instanceof HeapPage) {
+                for (TransactionId writer : ((HeapPage) page).getWriters()) {
+                    if (!writer.equals(tid) && activeTids.contains(writer)) {
+                        logPage(frame, writer, page);
+                    }
+                }
+            }
+            // Write-ahead: the log must be on disk up to the page's last record
+            Database.getLogFile().flushTo(page.getLSN());
 
             // Write the modified page to data file
             file.writePage(page);
             // Page no longer dirty
             page.markDirty(false, tid);
+            frame.clearRecLSN();
+        }
+    }
+
+    /**
+     * Log the changes a transaction made to the page in a frame, noting in
+     * the frame that the page has logged changes that are not on disk. The
+     * LSN is noted before the record is written, so it is never after it.
+     * Of a page that other transactions changed single tuples of too, only
+     * the transaction's own tuples are logged.
+     */
+    private void logPage(FrameDescriptor frame, TransactionId tid, Page page) throws IOException {
+        LogFile log = Database.getLogFile();
+        frame.noteLogged(log.getEndLSN());
+        Page before;
+        Page after;
+        // Both images as of one moment, so no other transaction's change
+        // lands in the record
+        synchronized (page) {
+            before = page.getBeforeImage();
+            after = page instanceof HeapPage ? ((HeapPage) page).getAfterImage(tid) : page;
+        }
+        log.logWrite(tid, before, after);
+        if (after != page) {
+            page.setLSN(after.getLSN());
+        }
+    }
+
+    /**
+     * Write a log record for every page in the buffer pool that a
+     * transaction changed, without writing the pages; used before rolling
+     * the transaction back, so the log holds all of its changes.
+     */
+    synchronized void logDirtyPages(TransactionId tid) throws IOException {
+        for (FrameDescriptor frame : frames.values()) {
+            Page page = frame.getPage();
+            if (page != null && (tid.equals(page.isDirty()) || hasRowChanges(page, tid))) {
+                logPage(frame, tid, page);
+            }
         }
     }
 
@@ -298,20 +1114,97 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Pages dirtied by a transaction that is still running are never evicted
+     * (NO STEAL); the eviction policy picks among the remaining pages.
+     *
+     * @throws DbException if every page in the buffer pool is dirtied by a
+     *         running transaction
+     */
+    private void evictPage() throws DbException {
+        synchronized (evictionLock) {
+            FrameDescriptor victim = null;
+            synchronized (coldPages) {
+                for (PageId pid : coldPages) {
+                    victim = claimIfEvictable(pid);
+                    if (victim != null) {
+                        break;
+                    }
+                }
+            }
+            if (victim == null) {
+                PageId pid = policy.chooseVictim(candidate -> isEvictable(candidate));
+                if (pid != null) {
+                    victim = claimIfEvictable(pid);
+                }
+            }
+            if (victim == null) {
+                throw new DbException("all pages in the buffer pool are dirty or pinned");
+            }
+
+            try {
+                flushPage(victim);
+            } catch (IOException e) {
+                victim.releaseClaim();
+                throw new DbException("could not flush page " + victim.getPageId().getPageNumber()
+                        + " of table " + victim.getPageId().getTableId() + " before eviction");
+            }
+            frames.remove(victim.getPageId(), victim);
+            forget(victim.getPageId(), true);
+            if (victim.takePrefetched()) {
+                prefetcher.prefetchWasted();
+            }
+        }
+    }
+
+    /**
+     * A page may be evicted unless it is pinned, still being read, or holds
+     * changes of a transaction that has not finished yet. That includes
+     * changes that were written out and left the page clean: the commit
+     * must still find the page to publish its before image, and a copy
+     * read back from disk would take the uncommitted changes as committed.
      */
-    private synchronized  void evictPage() throws DbException {
+    private boolean isEvictable(PageId pid) {
+        FrameDescriptor frame = frames.get(pid);
+        if (frame == null || frame.getPinCount() > 0) {
+            return false;
+        }
+        Page page = frame.getPage();
+        if (page == null) {
+            return false;
+        }
+        TransactionId dirtier = page.isDirty();
+        return (dirtier == null || !activeTids.contains(dirtier)) && !isChanged(pid);
+    }
 
-        // Choose the random idx's page to come out of the cache to be evicted
-        for(PageId pid : pageCache.keySet()){
-//            if(pageCache.get(pid).isDirty() == null){
-//                pageCache.remove(pid);
-//                return;
-//            }
+    // Whether a running transaction has changed a page
+    private boolean isChanged(PageId pid) {
+        for (Set<PageId> pages : changedPages.values()) {
+            if (pages.contains(pid)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            pageCache.remove(pid);
-            break;
+    /**
+     * Claim the frame of a page for eviction if the page may be evicted.
+     * @return the claimed frame, or null
+     */
+    private FrameDescriptor claimIfEvictable(PageId pid) {
+        if (!isEvictable(pid)) {
+            return null;
+        }
+        FrameDescriptor frame = frames.get(pid);
+        if (frame == null || !frame.claimForEviction()) {
+            return null;
+        }
+        // The page may have been dirtied between the check and the claim
+        TransactionId dirtier = frame.getPage().isDirty();
+        if ((dirtier != null && activeTids.contains(dirtier)) || isChanged(pid)) {
+            frame.releaseClaim();
+            return null;
         }
-        //throw new DbException("all dirty :(");
+        return frame;
     }
 
 }
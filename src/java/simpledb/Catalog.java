@@ -25,11 +25,14 @@ public class Catalog {
     private Map<String, String> tableKeys;
     private Map<String, DbFile> nameToFiles;
     private Map<Integer, DbFile> idToFiles;
+    // Open channels on the files of the tables
+    private final FileHandleCache fileHandles;
 
     public Catalog() {
         tableKeys = new HashMap<>();
         nameToFiles = new HashMap<>();
         idToFiles = new HashMap<>();
+        fileHandles = new FileHandleCache();
     }
 
     /**
@@ -43,6 +46,10 @@ public class Catalog {
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         int fileId = file.getId();
+        // The file may have been replaced since a channel was opened on it
+        if (file instanceof HeapFile) {
+            fileHandles.close(((HeapFile) file).getFile());
+        }
 
         if (nameToFiles.containsKey(name)) {
             DbFile oldFile = nameToFiles.get(name);
@@ -146,15 +153,27 @@ public class Catalog {
         throw new NoSuchElementException();
     }
     
+    /**
+     * Returns the cache of open channels used to read and write the pages of
+     * table files.
+     */
+    public FileHandleCache getFileHandles() {
+        return fileHandles;
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         tableKeys.clear();
         nameToFiles.clear();
         idToFiles.clear();
+        fileHandles.closeAll();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes one table as <tt>name (field type [pk], ...)</tt>,
+     * optionally followed by <tt>mmap</tt> to read the table's pages through a
+     * memory mapping (see {@link HeapFile.AccessMode}).
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -164,10 +183,18 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [mmap]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                String option = line.substring(line.indexOf(")") + 1).trim();
+                HeapFile.AccessMode mode = HeapFile.AccessMode.CHANNEL;
+                if (option.toLowerCase().equals("mmap"))
+                    mode = HeapFile.AccessMode.MMAP;
+                else if (!option.isEmpty()) {
+                    System.out.println("Unknown table option " + option);
+                    System.exit(0);
+                }
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
@@ -195,7 +222,7 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, mode);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * ClockEvictionPolicy approximates LRU with a single reference bit per page.
+ * Resident pages sit in a circular array; a hit sets the page's reference bit,
+ * and the clock hand sweeps the array clearing bits until it finds a page
+ * whose bit is already clear.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private final ArrayList<PageId> ring;
+    private final ArrayList<Boolean> referenced;
+    private final Map<PageId, Integer> slots;
+    private final Deque<Integer> freeSlots;
+    private int hand;
+
+    public ClockEvictionPolicy() {
+        ring = new ArrayList<>();
+        referenced = new ArrayList<>();
+        slots = new HashMap<>();
+        freeSlots = new ArrayDeque<>();
+        hand = 0;
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        Integer slot = slots.get(pid);
+        if (slot != null) {
+            referenced.set(slot, true);
+            return;
+        }
+        // Reuse a slot left behind by a removed page before growing the ring
+        if (freeSlots.isEmpty()) {
+            ring.add(pid);
+            referenced.add(true);
+            slots.put(pid, ring.size() - 1);
+        } else {
+            slot = freeSlots.pop();
+            ring.set(slot, pid);
+            referenced.set(slot, true);
+            slots.put(pid, slot);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer slot = slots.get(pid);
+        if (slot != null) {
+            referenced.set(slot, true);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer slot = slots.remove(pid);
+        if (slot != null) {
+            ring.set(slot, null);
+            referenced.set(slot, false);
+            freeSlots.push(slot);
+        }
+    }
+
+    public void pageDiscarded(PageId pid) {
+        pageRemoved(pid);
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        int size = ring.size();
+        // Two full sweeps: the first may only clear reference bits
+        for (int i = 0; i < 2 * size; i++) {
+            int slot = hand;
+            hand = (hand + 1) % size;
+            PageId pid = ring.get(slot);
+            if (pid == null) {
+                continue;
+            }
+            if (referenced.get(slot)) {
+                referenced.set(slot, false);
+            } else if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -24,6 +24,8 @@ public class Database {
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _bufferpool.startBackgroundFlusher(BufferPool.DEFAULT_DIRTY_HIGH_WATERMARK,
+                BufferPool.DEFAULT_DIRTY_LOW_WATERMARK);
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -59,7 +61,10 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            BufferPool pool = new BufferPool(pages);
+            pool.startBackgroundFlusher(BufferPool.DEFAULT_DIRTY_HIGH_WATERMARK,
+                    BufferPool.DEFAULT_DIRTY_LOW_WATERMARK);
+            bufferPoolF.set(_instance.get(), pool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,7 +80,8 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        old._catalog.getFileHandles().closeAll();
     }
 
 }
@@ -0,0 +1,58 @@
+package simpledb;
+
+/**
+ * DeadlockDetector is a background thread that periodically searches the
+ * wait-for graph of a LockManager for cycles and aborts one transaction of
+ * each. While it runs, a request that has to wait does not search for a
+ * deadlock itself, which keeps blocking cheap when there are many waiters;
+ * a deadlock then lasts until the detector's next pass.
+ * <p>
+ * The thread stops when {@link #shutdown} is called or when its
+ * LockManager is no longer the one of the BufferPool installed in
+ * {@link Database}.
+ *
+ * @see LockManager#startDeadlockDetector
+ */
+class DeadlockDetector extends Thread {
+
+    private final LockManager locks;
+    private final long intervalMillis;
+    private volatile boolean running;
+
+    /**
+     * @param locks the lock manager to search
+     * @param intervalMillis the time between two searches, in milliseconds
+     */
+    DeadlockDetector(LockManager locks, long intervalMillis) {
+        super("simpledb-deadlock-detector");
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("interval must be at least 1 ms");
+        }
+        this.locks = locks;
+        this.intervalMillis = intervalMillis;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    /** Stop the detector; it exits after its current pass. */
+    synchronized void shutdown() {
+        running = false;
+        notify();
+    }
+
+    public void run() {
+        while (running) {
+            synchronized (this) {
+                try {
+                    wait(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (!running || Database.getBufferPool().getLockManager() != locks) {
+                return;
+            }
+            locks.breakDeadlocks();
+        }
+    }
+}
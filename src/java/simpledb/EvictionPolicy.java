@@ -0,0 +1,54 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool gives up when it
+ * needs room for a new one. The BufferPool reports every page that enters,
+ * is accessed in, or leaves the pool, and asks the policy for a victim when
+ * the pool is full.
+ * <p>
+ * A policy only ranks pages; whether a page may actually leave the pool right
+ * now (for example, it is dirty under NO STEAL) is decided by the BufferPool
+ * and passed in to {@link #chooseVictim}.
+ *
+ * @see BufferPool
+ * @Threadsafe
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called when a page is brought into the buffer pool.
+     * @param pid the page that was loaded
+     */
+    public void pageLoaded(PageId pid);
+
+    /**
+     * Called on every buffer pool hit.
+     * @param pid the page that was accessed
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page is evicted from the buffer pool.
+     * @param pid the page that was removed
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool without being evicted, e.g.
+     * because it was discarded or could not be read. Unlike an eviction,
+     * this says nothing about how the page is used.
+     * @param pid the page that was removed
+     */
+    public void pageDiscarded(PageId pid);
+
+    /**
+     * Choose a resident page to evict. The policy does not forget the page;
+     * the BufferPool calls {@link #pageRemoved} once the page is gone.
+     *
+     * @param evictable tells whether a resident page may be evicted right now
+     * @return the page to evict, or null if no resident page may be evicted
+     */
+    public PageId chooseVictim(Predicate<PageId> evictable);
+}
@@ -0,0 +1,213 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FileHandleCache keeps FileChannels on table files open between page reads
+ * and writes, so that reading or writing a page is a single positional read
+ * or write instead of an open, seek, transfer and close.
+ * <p>
+ * At most a fixed number of channels are kept open; the least recently used
+ * one is closed when another file is opened. A read or write that finds its
+ * channel closed underneath it, because the channel was closed by the cache
+ * meanwhile, reopens the file and tries again.
+ * <p>
+ * The cache does not notice a file being deleted and recreated under the
+ * same name; whoever replaces a file must {@link #close(File)} it first.
+ * The Catalog does so when a table is added.
+ *
+ * @see Catalog#getFileHandles
+ * @Threadsafe
+ */
+public class FileHandleCache {
+
+    /** Default maximum number of channels kept open. */
+    public static final int DEFAULT_MAX_OPEN = 128;
+
+    // How often a read or write is retried after its channel was closed
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final LinkedHashMap<File, FileChannel> channels;
+
+    public FileHandleCache() {
+        this(DEFAULT_MAX_OPEN);
+    }
+
+    /**
+     * @param maxOpen the maximum number of channels kept open
+     */
+    public FileHandleCache(final int maxOpen) {
+        if (maxOpen < 1) {
+            throw new IllegalArgumentException("maxOpen must be at least 1");
+        }
+        // Access order, so the eldest entry is the least recently used one
+        this.channels = new LinkedHashMap<File, FileChannel>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<File, FileChannel> eldest) {
+                if (size() > maxOpen) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return an open channel on a file, opening it if necessary. Files are
+     * opened for reading and writing, or only for reading if they cannot be
+     * written.
+     *
+     * @param f the file
+     * @param create whether to create the file if it does not exist
+     * @throws IOException if the file cannot be opened, e.g. because it does
+     *         not exist and create is false
+     */
+    public synchronized FileChannel getChannel(File f, boolean create) throws IOException {
+        File key = f.getAbsoluteFile();
+        FileChannel ch = channels.get(key);
+        if (ch != null && ch.isOpen()) {
+            return ch;
+        }
+        try {
+            ch = create
+                    ? FileChannel.open(key.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+                    : FileChannel.open(key.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+        } catch (AccessDeniedException e) {
+            ch = FileChannel.open(key.toPath(), StandardOpenOption.READ);
+        }
+        channels.put(key, ch);
+        return ch;
+    }
+
+    /**
+     * Read from a file at a given position until dst is full or the end of
+     * the file is reached.
+     *
+     * @param f the file to read
+     * @param dst the buffer to read into
+     * @param position the file position to start reading at
+     * @return the number of bytes read
+     */
+    public int read(File f, ByteBuffer dst, long position) throws IOException {
+        int start = dst.position();
+        for (int attempt = 1; ; attempt++) {
+            FileChannel ch = getChannel(f, false);
+            try {
+                while (dst.hasRemaining()) {
+                    int n = ch.read(dst, position + dst.position() - start);
+                    if (n < 0) {
+                        break;
+                    }
+                }
+                return dst.position() - start;
+            } catch (ClosedChannelException e) {
+                retryOrThrow(f, ch, e, attempt);
+            }
+        }
+    }
+
+    /**
+     * Write all of src to a file at a given position, creating the file if
+     * it does not exist.
+     *
+     * @param f the file to write
+     * @param src the bytes to write
+     * @param position the file position to start writing at
+     */
+    public void write(File f, ByteBuffer src, long position) throws IOException {
+        int start = src.position();
+        for (int attempt = 1; ; attempt++) {
+            FileChannel ch = getChannel(f, true);
+            try {
+                while (src.hasRemaining()) {
+                    ch.write(src, position + src.position() - start);
+                }
+                return;
+            } catch (ClosedChannelException e) {
+                retryOrThrow(f, ch, e, attempt);
+            }
+        }
+    }
+
+    /**
+     * Force all writes to a file to disk.
+     *
+     * @param f the file to force
+     */
+    public void force(File f) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            FileChannel ch = getChannel(f, true);
+            try {
+                ch.force(false);
+                return;
+            } catch (ClosedChannelException e) {
+                retryOrThrow(f, ch, e, attempt);
+            }
+        }
+    }
+
+    /** Close the channel on a file, if one is open. */
+    public synchronized void close(File f) {
+        FileChannel ch = channels.remove(f.getAbsoluteFile());
+        if (ch != null) {
+            closeQuietly(ch);
+        }
+    }
+
+    /** Close all open channels. */
+    public synchronized void closeAll() {
+        Iterator<FileChannel> it = channels.values().iterator();
+        while (it.hasNext()) {
+            closeQuietly(it.next());
+            it.remove();
+        }
+    }
+
+    /** @return the number of channels currently open */
+    public synchronized int size() {
+        return channels.size();
+    }
+
+    /**
+     * Forget a channel that was closed under a read or write, and decide
+     * whether the operation may be retried.
+     */
+    private void retryOrThrow(File f, FileChannel ch, ClosedChannelException e, int attempt)
+            throws IOException {
+        synchronized (this) {
+            File key = f.getAbsoluteFile();
+            if (channels.get(key) == ch) {
+                channels.remove(key);
+            }
+        }
+        // An interrupt closes every channel the thread touches; give up
+        // rather than reopening the file again and again
+        if (e instanceof ClosedByInterruptException) {
+            throw new InterruptedIOException("interrupted during I/O on " + f);
+        }
+        if (attempt >= MAX_ATTEMPTS) {
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package simpledb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FrameDescriptor describes one frame of the BufferPool: the page held in the
+ * frame, how many pins are currently held on it, whether the page is dirty,
+ * since which log record it is dirty, and when the frame was last pinned.
+ * <p>
+ * A frame is created before its page has been read, so concurrent requests
+ * for the same page wait for a single read instead of each reading the page.
+ * A pinned frame is never evicted; eviction claims an unpinned frame by
+ * swapping its pin count from 0 to {@link #EVICTED}, after which it can no
+ * longer be pinned.
+ * <p>
+ * Descriptors are handed out by {@link BufferPool#getFrameDescriptor} for
+ * monitoring; only the BufferPool changes them.
+ *
+ * @see BufferPool
+ * @see PageHandle
+ * @Threadsafe
+ */
+public class FrameDescriptor {
+
+    /** Pin count of a frame that has been claimed for eviction. */
+    private static final int EVICTED = -1;
+
+    /** recLSN of a frame whose page has no logged changes that are not on disk. */
+    public static final long NO_REC_LSN = -1;
+
+    private final PageId pid;
+    private final AtomicInteger pinCount;
+    private final CountDownLatch loaded;
+    private volatile Page page;
+    private volatile RuntimeException loadFailure;
+    private volatile long lastAccess;
+    // Set while the page was read ahead and nobody has asked for it yet
+    private final AtomicBoolean prefetched;
+    // LSN of the first logged change to the page that is not on disk yet
+    private final AtomicLong recLsn;
+
+    FrameDescriptor(PageId pid) {
+        this.pid = pid;
+        this.pinCount = new AtomicInteger(0);
+        this.prefetched = new AtomicBoolean(false);
+        this.recLsn = new AtomicLong(NO_REC_LSN);
+        this.loaded = new CountDownLatch(1);
+        this.lastAccess = System.currentTimeMillis();
+    }
+
+    /** @return the id of the page this frame holds */
+    public PageId getPageId() {
+        return pid;
+    }
+
+    /**
+     * @return the page held in this frame, or null if it is still being read
+     */
+    Page getPage() {
+        return page;
+    }
+
+    /**
+     * @return the transaction that last dirtied the page in this frame, or
+     *         null if the page is clean or still being read
+     */
+    public TransactionId getDirtier() {
+        Page p = page;
+        return p == null ? null : p.isDirty();
+    }
+
+    /** @return true if the page in this frame has changes not yet on disk */
+    public boolean isDirty() {
+        return getDirtier() != null;
+    }
+
+    /** @return the time, in milliseconds, at which this frame was last pinned */
+    public long getLastAccessTime() {
+        return lastAccess;
+    }
+
+    /**
+     * @return true if the page in this frame was read ahead of a scan and
+     *         has not been requested since
+     */
+    public boolean isPrefetched() {
+        return prefetched.get();
+    }
+
+    /** Record that the page in this frame is being read ahead of a scan. */
+    void markPrefetched() {
+        prefetched.set(true);
+    }
+
+    /**
+     * Clear the prefetched flag.
+     * @return true if the flag was set, i.e. this is the first request for a
+     *         page that was read ahead
+     */
+    boolean takePrefetched() {
+        return prefetched.get() && prefetched.compareAndSet(true, false);
+    }
+
+    /**
+     * Return the recLSN of the page in this frame: the LSN of the first log
+     * record describing a change to the page that has not been written to
+     * disk yet. Recovery has to redo the page from there; checkpoints
+     * record it in their dirty page table.
+     *
+     * @return the recLSN, or {@link #NO_REC_LSN} if the page has no such
+     *         changes
+     */
+    public long getRecLSN() {
+        return recLsn.get();
+    }
+
+    /**
+     * Record that a change to the page is about to be logged at or after an
+     * LSN. Only the first such LSN since the page was last written counts.
+     */
+    void noteLogged(long lsn) {
+        recLsn.compareAndSet(NO_REC_LSN, lsn);
+    }
+
+    /** Record that every logged change to the page is on disk. */
+    void clearRecLSN() {
+        recLsn.set(NO_REC_LSN);
+    }
+
+    /**
+     * Install the page this frame holds, replacing any previous version of
+     * it, and release threads waiting for the page to be read.
+     */
+    void setPage(Page page) {
+        this.page = page;
+        loaded.countDown();
+    }
+
+    /**
+     * Record that reading the page failed and release waiting threads, which
+     * rethrow the failure.
+     */
+    void failLoad(RuntimeException e) {
+        this.loadFailure = e;
+        loaded.countDown();
+    }
+
+    /**
+     * Wait until the page of this frame has been read.
+     * @return the page held in this frame
+     */
+    Page awaitPage() throws DbException {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (loadFailure != null) {
+            throw new DbException("could not read page " + pid.getPageNumber()
+                    + " of table " + pid.getTableId() + ": " + loadFailure);
+        }
+        return page;
+    }
+
+    /**
+     * Pin this frame.
+     * @return false if the frame has been claimed for eviction, in which case
+     *         the caller must look the page up again
+     */
+    boolean pin() {
+        while (true) {
+            int count = pinCount.get();
+            if (count == EVICTED) {
+                return false;
+            }
+            if (pinCount.compareAndSet(count, count + 1)) {
+                lastAccess = System.currentTimeMillis();
+                return true;
+            }
+        }
+    }
+
+    /** Release one pin on this frame. */
+    void unpin() {
+        pinCount.decrementAndGet();
+    }
+
+    /** @return the number of pins currently held on this frame */
+    public int getPinCount() {
+        return Math.max(pinCount.get(), 0);
+    }
+
+    /**
+     * Claim this frame for eviction.
+     * @return true if the frame was unpinned and is now claimed
+     */
+    boolean claimForEviction() {
+        return pinCount.compareAndSet(0, EVICTED);
+    }
+
+    /** Undo {@link #claimForEviction} after a failed eviction. */
+    void releaseClaim() {
+        pinCount.compareAndSet(EVICTED, 0);
+    }
+}
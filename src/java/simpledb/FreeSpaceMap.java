@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile may have free slots, so
+ * that inserts go straight to such a page instead of trying every page of
+ * the file.
+ * <p>
+ * The map is a hint: a set bit means the page may have room, a clear bit
+ * that it was full when last looked at. Inserts check the page itself and
+ * clear the bit of a page that turns out to be full; deletes set the bit of
+ * their page. Pages added to the file after the map was saved are assumed
+ * to have room.
+ * <p>
+ * The map is kept in a file next to the HeapFile's own file, and written
+ * back by {@link #save} when it has changed. A missing or inconsistent map
+ * file is replaced by a map in which every page may have room.
+ *
+ * @see HeapFile#getFreeSpaceMap
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private static final int MAGIC = 0x46534d31; // "FSM1"
+
+    private final File file;
+    private final BitSet hasSpace;
+    // Number of pages of the HeapFile the map covers
+    private int numPages;
+    private boolean dirty;
+
+    private FreeSpaceMap(File file, BitSet hasSpace, int numPages, boolean dirty) {
+        this.file = file;
+        this.hasSpace = hasSpace;
+        this.numPages = numPages;
+        this.dirty = dirty;
+    }
+
+    /**
+     * Read a free space map from a file, or create one if the file does not
+     * exist or does not match the HeapFile.
+     *
+     * @param file the file the map is stored in
+     * @param numPages the current number of pages of the HeapFile
+     */
+    public static FreeSpaceMap load(File file, int numPages) {
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                int magic = in.readInt();
+                int savedPages = in.readInt();
+                int numWords = in.readInt();
+                // A map with more pages than the file belongs to an older file
+                if (magic == MAGIC && savedPages <= numPages && numWords >= 0) {
+                    long[] words = new long[numWords];
+                    for (int i = 0; i < numWords; i++) {
+                        words[i] = in.readLong();
+                    }
+                    BitSet bits = BitSet.valueOf(words);
+                    bits.set(savedPages, numPages);
+                    return new FreeSpaceMap(file, bits, numPages, savedPages != numPages);
+                }
+            } catch (IOException e) {
+                // Fall through and rebuild the map
+            }
+        }
+        BitSet bits = new BitSet(numPages);
+        bits.set(0, numPages);
+        return new FreeSpaceMap(file, bits, numPages, true);
+    }
+
+    /**
+     * @param from the page number to start looking at
+     * @return the number of the first page at or after from that may have
+     *         free slots, or -1 if there is none
+     */
+    public synchronized int nextPageWithSpace(int from) {
+        int pgNo = hasSpace.nextSetBit(from);
+        return pgNo >= numPages ? -1 : pgNo;
+    }
+
+    /**
+     * Record whether a page has free slots. Pages past the end of the map
+     * extend it.
+     */
+    public synchronized void setHasSpace(int pgNo, boolean space) {
+        if (hasSpace.get(pgNo) != space) {
+            hasSpace.set(pgNo, space);
+            dirty = true;
+        }
+        if (pgNo >= numPages) {
+            numPages = pgNo + 1;
+            dirty = true;
+        }
+    }
+
+    /** Mark every page as possibly having free slots. */
+    public synchronized void rebuild(int numPages) {
+        hasSpace.clear();
+        hasSpace.set(0, numPages);
+        this.numPages = numPages;
+        dirty = true;
+    }
+
+    /** @return the number of pages marked as possibly having free slots */
+    public synchronized int countPagesWithSpace() {
+        return hasSpace.get(0, numPages).cardinality();
+    }
+
+    /**
+     * Write the map to its file if it has changed. The map is written to a
+     * temporary file first, so a crash never leaves half a map behind.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        long[] words = hasSpace.get(0, numPages).toLongArray();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(numPages);
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+}
@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -9,14 +12,37 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Pages are read with positional reads on a FileChannel by default. Tables
+ * that are mostly read can use {@link AccessMode#MMAP} instead, which copies
+ * pages out of a memory mapping of the file and leaves caching to the
+ * operating system.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
 
+    /**
+     * How a HeapFile reads its pages. Pages are always written through the
+     * FileChannel.
+     */
+    public enum AccessMode {
+        /** Positional reads on a FileChannel kept open by the Catalog. */
+        CHANNEL,
+        /** Copies out of a read-only memory mapping of the whole file. */
+        MMAP
+    }
+
     private File f;
     private TupleDesc td;
+    private volatile AccessMode accessMode;
+    // Mapping of the file in MMAP mode; replaced when the file grows
+    private volatile MappedByteBuffer mapping;
+    // Pages that may have free slots; loaded by the first insert or delete
+    private FreeSpaceMap freeSpace;
+    // Held while pages are added to the end of the file
+    private final Object extensionLock = new Object();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -26,8 +52,21 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, AccessMode.CHANNEL);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file that reads its
+     * pages as specified.
+     *
+     * @param f the file that stores the on-disk backing store for this heap file
+     * @param td the schema of the tuples in the file
+     * @param accessMode how pages are read
+     */
+    public HeapFile(File f, TupleDesc td, AccessMode accessMode) {
         this.f = f;
         this.td = td;
+        this.accessMode = accessMode;
     }
 
     /**
@@ -61,17 +100,30 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    /** @return how this HeapFile reads its pages */
+    public AccessMode getAccessMode() {
+        return this.accessMode;
+    }
+
+    /** Change how this HeapFile reads its pages. */
+    public void setAccessMode(AccessMode accessMode) {
+        this.accessMode = accessMode;
+        if (accessMode != AccessMode.MMAP) {
+            this.mapping = null;
+        }
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         int pgNum = pid.getPageNumber();
         int pgSize = BufferPool.getPageSize();
         try {
-            RandomAccessFile raf = new RandomAccessFile(f, "r");
-            int offset = pgNum * pgSize;
+            // Bytes past the end of the file read as zeros, i.e. an empty page
             byte[] data = new byte[pgSize];
-            raf.seek(offset);
-            raf.read(data);
-            raf.close();
+            long offset = (long) pgNum * pgSize;
+            if (accessMode != AccessMode.MMAP || !readMapped(data, offset)) {
+                Database.getCatalog().getFileHandles().read(f, ByteBuffer.wrap(data), offset);
+            }
             return new HeapPage((HeapPageId) pid, data);
         } catch (IOException e){
             e.printStackTrace();
@@ -79,14 +131,57 @@ public class HeapFile implements DbFile {
         return null;
     }
 
+    /**
+     * Copy a page out of the memory mapping of the file. The file is mapped
+     * again when it has grown past the current mapping, e.g. after
+     * insertTuple added a page.
+     *
+     * @return false if the page is not in the file, or the file is too big
+     *         to be mapped in one piece; the caller then reads the page from
+     *         the channel
+     */
+    private boolean readMapped(byte[] data, long offset) throws IOException {
+        long end = offset + data.length;
+        MappedByteBuffer m = this.mapping;
+        if (m == null || m.capacity() < end) {
+            m = remap(end);
+            if (m == null) {
+                return false;
+            }
+        }
+        // Readers share the mapping, so each one reads through its own view
+        ByteBuffer view = m.duplicate();
+        view.position((int) offset);
+        view.get(data);
+        return true;
+    }
+
+    private synchronized MappedByteBuffer remap(long end) throws IOException {
+        MappedByteBuffer m = this.mapping;
+        if (m != null && m.capacity() >= end) {
+            return m;
+        }
+        FileChannel ch = Database.getCatalog().getFileHandles().getChannel(f, false);
+        long size = ch.size();
+        if (end > size || size > Integer.MAX_VALUE) {
+            return null;
+        }
+        m = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        this.mapping = m;
+        return m;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        int offset = page.getId().getPageNumber() * BufferPool.getPageSize();
-        RandomAccessFile raf;
-        raf = new RandomAccessFile(f, "rw");
-        raf.seek(offset);
-        raf.write(page.getPageData());
-        raf.close();
+        long offset = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
+        Database.getCatalog().getFileHandles().write(f, ByteBuffer.wrap(page.getPageData()), offset);
+    }
+
+    /**
+     * Returns the number of tuples that fit on one page of this HeapFile.
+     */
+    public int tuplesPerPage() {
+        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
     }
 
     /**
@@ -96,44 +191,219 @@ public class HeapFile implements DbFile {
         return (int) this.f.length() / BufferPool.getPageSize();
     }
 
+    /**
+     * Returns the map of pages of this file that may have free slots,
+     * reading it from disk the first time.
+     */
+    public synchronized FreeSpaceMap getFreeSpaceMap() {
+        if (freeSpace == null) {
+            freeSpace = FreeSpaceMap.load(new File(f.getPath() + ".fsm"), numPages());
+        }
+        return freeSpace;
+    }
+
+    /** Write the free space map to disk, if it was loaded and has changed. */
+    public void saveFreeSpaceMap() throws IOException {
+        FreeSpaceMap fsm;
+        synchronized (this) {
+            fsm = freeSpace;
+        }
+        if (fsm != null) {
+            fsm.save();
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
 
         ArrayList<Page> modified = new ArrayList<>();
+        FreeSpaceMap fsm = getFreeSpaceMap();
+        boolean rows = lockRows();
 
-        // Iterate through pages in this file to see if there is room in any to insert tuple
-        for(int i = 0; i < this.numPages(); i++){
+        // Try the pages the free space map says may have room
+        for(int i = fsm.nextPageWithSpace(0); i >= 0; i = fsm.nextPageWithSpace(i + 1)){
             HeapPageId pid = new HeapPageId(this.getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            if(page.getNumEmptySlots() != 0){
-                page.insertTuple(t);
-                modified.add(page);
-                return modified;
-            } else{
-                Database.getBufferPool().releasePage(tid, pid);
+            boolean full;
+            try (PageHandle handle = pinForChange(tid, pid, rows)) {
+                HeapPage page = (HeapPage) handle.getPage();
+                if (insertInto(page, t, tid, rows)) {
+                    if (page.getNumEmptySlots() == 0) {
+                        fsm.setHasSpace(i, false);
+                    }
+                    modified.add(page);
+                    return modified;
+                }
+                full = page.getNumEmptySlots() == 0;
+            }
+            if (rows) {
+                // Slots emptied by transactions still running may be
+                // free again once they finish; only the intention lock was
+                // taken, and it is kept like any other lock
+                if (full) {
+                    fsm.setHasSpace(i, false);
+                }
+                continue;
             }
+            // The map was out of date
+            fsm.setHasSpace(i, false);
+            Database.getBufferPool().releasePage(tid, pid);
         }
 
         // At this point, no pages in this file have space to insert tuple, need new page in this file
-        // Make a new page with empty data for the next page number, write that blank page into this file
-        HeapPageId pid = new HeapPageId(this.getId(), this.numPages());
-        HeapPage newPage = new HeapPage(pid, HeapPage.createEmptyPageData());
-        writePage(newPage);
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-        page.insertTuple(t);
-        modified.add(page);
+        HeapPageId pid = appendEmptyPage();
+        try (PageHandle handle = pinForChange(tid, pid, rows)) {
+            HeapPage page = (HeapPage) handle.getPage();
+            if (!insertInto(page, t, tid, rows)) {
+                throw new DbException("new page " + pid.getPageNumber() + " is full");
+            }
+            modified.add(page);
+        }
         return modified;
     }
 
+    // Whether inserts and deletes lock single tuples under an IX page lock
+    // rather than the whole page X. Only with slot-level log records, since
+    // undoing a full page image would undo other transactions' tuples too.
+    private static boolean lockRows() {
+        return !Database.getLogFile().isFullPageImages();
+    }
+
+    // Pin a page for inserting or deleting tuples, locked X, or IX if single
+    // tuples are locked
+    private static PageHandle pinForChange(TransactionId tid, PageId pid, boolean rows)
+            throws TransactionAbortedException, DbException {
+        BufferPool pool = Database.getBufferPool();
+        return rows ? pool.pinPageForRows(tid, pid) : pool.pinPage(tid, pid, Permissions.READ_WRITE);
+    }
+
+    // Add a tuple to a page if it has a free slot, locking the tuple X if
+    // single tuples are locked; false if the page is full
+    private static boolean insertInto(HeapPage page, Tuple t, TransactionId tid, boolean rows)
+            throws DbException, TransactionAbortedException {
+        if (!rows) {
+            if (page.getNumEmptySlots() == 0) {
+                return false;
+            }
+            page.insertTuple(t);
+            return true;
+        }
+        // Other transactions may be inserting into the page too
+        synchronized (page) {
+            if (page.getNumFreeSlots(tid) == 0) {
+                return false;
+            }
+            page.insertTuple(t, tid);
+        }
+        // Nobody else can have the new tuple locked, except a transaction
+        // that emptied the slot and is just releasing its locks
+        Database.getBufferPool().lockRecord(tid, t.getRecordId(), Permissions.READ_WRITE);
+        return true;
+    }
+
+    /**
+     * Make a new page with empty data for the next page number and write
+     * that blank page into this file. Synchronized so that concurrent
+     * inserts never both add the same page.
+     *
+     * @return the id of the new page
+     */
+    private HeapPageId appendEmptyPage() throws IOException {
+        synchronized (extensionLock) {
+            HeapPageId pid = new HeapPageId(this.getId(), this.numPages());
+            writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+            getFreeSpaceMap().setHasSpace(pid.getPageNumber(), true);
+            return pid;
+        }
+    }
+
+    /**
+     * Add tuples on new pages at the end of this file, without going through
+     * the BufferPool. The pages are filled in memory and written with a
+     * single write; the transaction gets exclusive locks on them.
+     * <p>
+     * Instead of an UPDATE record per page, one BULK_INSERT record naming
+     * the new pages is logged and forced before they are written, and the
+     * pages are forced to disk before this returns. The pages never need to
+     * be redone, and undoing them means writing empty pages back. Pages the
+     * BufferPool cached under the new page numbers, such as empty pages read
+     * past the end of the file, are discarded.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tuples the tuples to add
+     * @return the new pages
+     * @see LogFile#logBulkInsert
+     */
+    public ArrayList<Page> appendPages(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> pages = new ArrayList<>();
+        if (tuples.isEmpty()) {
+            return pages;
+        }
+        int perPage = tuplesPerPage();
+        int count = (tuples.size() + perPage - 1) / perPage;
+        int pgSize = BufferPool.getPageSize();
+
+        // The table lock may have to wait, so it is taken before extensionLock
+        Database.getBufferPool().acquireTableLock(tid, this.getId(), LockMode.IX);
+        synchronized (extensionLock) {
+            int first = this.numPages();
+            Iterator<Tuple> it = tuples.iterator();
+            for (int i = 0; i < count; i++) {
+                HeapPageId pid = new HeapPageId(this.getId(), first + i);
+                // Nobody else knows about the page yet, so this never blocks
+                Database.getBufferPool().acquireLock(tid, pid, Permissions.READ_WRITE);
+                // A read past the end of the file may have cached the page
+                // empty; that frame would hide the new page, and could later
+                // be written over it
+                Database.getBufferPool().discardPage(pid);
+                HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+                for (int j = 0; j < perPage && it.hasNext(); j++) {
+                    page.insertTuple(it.next());
+                }
+                pages.add(page);
+            }
+
+            Database.getLogFile().logBulkInsert(tid, this.getId(), first, count);
+            // Snapshots keep seeing the pages empty until tid commits
+            Database.getBufferPool().getVersionStore().addPending(tid, pages);
+
+            ByteBuffer buf = ByteBuffer.allocate(count * pgSize);
+            for (Page page : pages) {
+                buf.put(page.getPageData());
+            }
+            buf.flip();
+            FileHandleCache handles = Database.getCatalog().getFileHandles();
+            handles.write(f, buf, (long) first * pgSize);
+            handles.force(f);
+
+            FreeSpaceMap fsm = getFreeSpaceMap();
+            for (Page page : pages) {
+                fsm.setHasSpace(page.getId().getPageNumber(), ((HeapPage) page).getNumEmptySlots() > 0);
+            }
+        }
+        return pages;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         ArrayList<Page> modified = new ArrayList<>();
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(),
-                Permissions.READ_WRITE);
-        page.deleteTuple(t);
-        modified.add(page);
+        boolean rows = lockRows();
+        if (rows) {
+            // Waits for a transaction that has changed the tuple to finish
+            Database.getBufferPool().lockRecord(tid, t.getRecordId(), Permissions.READ_WRITE);
+        }
+        try (PageHandle handle = pinForChange(tid, t.getRecordId().getPageId(), rows)) {
+            HeapPage page = (HeapPage) handle.getPage();
+            if (rows) {
+                page.deleteTuple(t, tid);
+            } else {
+                page.deleteTuple(t);
+            }
+            modified.add(page);
+        }
+        getFreeSpaceMap().setHasSpace(t.getRecordId().getPageId().getPageNumber(), true);
         return modified;
     }
 
@@ -149,6 +419,12 @@ public class HeapFile implements DbFile {
             private int pgNo;
             private Iterator<Tuple> tuples;
             private boolean open;
+            // Large tables are read cold so the scan does not flush the buffer pool
+            private final boolean scan;
+            // Pin on the page currently being iterated over
+            private PageHandle handle;
+            // Reads the following pages in the background
+            private final ReadAheadPrefetcher.Stream readAhead;
 
             HeapFileIterator(HeapFile heapFile){
                 this.tId = tid;
@@ -156,6 +432,10 @@ public class HeapFile implements DbFile {
                 this.numPages = this.heapFile.numPages();
                 this.tuples = null;
                 this.open = false;
+                this.scan = Database.getBufferPool().isLargeScan(this.numPages);
+                this.handle = null;
+                this.readAhead = Database.getBufferPool().getPrefetcher()
+                        .openStream(this.heapFile.getId(), this.numPages);
             }
 
             @Override
@@ -178,7 +458,12 @@ public class HeapFile implements DbFile {
                         pgNo++;
                         updatePage();
                     }
-                    return tuples.hasNext();
+                    if(!tuples.hasNext()){
+                        // Done with the last page; don't keep it pinned
+                        unpinPage();
+                        return false;
+                    }
+                    return true;
                 }
             }
 
@@ -215,12 +500,22 @@ public class HeapFile implements DbFile {
             @Override
             public void close() {
                 this.open = false;
+                unpinPage();
             }
 
             private void updatePage() throws TransactionAbortedException, DbException {
+                unpinPage();
                 HeapPageId pid = new HeapPageId(this.heapFile.getId(), this.pgNo);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tId, pid, Permissions.READ_ONLY);
-                this.tuples = page.iterator();
+                this.readAhead.pageRequested(this.pgNo);
+                this.handle = Database.getBufferPool().pinPage(tId, pid, Permissions.READ_ONLY, scan);
+                this.tuples = ((HeapPage) this.handle.getPage()).iterator();
+            }
+
+            private void unpinPage() {
+                if (this.handle != null) {
+                    this.handle.close();
+                    this.handle = null;
+                }
             }
         }
 
@@ -0,0 +1,103 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * HeapFileBenchmark compares the ways a HeapFile can read its pages: opening
+ * a RandomAccessFile per page (how HeapFile used to read pages), positional
+ * reads on a cached FileChannel, and copies out of a memory mapping.
+ * <p>
+ * It writes a table of random integers to a temporary file and reads every
+ * page of it several times with each method, reporting the best time of each.
+ * Usage:
+ * <pre>
+ * java simpledb.HeapFileBenchmark [tuples] [columns] [rounds]
+ * </pre>
+ */
+public class HeapFileBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int numTuples = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int columns = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        File f = File.createTempFile("heapfile-bench", ".dat");
+        f.deleteOnExit();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>(numTuples);
+        java.util.Random r = new java.util.Random(0);
+        for (int i = 0; i < numTuples; i++) {
+            ArrayList<Integer> tuple = new ArrayList<>(columns);
+            for (int j = 0; j < columns; j++) {
+                tuple.add(r.nextInt());
+            }
+            tuples.add(tuple);
+        }
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), columns);
+        tuples = null;
+
+        HeapFile table = Utility.openHeapFile(columns, f);
+        int numPages = table.numPages();
+        double megabytes = (double) numPages * BufferPool.getPageSize() / (1024 * 1024);
+        System.out.println(numTuples + " tuples, " + numPages + " pages ("
+                + String.format("%.1f", megabytes) + " MB)");
+
+        report("RandomAccessFile", best(rounds, () -> readWithRandomAccessFile(f, numPages)), megabytes);
+        table.setAccessMode(HeapFile.AccessMode.CHANNEL);
+        report("FileChannel", best(rounds, () -> readAll(table, numPages)), megabytes);
+        table.setAccessMode(HeapFile.AccessMode.MMAP);
+        report("mmap", best(rounds, () -> readAll(table, numPages)), megabytes);
+
+        Database.getCatalog().getFileHandles().close(f);
+    }
+
+    private interface Run {
+        long run() throws IOException;
+    }
+
+    /** @return the shortest time of a run, in nanoseconds */
+    private static long best(int rounds, Run run) throws IOException {
+        long best = Long.MAX_VALUE;
+        long checksum = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            checksum += run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        // Use the checksum so the reads cannot be optimized away
+        if (checksum == 42) {
+            System.out.print("");
+        }
+        return best;
+    }
+
+    private static void report(String method, long nanos, double megabytes) {
+        double millis = nanos / 1e6;
+        System.out.println(String.format("%-18s %10.1f ms %10.1f MB/s",
+                method, millis, megabytes / (millis / 1000)));
+    }
+
+    private static long readAll(HeapFile table, int numPages) {
+        long checksum = 0;
+        for (int i = 0; i < numPages; i++) {
+            HeapPage page = (HeapPage) table.readPage(new HeapPageId(table.getId(), i));
+            checksum += page.getNumEmptySlots();
+        }
+        return checksum;
+    }
+
+    private static long readWithRandomAccessFile(File f, int numPages) throws IOException {
+        int pgSize = BufferPool.getPageSize();
+        int tableId = f.getAbsoluteFile().hashCode();
+        long checksum = 0;
+        for (int i = 0; i < numPages; i++) {
+            byte[] data = new byte[pgSize];
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            raf.seek((long) i * pgSize);
+            raf.readFully(data);
+            raf.close();
+            checksum += new HeapPage(new HeapPageId(tableId, i), data).getNumEmptySlots();
+        }
+        return checksum;
+    }
+}
@@ -1,7 +1,17 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -90,137 +100,283 @@ public class HeapFileEncoder {
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator, null);
+  }
+
+  /** Receives progress reports from a conversion. */
+  public interface ProgressListener {
+      /**
+       * Called each time a batch of pages has been written.
+       *
+       * @param bytesRead the number of bytes of the input file converted so far
+       * @param totalBytes the size of the input file
+       * @param records the number of records written so far
+       * @param pages the number of pages written so far
+       */
+      void progress(long bytesRead, long totalBytes, long records, long pages);
+  }
+
+  /** Number of pages of records each parser task converts. */
+  private static final int PAGES_PER_CHUNK = 256;
+
+  /** Size of the reads from the input file, in bytes. */
+  private static final int READ_BUFFER_BYTES = 1 << 20;
+
+  /** Convert the specified input text file into a binary page file, as
+    * {@link #convert(File, File, int, int, Type[], char)} does, reporting
+    * progress as pages are written.
+    * <p>
+    * The conversion is a pipeline. A reader thread cuts the input into
+    * chunks of whole lines, each holding the records for a fixed number of
+    * pages; a pool of threads parses the chunks and packs their records
+    * into pages in parallel; and the calling thread writes the pages of
+    * each chunk, in order, with one large write.
+    *
+    * @param listener notified after each chunk is written; may be null
+    */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator,
+                 ProgressListener listener)
+      throws IOException {
+
+      final PageLayout layout = new PageLayout(npagebytes, numFields, typeAr, fieldSeparator);
+      final long totalBytes = inFile.length();
+
+      int threads = Runtime.getRuntime().availableProcessors();
+      final ExecutorService parsers = Executors.newFixedThreadPool(threads, r -> {
+          Thread t = new Thread(r, "simpledb-convert-parser");
+          t.setDaemon(true);
+          return t;
+      });
+      // Bounded, so the reader cannot get far ahead of the writer
+      final BlockingQueue<Future<EncodedChunk>> chunks = new ArrayBlockingQueue<>(2 * threads);
+
+      Thread reader = new Thread(() -> {
+          try {
+              readChunks(inFile, layout, parsers, chunks);
+              chunks.put(CompletableFuture.completedFuture(null));
+          } catch (InterruptedException e) {
+              // The writer gave up
+          } catch (IOException | RuntimeException e) {
+              CompletableFuture<EncodedChunk> failed = new CompletableFuture<>();
+              failed.completeExceptionally(e);
+              try {
+                  chunks.put(failed);
+              } catch (InterruptedException ie) {
+                  // The writer gave up
+              }
+          }
+      }, "simpledb-convert-reader");
+      reader.setDaemon(true);
+      reader.start();
 
-      int nrecbytes = 0;
-      for (int i = 0; i < numFields ; i++) {
-          nrecbytes += typeAr[i].getLen();
+      long records = 0;
+      long pages = 0;
+      try (FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+          while (true) {
+              EncodedChunk chunk = chunks.take().get();
+              if (chunk == null) {
+                  break;
+              }
+              write(out, ByteBuffer.wrap(chunk.pages));
+              records += chunk.records;
+              pages += chunk.pages.length / npagebytes;
+              if (listener != null) {
+                  listener.progress(chunk.endOffset, totalBytes, records, pages);
+              }
+          }
+          // An empty file still gets one (empty) page
+          if (pages == 0) {
+              write(out, ByteBuffer.wrap(new byte[npagebytes]));
+          }
+      } catch (InterruptedException e) {
+          throw new InterruptedIOException("conversion interrupted");
+      } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+              throw (IOException) e.getCause();
+          }
+          throw new IOException("conversion failed", e.getCause());
+      } finally {
+          reader.interrupt();
+          parsers.shutdownNow();
+      }
+  }
+
+  private static void write(FileChannel out, ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) {
+          out.write(buf);
+      }
+  }
+
+  /**
+   * Read the input file and hand chunks of it to the parsers. Every chunk
+   * but the last holds exactly the records of PAGES_PER_CHUNK pages, so
+   * parsers can fill whole pages independently of each other. Lines that
+   * are empty (apart from carriage returns) are not records.
+   */
+  private static void readChunks(File inFile, final PageLayout layout, ExecutorService parsers,
+                                 BlockingQueue<Future<EncodedChunk>> chunks)
+      throws IOException, InterruptedException {
+      int recordsPerChunk = PAGES_PER_CHUNK * layout.nrecords;
+      byte[] buf = new byte[READ_BUFFER_BYTES];
+      ByteArrayOutputStream chunk = new ByteArrayOutputStream(READ_BUFFER_BYTES);
+      int records = 0;
+      boolean lineHasData = false;
+      long offset = 0;
+
+      try (InputStream in = new FileInputStream(inFile)) {
+          int n;
+          while ((n = in.read(buf)) > 0) {
+              int start = 0;
+              for (int i = 0; i < n; i++) {
+                  byte b = buf[i];
+                  if (b == '\n') {
+                      if (lineHasData) {
+                          records++;
+                          lineHasData = false;
+                          if (records == recordsPerChunk) {
+                              chunk.write(buf, start, i + 1 - start);
+                              start = i + 1;
+                              submit(chunk.toByteArray(), records, offset + start, layout, parsers, chunks);
+                              chunk.reset();
+                              records = 0;
+                          }
+                      }
+                  } else if (b != '\r') {
+                      lineHasData = true;
+                  }
+              }
+              chunk.write(buf, start, n - start);
+              offset += n;
+          }
+      }
+      // The last line need not end with a newline
+      if (lineHasData) {
+          records++;
+      }
+      if (records > 0) {
+          submit(chunk.toByteArray(), records, offset, layout, parsers, chunks);
+      }
+  }
+
+  private static void submit(final byte[] text, final int records, final long endOffset,
+                             final PageLayout layout, ExecutorService parsers,
+                             BlockingQueue<Future<EncodedChunk>> chunks) throws InterruptedException {
+      chunks.put(parsers.submit(() -> new EncodedChunk(layout.encode(text, records), records, endOffset)));
+  }
+
+  /** The pages encoded from one chunk of the input. */
+  private static class EncodedChunk {
+      final byte[] pages;
+      final int records;
+      // Offset in the input file just past the chunk
+      final long endOffset;
+
+      EncodedChunk(byte[] pages, int records, long endOffset) {
+          this.pages = pages;
+          this.records = records;
+          this.endOffset = endOffset;
+      }
+  }
+
+  /** How records of a table are laid out on HeapPages. */
+  private static class PageLayout {
+      final int npagebytes;
+      final int numFields;
+      final Type[] typeAr;
+      final char fieldSeparator;
+      final int nrecbytes;
+      final int nrecords;
+      final int nheaderbytes;
+
+      PageLayout(int npagebytes, int numFields, Type[] typeAr, char fieldSeparator) {
+          this.npagebytes = npagebytes;
+          this.numFields = numFields;
+          this.typeAr = typeAr;
+          this.fieldSeparator = fieldSeparator;
+          int recbytes = 0;
+          for (int i = 0; i < numFields; i++) {
+              recbytes += typeAr[i].getLen();
+          }
+          this.nrecbytes = recbytes;
+          this.nrecords = (npagebytes * 8) / (nrecbytes * 8 + 1);  //floor comes for free
+          // one header bit per record, rounded up to whole bytes
+          this.nheaderbytes = (nrecords + 7) / 8;
+      }
+
+      /**
+       * Parse the lines of a chunk and pack their records into pages.
+       *
+       * @param text whole lines of the input file
+       * @param records the number of records in text
+       * @return the pages, padded with zeroes
+       */
+      byte[] encode(byte[] text, int records) throws IOException {
+          int npages = (records + nrecords - 1) / nrecords;
+          byte[] pages = new byte[npages * npagebytes];
+          ByteBuffer out = ByteBuffer.wrap(pages);
+          String s = new String(text);
+
+          int record = 0;
+          int pos = 0;
+          while (pos < s.length()) {
+              int end = s.indexOf('\n', pos);
+              if (end < 0) {
+                  end = s.length();
+              }
+              // Carriage returns are ignored wherever they are
+              String line = s.substring(pos, end).replace("\r", "");
+              pos = end + 1;
+              if (line.isEmpty()) {
+                  continue;
+              }
+
+              int page = record / nrecords;
+              int slot = record % nrecords;
+              pages[page * npagebytes + slot / 8] |= (byte) (1 << (slot % 8));
+              out.position(page * npagebytes + nheaderbytes + slot * nrecbytes);
+
+              int fieldStart = 0;
+              for (int fieldNo = 0; fieldNo < numFields; fieldNo++) {
+                  int fieldEnd = line.indexOf(fieldSeparator, fieldStart);
+                  if (fieldNo == numFields - 1) {
+                      if (fieldEnd >= 0) {
+                          throw new IOException("malformed line, more than " + numFields + " fields: " + line);
+                      }
+                      fieldEnd = line.length();
+                  } else if (fieldEnd < 0) {
+                      throw new IOException("malformed line, fewer than " + numFields + " fields: " + line);
+                  }
+                  writeField(out, typeAr[fieldNo], line.substring(fieldStart, fieldEnd));
+                  fieldStart = fieldEnd + 1;
+              }
+              record++;
+          }
+          return pages;
+      }
+
+      private static void writeField(ByteBuffer out, Type type, String s) {
+          if (type == Type.INT_TYPE) {
+              try {
+                  out.putInt(Integer.parseInt(s.trim()));
+              } catch (NumberFormatException e) {
+                  System.out.println ("BAD LINE : " + s);
+                  // Leave the field zero so the rest of the record stays in place
+                  out.position(out.position() + type.getLen());
+              }
+          } else if (type == Type.STRING_TYPE) {
+              s = s.trim();
+              if (s.length() > Type.STRING_LEN) {
+                  s = s.substring(0, Type.STRING_LEN);
+              }
+              out.putInt(s.length());
+              // Like DataOutputStream.writeBytes, keep the low byte of each char
+              for (int i = 0; i < s.length(); i++) {
+                  out.put((byte) s.charAt(i));
+              }
+              out.position(out.position() + Type.STRING_LEN - s.length());
+          }
       }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
-      
-    //  per record, we need one bit; there are nrecords per page, so we need
-    // nrecords bits, i.e., ((nrecords/32)+1) integers.
-    int nheaderbytes = (nrecords / 8);
-    if (nheaderbytes * 8 < nrecords)
-        nheaderbytes++;  //ceiling
-    int nheaderbits = nheaderbytes * 8;
-
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
-    // our numbers probably won't be much larger than 1024 digits
-    char buf[] = new char[1024];
-
-    int curpos = 0;
-    int recordcount = 0;
-    int npages = 0;
-    int fieldNo = 0;
-
-    ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-    DataOutputStream headerStream = new DataOutputStream(headerBAOS);
-    ByteArrayOutputStream pageBAOS = new ByteArrayOutputStream(npagebytes);
-    DataOutputStream pageStream = new DataOutputStream(pageBAOS);
-
-    boolean done = false;
-    boolean first = true;
-    while (!done) {
-        int c = br.read();
-        
-        // Ignore Windows/Notepad special line endings
-        if (c == '\r')
-            continue;
-
-        if (c == '\n') {
-            if (first)
-                continue;
-            recordcount++;
-            first = true;
-        } else
-            first = false;
-        if (c == fieldSeparator || c == '\n' || c == '\r') {
-            String s = new String(buf, 0, curpos);
-            if (typeAr[fieldNo] == Type.INT_TYPE) {
-                try {
-                    pageStream.writeInt(Integer.parseInt(s.trim()));
-                } catch (NumberFormatException e) {
-                    System.out.println ("BAD LINE : " + s);
-                }
-            }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
-                s = s.trim();
-                int overflow = Type.STRING_LEN - s.length();
-                if (overflow < 0) {
-                    String news = s.substring(0,Type.STRING_LEN);
-                    s  = news;
-                }
-                pageStream.writeInt(s.length());
-                pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
-            }
-            curpos = 0;
-            if (c == '\n')
-                fieldNo = 0;
-            else
-                fieldNo++;
-            
-        } else if (c == -1) {
-            done = true;
-            
-        } else {
-            buf[curpos++] = (char)c;
-            continue;
-        }
-        
-        // if we wrote a full page of records, or if we're done altogether,
-        // write out the header of the page.
-        //
-        // in the header, write a 1 for bits that correspond to records we've
-        // written and 0 for empty slots.
-        //
-        // when we're done, also flush the page to disk, but only if it has
-        // records on it.  however, if this file is empty, do flush an empty
-        // page to disk.
-        if (recordcount >= nrecords
-            || done && recordcount > 0
-            || done && npages == 0) {
-            int i = 0;
-            byte headerbyte = 0;
-            
-            for (i=0; i<nheaderbits; i++) {
-                if (i < recordcount)
-                    headerbyte |= (1 << (i % 8));
-                
-                if (((i+1) % 8) == 0) {
-                    headerStream.writeByte(headerbyte);
-                    headerbyte = 0;
-                }
-            }
-            
-            if (i % 8 > 0)
-                headerStream.writeByte(headerbyte);
-            
-            // pad the rest of the page with zeroes
-            
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
-                pageStream.writeByte(0);
-            
-            // write header and body to file
-            headerStream.flush();
-            headerBAOS.writeTo(os);
-            pageStream.flush();
-            pageBAOS.writeTo(os);
-            
-            // reset header and body for next page
-            headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-            headerStream = new DataOutputStream(headerBAOS);
-            pageBAOS = new ByteArrayOutputStream(npagebytes);
-            pageStream = new DataOutputStream(pageBAOS);
-            
-            recordcount = 0;
-            npages++;
-        }
-    }
-    br.close();
-    os.close();
   }
 }
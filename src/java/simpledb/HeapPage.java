@@ -15,14 +15,32 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
+    private final int headerSize;
+    private final int tupleSize;
     private boolean dirty;
     private TransactionId dirtyTid;
-
+    private volatile long lsn;
+
+    // The page in its on-disk format, the only copy of its contents. Tuples
+    // decode their fields from it lazily, so once the array has been handed
+    // out (shared) it is never changed again; changes go to a fresh copy.
+    private byte[] data;
+    private boolean shared;
+    // Tuples handed out so far, by slot; null for slots not yet asked for
+    private final Tuple tuples[];
+
+    // The page as of the last commit, captured when the page is first
+    // changed after it; null while the page is unchanged
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
+
+    // For pages changed a tuple at a time, under record locks: the
+    // transaction whose uncommitted change each slot holds, or null. Such a
+    // page may hold the changes of several transactions at once, and each
+    // one's changes are committed or undone on its own slots only.
+    private final TransactionId[] writers;
+    private int numWriterSlots;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -36,6 +54,11 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps a copy of data, BufferPool.getPageSize() bytes long and
+     * zero-padded if data is shorter, instead of decoding it: tuples are
+     * created when they are first asked for, and their fields when those
+     * are first read. Later changes to data do not affect the page.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -46,24 +69,12 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        this.data = Arrays.copyOf(data, BufferPool.getPageSize());
+        this.shared = false;
+        this.tuples = new Tuple[numSlots];
+        this.writers = new TransactionId[numSlots];
     }
 
     /** Retrieve the number of tuples on this page.
@@ -94,9 +105,17 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
-            synchronized(oldDataLock)
+            synchronized(this)
             {
-                oldDataRef = oldData;
+                synchronized(oldDataLock)
+                {
+                    oldDataRef = oldData;
+                }
+                // An unchanged page is its own before image
+                if (oldDataRef == null) {
+                    oldDataRef = data;
+                    shared = true;
+                }
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -108,9 +127,11 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
+        // The current data is now the committed state; the next change
+        // captures it again
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
         }
     }
 
@@ -121,38 +142,27 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    /** @return the offset of a slot's tuple in the page data */
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * tupleSize;
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Make data safe to change, copying it first if it has been shared. On
+     * the first change since the last commit the current data becomes the
+     * before image, so pages that are only read never keep one.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private void makeWritable() {
+        synchronized(oldDataLock) {
+            if (oldData == null) {
+                oldData = data;
+                shared = true;
             }
-            return null;
         }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        if (shared) {
+            data = data.clone();
+            shared = false;
         }
-
-        return t;
     }
 
     /**
@@ -166,65 +176,8 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+    public synchronized byte[] getPageData() {
+        return data.clone();
     }
 
     /**
@@ -248,15 +201,42 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         RecordId rid = t.getRecordId();
         if(rid.getPageId() != this.pid){
             throw new DbException("tuple not in this page");
-        } else if(!isSlotUsed(rid.getTupleNumber())){
+        } else if(!slotUsed(rid.getTupleNumber())){
             throw new DbException("tuple slot already empty");
         }
 
-        markSlotUsed(rid.getTupleNumber(), false);
+        int slot = rid.getTupleNumber();
+        makeWritable();
+        markSlotUsed(slot, false);
+        // Empty slots are stored as zeros
+        Arrays.fill(data, slotOffset(slot), slotOffset(slot) + tupleSize, (byte) 0);
+        tuples[slot] = null;
+    }
+
+    /**
+     * Delete the specified tuple from the page on behalf of a transaction
+     * that holds a lock on the tuple only, not on the whole page: the
+     * change is recorded as the transaction's, so that other transactions
+     * may change other tuples of the page meanwhile.
+     * @throws DbException if this tuple is not on this page, its slot is
+     *         already empty, or another transaction has an uncommitted
+     *         change on it
+     * @param t The tuple to delete
+     * @param tid The transaction deleting it
+     * @see #setBeforeImage(TransactionId)
+     * @see #abortWrites
+     */
+    public synchronized void deleteTuple(Tuple t, TransactionId tid) throws DbException {
+        int slot = t.getRecordId().getTupleNumber();
+        if (slot >= 0 && slot < numSlots && isWrittenByOther(slot, tid)) {
+            throw new DbException("tuple is being changed by another transaction");
+        }
+        deleteTuple(t);
+        setWriter(slot, tid);
     }
 
     /**
@@ -266,26 +246,76 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         if(!t.getTupleDesc().equals(this.td)){
             throw new DbException("tuple schema mismatch");
-        } else if(getNumEmptySlots() == 0){
+        } else if(countEmptySlots() == 0){
             throw new DbException("page is full");
         }
 
-        for(int i = 0; i < tuples.length; i++){
+        for(int i = 0; i < numSlots; i++){
             // Iterate through slots to get next unused slot to insert tuple
-            if(!isSlotUsed(i)){
-                markSlotUsed(i, true);
-                RecordId rid = new RecordId(this.pid, i);
-                t.setRecordId(rid);
-                tuples[i] = t;
+            if(!slotUsed(i)){
+                insertInto(i, t);
                 break;
             }
         }
 
     }
 
+    /**
+     * Adds the specified tuple to the page on behalf of a transaction that
+     * locks single tuples, as {@link #deleteTuple(Tuple, TransactionId)}
+     * does. Slots emptied by other transactions that have not committed yet
+     * are not reused, since their tuples come back if those abort.
+     * @throws DbException if the page has no free slot or tupledesc is
+     *         mismatch.
+     * @param t The tuple to add.
+     * @param tid The transaction adding it
+     * @see #getNumFreeSlots
+     */
+    public synchronized void insertTuple(Tuple t, TransactionId tid) throws DbException {
+        if(!t.getTupleDesc().equals(this.td)){
+            throw new DbException("tuple schema mismatch");
+        }
+        for (int i = 0; i < numSlots; i++) {
+            if (!slotUsed(i) && !isWrittenByOther(i, tid)) {
+                insertInto(i, t);
+                setWriter(i, tid);
+                return;
+            }
+        }
+        throw new DbException("page is full");
+    }
+
+    private void insertInto(int slot, Tuple t) throws DbException {
+        byte[] bytes = serialize(t);
+        makeWritable();
+        System.arraycopy(bytes, 0, data, slotOffset(slot), tupleSize);
+        markSlotUsed(slot, true);
+        RecordId rid = new RecordId(this.pid, slot);
+        t.setRecordId(rid);
+        tuples[slot] = t;
+    }
+
+    /** Write the fields of a tuple in the on-disk format of a slot. */
+    private byte[] serialize(Tuple t) throws DbException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j=0; j<td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("could not serialize tuple: " + e);
+        }
+        if (baos.size() != tupleSize) {
+            throw new DbException("tuple serialized to " + baos.size() + " bytes, expected " + tupleSize);
+        }
+        return baos.toByteArray();
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -301,9 +331,18 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty.
+     * While transactions that lock single tuples have uncommitted changes on the page, one of
+     * them is returned, so the page is not written out before they finish.
      */
-    public TransactionId isDirty() {
+    public synchronized TransactionId isDirty() {
+        if (numWriterSlots > 0) {
+            for (TransactionId w : writers) {
+                if (w != null) {
+                    return w;
+                }
+            }
+        }
         if(!this.dirty){
             return null;
         } else{
@@ -311,13 +350,187 @@ public class HeapPage implements Page {
         }
     }
 
+    /** @return the transactions with uncommitted changes on single tuples of this page */
+    public synchronized Set<TransactionId> getWriters() {
+        Set<TransactionId> tids = new HashSet<>();
+        if (numWriterSlots > 0) {
+            for (TransactionId w : writers) {
+                if (w != null) {
+                    tids.add(w);
+                }
+            }
+        }
+        return tids;
+    }
+
+    /** @return whether tid has uncommitted changes on single tuples of this page */
+    public synchronized boolean hasWriter(TransactionId tid) {
+        if (numWriterSlots > 0) {
+            for (TransactionId w : writers) {
+                if (tid.equals(w)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** @return whether a transaction other than tid has uncommitted changes on single tuples of this page */
+    public synchronized boolean hasOtherWriters(TransactionId tid) {
+        if (numWriterSlots > 0) {
+            for (TransactionId w : writers) {
+                if (w != null && !w.equals(tid)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of empty slots a transaction that locks single
+     * tuples may insert into: those not emptied by other transactions that
+     * have not committed yet.
+     */
+    public synchronized int getNumFreeSlots(TransactionId tid) {
+        int free = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!slotUsed(i) && !isWrittenByOther(i, tid)) {
+                free++;
+            }
+        }
+        return free;
+    }
+
+    /**
+     * Return the page as it would be if only tid's changes were made to its
+     * before image, e.g. to log tid's changes alone. Unless the page is
+     * changed a tuple at a time, that is the page itself.
+     */
+    public synchronized HeapPage getAfterImage(TransactionId tid) {
+        if (numWriterSlots == 0) {
+            return this;
+        }
+        byte[] image = committedData().clone();
+        for (int i = 0; i < numSlots; i++) {
+            if (tid.equals(writers[i])) {
+                copySlot(data, image, i);
+            }
+        }
+        try {
+            return new HeapPage(pid, image);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Make a committing transaction's changes part of the before image.
+     * Unless other transactions have uncommitted changes on the page, the
+     * whole page is committed, as with {@link #setBeforeImage()}.
+     */
+    public synchronized void setBeforeImage(TransactionId tid) {
+        if (!hasOtherWriters(tid)) {
+            clearWriters(tid);
+            setBeforeImage();
+            return;
+        }
+        synchronized (oldDataLock) {
+            byte[] image = oldData.clone();
+            for (int i = 0; i < numSlots; i++) {
+                if (tid.equals(writers[i])) {
+                    copySlot(data, image, i);
+                }
+            }
+            oldData = image;
+        }
+        clearWriters(tid);
+    }
+
+    /**
+     * Undo the uncommitted changes a transaction made on single tuples of
+     * this page, setting each of its slots back to the before image and
+     * leaving the other transactions' changes alone.
+     */
+    public synchronized void abortWrites(TransactionId tid) {
+        if (numWriterSlots == 0) {
+            return;
+        }
+        byte[] before = committedData();
+        makeWritable();
+        for (int i = 0; i < numSlots; i++) {
+            if (tid.equals(writers[i])) {
+                copySlot(before, data, i);
+                tuples[i] = null;
+            }
+        }
+        clearWriters(tid);
+    }
+
+    // The data as of the last commit
+    private byte[] committedData() {
+        synchronized (oldDataLock) {
+            return oldData == null ? data : oldData;
+        }
+    }
+
+    // Copy a slot's used bit and tuple from one version of the data to another
+    private void copySlot(byte[] from, byte[] to, int slot) {
+        int bit = 1 << (slot % 8);
+        to[slot / 8] = (byte) ((to[slot / 8] & ~bit) | (from[slot / 8] & bit));
+        System.arraycopy(from, slotOffset(slot), to, slotOffset(slot), tupleSize);
+    }
+
+    private boolean isWrittenByOther(int slot, TransactionId tid) {
+        return writers[slot] != null && !writers[slot].equals(tid);
+    }
+
+    private void setWriter(int slot, TransactionId tid) {
+        if (writers[slot] == null) {
+            numWriterSlots++;
+        }
+        writers[slot] = tid;
+    }
+
+    private void clearWriters(TransactionId tid) {
+        for (int i = 0; i < numSlots && numWriterSlots > 0; i++) {
+            if (tid.equals(writers[i])) {
+                writers[i] = null;
+                numWriterSlots--;
+            }
+        }
+    }
+
+    /**
+     * Compute the changes that turn another version of this page into this
+     * one, e.g. to log them.
+     *
+     * @param before an older version of this page
+     */
+    HeapPageDelta deltaFrom(HeapPage before) {
+        return HeapPageDelta.diff(pid, before.getPageData(), getPageData(),
+                numSlots, headerSize, tupleSize);
+    }
+
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
-    public int getNumEmptySlots() {
+    public synchronized int getNumEmptySlots() {
+        return countEmptySlots();
+    }
+
+    private int countEmptySlots() {
         int totalEmpty = 0;
-        for(int i = 0; i < tuples.length; i++){
-            if(!isSlotUsed(i)){
+        for(int i = 0; i < numSlots; i++){
+            if(!slotUsed(i)){
                 totalEmpty++;
             }
         }
@@ -327,20 +540,25 @@ public class HeapPage implements Page {
     /**
      * Returns true if associated slot on this page is filled.
      */
-    public boolean isSlotUsed(int i) {
+    public synchronized boolean isSlotUsed(int i) {
+        return slotUsed(i);
+    }
+
+    private boolean slotUsed(int i) {
         int byteIdx = i / 8;
         int offset = i % 8;
-        byte thisByte = header[byteIdx];
+        byte thisByte = data[byteIdx];
         return ((thisByte >> offset) & 1) == 1;
     }
 
     /**
-     * Abstraction to fill or clear a slot on this page.
+     * Abstraction to fill or clear a slot on this page. The data must have
+     * been made writable.
      */
     private void markSlotUsed(int i, boolean value) {
         int byteIdx = i / 8;
         int offset = i % 8;
-        byte thisByte = header[byteIdx];
+        byte thisByte = data[byteIdx];
 
         if (value) {
             thisByte |= (1 << offset);
@@ -348,17 +566,24 @@ public class HeapPage implements Page {
             thisByte &= ~(1 << offset);
         }
 
-        header[byteIdx] = thisByte;
+        data[byteIdx] = thisByte;
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
-    public Iterator<Tuple> iterator() {
+    public synchronized Iterator<Tuple> iterator() {
         List<Tuple> validTuples = new ArrayList<>();
-        for(int i = 0; i < tuples.length; i++){
-            if(isSlotUsed(i)){
+        for(int i = 0; i < numSlots; i++){
+            if(slotUsed(i)){
+                if (tuples[i] == null) {
+                    // Fields are decoded from data when first read
+                    Tuple t = new Tuple(td, data, slotOffset(i));
+                    t.setRecordId(new RecordId(pid, i));
+                    tuples[i] = t;
+                    shared = true;
+                }
                 validTuples.add(tuples[i]);
             }
         }
@@ -366,4 +591,3 @@ public class HeapPage implements Page {
     }
 
 }
-
@@ -0,0 +1,228 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * HeapPageDelta describes how the slots of a HeapPage changed between two
+ * versions of the page: which tuples were inserted, deleted or updated, with
+ * the bytes of each tuple before and after. The LogFile logs deltas instead
+ * of two full page images, which for a change to a single tuple makes an
+ * UPDATE record some tens of bytes instead of two pages.
+ * <p>
+ * Applying a delta sets each changed slot to its new state, whatever the
+ * slot held before, so redoing a delta twice or undoing it twice does no
+ * harm.
+ *
+ * @see HeapPage#deltaFrom
+ * @see LogFile#logWrite
+ */
+public class HeapPageDelta {
+
+    static final byte INSERT = 1;
+    static final byte DELETE = 2;
+    static final byte UPDATE = 3;
+
+    /** The change to one slot. */
+    private static class Change {
+        final byte op;
+        final int slot;
+        // Offset of the slot's tuple in the page data
+        final int offset;
+        // The tuple before and after; null if the slot was or became empty
+        final byte[] before;
+        final byte[] after;
+
+        Change(byte op, int slot, int offset, byte[] before, byte[] after) {
+            this.op = op;
+            this.slot = slot;
+            this.offset = offset;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    private final HeapPageId pid;
+    private final List<Change> changes;
+
+    private HeapPageDelta(HeapPageId pid, List<Change> changes) {
+        this.pid = pid;
+        this.changes = changes;
+    }
+
+    /**
+     * Compute the delta between two versions of a page's data.
+     *
+     * @param pid the id of the page
+     * @param before the data of the older version
+     * @param after the data of the newer version
+     * @param numSlots the number of slots on the page
+     * @param headerSize the size of the page header, in bytes
+     * @param tupleSize the size of a tuple, in bytes
+     */
+    static HeapPageDelta diff(HeapPageId pid, byte[] before, byte[] after,
+                              int numSlots, int headerSize, int tupleSize) {
+        List<Change> changes = new ArrayList<>();
+        for (int slot = 0; slot < numSlots; slot++) {
+            boolean wasUsed = isUsed(before, slot);
+            boolean isUsed = isUsed(after, slot);
+            int offset = headerSize + slot * tupleSize;
+            int end = offset + tupleSize;
+            if (wasUsed && isUsed) {
+                if (!rangeEquals(before, after, offset, end)) {
+                    changes.add(new Change(UPDATE, slot, offset,
+                            Arrays.copyOfRange(before, offset, end),
+                            Arrays.copyOfRange(after, offset, end)));
+                }
+            } else if (isUsed) {
+                changes.add(new Change(INSERT, slot, offset, null,
+                        Arrays.copyOfRange(after, offset, end)));
+            } else if (wasUsed) {
+                changes.add(new Change(DELETE, slot, offset,
+                        Arrays.copyOfRange(before, offset, end), null));
+            }
+        }
+        return new HeapPageDelta(pid, changes);
+    }
+
+    /** @return the id of the page the delta applies to */
+    public HeapPageId getPageId() {
+        return pid;
+    }
+
+    /** @return true if the two versions of the page had the same tuples */
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /** @return the number of slots that changed */
+    public int size() {
+        return changes.size();
+    }
+
+    /** @return the delta that takes the newer version back to the older one */
+    public HeapPageDelta inverse() {
+        List<Change> inverted = new ArrayList<>(changes.size());
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            Change c = changes.get(i);
+            byte op = c.op == INSERT ? DELETE : c.op == DELETE ? INSERT : UPDATE;
+            inverted.add(new Change(op, c.slot, c.offset, c.after, c.before));
+        }
+        return new HeapPageDelta(pid, inverted);
+    }
+
+    /**
+     * Apply the delta to the data of a page, turning the older version of
+     * each changed slot into the newer one.
+     *
+     * @param data the page data, changed in place
+     */
+    public void redo(byte[] data) {
+        for (Change c : changes) {
+            if (c.after == null) {
+                setUsed(data, c.slot, false);
+                Arrays.fill(data, c.offset, c.offset + c.before.length, (byte) 0);
+            } else {
+                setUsed(data, c.slot, true);
+                System.arraycopy(c.after, 0, data, c.offset, c.after.length);
+            }
+        }
+    }
+
+    /**
+     * Undo the delta on the data of a page, turning the newer version of
+     * each changed slot back into the older one.
+     *
+     * @param data the page data, changed in place
+     */
+    public void undo(byte[] data) {
+        inverse().redo(data);
+    }
+
+    /**
+     * Write the delta out; the page id is left to the caller. The format
+     * is the number of changes followed by, for each change, a byte
+     * operation, the int slot number, the int offset and the int length of
+     * the tuple, the tuple before (unless the operation is an INSERT) and
+     * the tuple after (unless it is a DELETE).
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(changes.size());
+        for (Change c : changes) {
+            out.writeByte(c.op);
+            out.writeInt(c.slot);
+            out.writeInt(c.offset);
+            out.writeInt(c.before != null ? c.before.length : c.after.length);
+            if (c.before != null) {
+                out.write(c.before);
+            }
+            if (c.after != null) {
+                out.write(c.after);
+            }
+        }
+    }
+
+    /** Read a delta written by {@link #write}. */
+    static HeapPageDelta read(HeapPageId pid, DataInput in) throws IOException {
+        int n = in.readInt();
+        List<Change> changes = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            byte op = in.readByte();
+            int slot = in.readInt();
+            int offset = in.readInt();
+            int len = in.readInt();
+            byte[] before = null;
+            byte[] after = null;
+            if (op != INSERT) {
+                before = new byte[len];
+                in.readFully(before);
+            }
+            if (op != DELETE) {
+                after = new byte[len];
+                in.readFully(after);
+            }
+            changes.add(new Change(op, slot, offset, before, after));
+        }
+        return new HeapPageDelta(pid, changes);
+    }
+
+    public String toString() {
+        int inserts = 0, deletes = 0, updates = 0;
+        for (Change c : changes) {
+            if (c.op == INSERT) {
+                inserts++;
+            } else if (c.op == DELETE) {
+                deletes++;
+            } else {
+                updates++;
+            }
+        }
+        return inserts + " inserts, " + deletes + " deletes, " + updates + " updates";
+    }
+
+    // The header bit layout of HeapPage
+    private static boolean isUsed(byte[] data, int slot) {
+        return ((data[slot / 8] >> (slot % 8)) & 1) == 1;
+    }
+
+    private static void setUsed(byte[] data, int slot, boolean used) {
+        if (used) {
+            data[slot / 8] |= (byte) (1 << (slot % 8));
+        } else {
+            data[slot / 8] &= (byte) ~(1 << (slot % 8));
+        }
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
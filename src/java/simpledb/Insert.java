@@ -1,15 +1,24 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
  * constructor
+ * <p>
+ * Once more than a page worth of tuples is to be inserted into a HeapFile,
+ * the remaining tuples are bulk loaded onto new pages instead.
+ *
+ * @see BufferPool#bulkInsert
  */
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Number of pages worth of tuples handed to each bulk insert. */
+    private static final int BULK_BATCH_PAGES = 256;
+
     private final TransactionId t;
     private final int tableId;
     private OpIterator child;
@@ -79,16 +88,42 @@ public class Insert extends Operator {
             TupleDesc td = new TupleDesc(type, fName);
             this.tuple = new Tuple(td);
 
-            // While child operator has more tuples to insert, keep inserting tuple
-            while(child.hasNext()){
-                Tuple tp = child.next();
-                try {
-                    Database.getBufferPool().insertTuple(this.t, this.tableId, tp);
-                } catch(IOException e){
-                    System.out.println("insert failed");
-                    e.printStackTrace();
+            // Hold back up to a page worth of tuples; if there are more, the
+            // insert is big enough to load onto new pages
+            DbFile file = Database.getCatalog().getDatabaseFile(this.tableId);
+            int perPage = file instanceof HeapFile ? ((HeapFile) file).tuplesPerPage() : 0;
+            ArrayList<Tuple> pending = new ArrayList<>();
+            while(child.hasNext() && pending.size() <= perPage){
+                pending.add(child.next());
+            }
+
+            try {
+                if(perPage > 0 && pending.size() > perPage){
+                    int batch = BULK_BATCH_PAGES * perPage;
+                    while(child.hasNext()){
+                        pending.add(child.next());
+                        if(pending.size() >= batch){
+                            Database.getBufferPool().bulkInsert(this.t, this.tableId, pending);
+                            count += pending.size();
+                            pending.clear();
+                        }
+                    }
+                    Database.getBufferPool().bulkInsert(this.t, this.tableId, pending);
+                    count += pending.size();
+                } else {
+                    for(Tuple tp : pending){
+                        Database.getBufferPool().insertTuple(this.t, this.tableId, tp);
+                        count++;
+                    }
+                    // While child operator has more tuples to insert, keep inserting tuple
+                    while(child.hasNext()){
+                        Database.getBufferPool().insertTuple(this.t, this.tableId, child.next());
+                        count++;
+                    }
                 }
-                count++;
+            } catch(IOException e){
+                System.out.println("insert failed");
+                e.printStackTrace();
             }
             this.tuple.setField(0, new IntField(count));
             return this.tuple;
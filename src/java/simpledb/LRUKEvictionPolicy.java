@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * LRUKEvictionPolicy evicts the page whose K-th most recent access lies
+ * furthest in the past (its "backward K-distance"). Pages referenced fewer
+ * than K times have an infinite backward K-distance and are evicted first,
+ * oldest last access first, which keeps pages touched once by a scan from
+ * displacing pages that are referenced repeatedly.
+ */
+public class LRUKEvictionPolicy implements EvictionPolicy {
+
+    /** Default number of references tracked per page. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    // For each resident page, the logical times of its last k references,
+    // most recent first; unused entries are 0
+    private final Map<PageId, long[]> history;
+    private long clock;
+
+    public LRUKEvictionPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of references tracked per page; must be at least 1
+     */
+    public LRUKEvictionPolicy(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        this.k = k;
+        this.history = new HashMap<>();
+        this.clock = 0;
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (!history.containsKey(pid)) {
+            history.put(pid, new long[k]);
+        }
+        reference(pid);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        if (history.containsKey(pid)) {
+            reference(pid);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        history.remove(pid);
+    }
+
+    public synchronized void pageDiscarded(PageId pid) {
+        history.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+
+        for (Map.Entry<PageId, long[]> entry : history.entrySet()) {
+            long[] refs = entry.getValue();
+            long kth = refs[k - 1];
+            long last = refs[0];
+            // Smaller K-th reference time means larger backward K-distance;
+            // 0 means fewer than K references, i.e. infinite distance
+            if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+                if (evictable.test(entry.getKey())) {
+                    victim = entry.getKey();
+                    victimKth = kth;
+                    victimLast = last;
+                }
+            }
+        }
+        return victim;
+    }
+
+    private void reference(PageId pid) {
+        long[] refs = history.get(pid);
+        System.arraycopy(refs, 0, refs, 1, k - 1);
+        refs[0] = ++clock;
+    }
+}
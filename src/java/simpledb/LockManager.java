@@ -1,202 +1,951 @@
 package simpledb;
 
-import java.io.*;
-
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Random;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The LockManager class handles the acquisition and release of locks on pages by transactions in SimpleDB.
- * It implements methods for acquiring shared and exclusive locks, upgrading locks, releasing locks, detecting deadlocks, 
+ * It implements methods for acquiring shared and exclusive locks, upgrading locks, releasing locks, detecting deadlocks,
  * and managing transaction pages and waiting transactions.
+ * <p>
+ * Locks live in a lock table hashed on the PageId and split into stripes,
+ * each with its own latch, so transactions locking different pages do not
+ * contend. Each locked page has an entry with the transactions holding it
+ * and a FIFO queue of the requests waiting for it. A request that cannot be
+ * granted at once is queued and its thread sleeps on a condition of its
+ * own; releasing a lock grants the requests at the head of the queue that
+ * have become compatible and wakes exactly their threads. A waiting upgrade
+ * from shared to exclusive goes to the head of the queue, since it only
+ * waits for the other holders.
+ * <p>
+ * A request only fails if its transaction is on a cycle of transactions
+ * waiting for each other, a deadlock. Deadlocks are found in a wait-for
+ * graph built from the waiting requests and the holders of the locks they
+ * wait for: by the request that closes the cycle when it blocks, or by a
+ * background {@link DeadlockDetector}. One transaction of the cycle, the
+ * victim, is aborted: by default the youngest one, which has the least
+ * work to lose, or the one holding the fewest locks (see
+ * {@link VictimPolicy}). The other transactions keep waiting.
+ * <p>
+ * Instead of detecting deadlocks, the LockManager can prevent them with
+ * timestamps (see {@link DeadlockPolicy}): a TransactionId's counter is its
+ * age, smaller being older. With WAIT_DIE an older transaction may wait for
+ * a younger one but a younger one aborts instead of waiting for an older
+ * one; with WOUND_WAIT an older transaction wounds, i.e. aborts, the younger
+ * ones it would wait for, and a younger one waits. Either way every wait is
+ * in one direction of age, so no cycle can form and no graph is needed.
+ * A wounded transaction that is not waiting aborts on its next lock request.
+ * <p>
+ * Locks are hierarchical: tables contain pages, which contain records
+ * (tuples). Before a page is locked S or X, its table is locked IS or IX,
+ * and before a record is locked, its page and table are (see
+ * {@link LockMode}). A transaction that holds a lock covering what it asks
+ * for, S for reads or X for writes, takes no lock on the smaller part at
+ * all. Large scans lock their table S or X up front
+ * ({@link #acquireTableLock}), and writers that change single tuples lock
+ * their records X under an IX page lock ({@link #acquireRecordLock}), so
+ * that transactions changing different tuples of one page run side by
+ * side. A transaction that gathers more page locks in one table than the
+ * escalation threshold has them replaced by one table lock, and one that
+ * gathers more record locks on one page than the record escalation
+ * threshold has them replaced by one page lock, if that can be granted
+ * without waiting.
  */
 public class LockManager {
 
-    private HashMap<PageId, Set<TransactionId>> sharedLocks;
-    private HashMap<PageId, TransactionId> exclusiveLocks;
-    private HashMap<TransactionId, Set<PageId>> transactionPages;
-    private HashMap<TransactionId, PageId> transactionWait;
+    /** Number of stripes the lock table is split into. */
+    static final int STRIPES = 64;
+
+    /** Which transaction of a deadlock is aborted. */
+    public enum VictimPolicy {
+        /** The transaction that started last. */
+        YOUNGEST,
+        /** The transaction holding the fewest locks; the youngest of those. */
+        LEAST_WORK
+    }
+
+    /** How deadlocks are handled. */
+    public enum DeadlockPolicy {
+        /** Find cycles in the wait-for graph and abort a victim of each. */
+        DETECT,
+        /** An older transaction aborts the younger ones it would wait for. */
+        WOUND_WAIT,
+        /** A younger transaction aborts instead of waiting for an older one. */
+        WAIT_DIE
+    }
+
+    /** Name of the system property that sets the default deadlock policy. */
+    public static final String DEADLOCK_POLICY_PROPERTY = "simpledb.lock.deadlockPolicy";
+
+    /** Default number of page locks a transaction takes in one table before they are escalated. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 256;
+
+    /** Name of the system property that sets the escalation threshold; 0 turns escalation off. */
+    public static final String ESCALATION_THRESHOLD_PROPERTY = "simpledb.lock.escalationThreshold";
+
+    /** Default number of record locks a transaction takes on one page before they are escalated. */
+    public static final int DEFAULT_RECORD_ESCALATION_THRESHOLD = 64;
+
+    /** Name of the system property that sets the record escalation threshold; 0 turns it off. */
+    public static final String RECORD_ESCALATION_THRESHOLD_PROPERTY = "simpledb.lock.recordEscalationThreshold";
+
+    /** Name of the system property that sets the default victim policy. */
+    public static final String VICTIM_POLICY_PROPERTY = "simpledb.lock.victimPolicy";
+
+    /** The key a table is locked under in the lock table. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return Integer.hashCode(tableId) * 0x9e3779b9;
+        }
+
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    /** The key a record is locked under in the lock table. */
+    private static final class RecordKey {
+        final PageId pid;
+        final int slot;
+
+        RecordKey(RecordId rid) {
+            this.pid = rid.getPageId();
+            this.slot = rid.getTupleNumber();
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof RecordKey)) {
+                return false;
+            }
+            RecordKey other = (RecordKey) o;
+            return other.slot == slot && other.pid.equals(pid);
+        }
+
+        public int hashCode() {
+            return pid.hashCode() * 31 + slot;
+        }
+
+        public String toString() {
+            return "record " + slot + " of " + pid;
+        }
+    }
+
+    /** A request for a lock that could not be granted at once. */
+    private static class LockRequest {
+        final TransactionId tid;
+        // A PageId, TableKey or RecordKey
+        final Object key;
+        // The mode the transaction will hold once granted
+        final LockMode mode;
+        // Signalled when the request is granted; a condition of the stripe's latch
+        final Condition granted;
+        // Guarded by the stripe's latch
+        boolean isGranted;
+        // Withdrawn because its transaction was chosen as a deadlock victim
+        boolean isAborted;
+
+        LockRequest(TransactionId tid, Object key, LockMode mode, Condition granted) {
+            this.tid = tid;
+            this.key = key;
+            this.mode = mode;
+            this.granted = granted;
+        }
+    }
+
+    /** The holders of the lock on one page, table or record, and the requests waiting for it. */
+    private static class LockEntry {
+        final HashMap<TransactionId, LockMode> holders = new HashMap<>();
+        final ArrayDeque<LockRequest> waiters = new ArrayDeque<>();
+
+        // Whether the other holders allow the lock, regardless of the waiters
+        boolean isCompatible(TransactionId tid, LockMode mode) {
+            for (Map.Entry<TransactionId, LockMode> h : holders.entrySet()) {
+                if (!h.getKey().equals(tid) && !h.getValue().isCompatible(mode)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean isUnused() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
+    }
+
+    /** The locks a transaction holds. */
+    private static class HeldLocks {
+        // PageIds, TableKeys and RecordKeys
+        private final Set<Object> keys = new HashSet<>();
+        // Number of page locks per table
+        private final HashMap<Integer, Integer> pagesPerTable = new HashMap<>();
+        // Number of record locks per page
+        private final HashMap<PageId, Integer> recordsPerPage = new HashMap<>();
+        // Number of page and record locks per table
+        private final HashMap<Integer, Integer> partsPerTable = new HashMap<>();
+
+        synchronized void add(Object key) {
+            if (keys.add(key)) {
+                count(key, 1);
+            }
+        }
+
+        synchronized void remove(Object key) {
+            if (keys.remove(key)) {
+                count(key, -1);
+            }
+        }
+
+        private void count(Object key, int delta) {
+            PageId pid;
+            if (key instanceof PageId) {
+                pid = (PageId) key;
+                pagesPerTable.merge(pid.getTableId(), delta, Integer::sum);
+            } else if (key instanceof RecordKey) {
+                pid = ((RecordKey) key).pid;
+                recordsPerPage.merge(pid, delta, Integer::sum);
+            } else {
+                return;
+            }
+            partsPerTable.merge(pid.getTableId(), delta, Integer::sum);
+        }
+
+        synchronized List<Object> keys() {
+            return new ArrayList<>(keys);
+        }
+
+        synchronized int size() {
+            return keys.size();
+        }
+
+        synchronized int pageCount(int tableId) {
+            return pagesPerTable.getOrDefault(tableId, 0);
+        }
+
+        synchronized int recordCount(PageId pid) {
+            return recordsPerPage.getOrDefault(pid, 0);
+        }
+
+        synchronized int partCount(int tableId) {
+            return partsPerTable.getOrDefault(tableId, 0);
+        }
+    }
+
+    /** One stripe of the lock table. */
+    private static class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final HashMap<Object, LockEntry> entries = new HashMap<>();
+    }
+
+    private final Stripe[] stripes;
+    private final ConcurrentHashMap<TransactionId, HeldLocks> transactionLocks;
+    // The request each blocked transaction waits on
+    private final ConcurrentHashMap<TransactionId, LockRequest> transactionWait;
+    // Serializes deadlock searches, so that two searches finding the same
+    // cycle abort only one transaction
+    private final Object searchLock = new Object();
+    private volatile VictimPolicy victimPolicy = VictimPolicy.valueOf(
+            System.getProperty(VICTIM_POLICY_PROPERTY, VictimPolicy.YOUNGEST.name()));
+    private volatile DeadlockDetector detector; // changed under this
+    private final AtomicLong deadlocks = new AtomicLong();
+    private volatile DeadlockPolicy deadlockPolicy = DeadlockPolicy.valueOf(
+            System.getProperty(DEADLOCK_POLICY_PROPERTY, DeadlockPolicy.DETECT.name()));
+    // Transactions wounded under WOUND_WAIT that have not finished yet
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+    private final AtomicLong preventionAborts = new AtomicLong();
+    private volatile int escalationThreshold = Integer.getInteger(
+            ESCALATION_THRESHOLD_PROPERTY, DEFAULT_ESCALATION_THRESHOLD);
+    private volatile int recordEscalationThreshold = Integer.getInteger(
+            RECORD_ESCALATION_THRESHOLD_PROPERTY, DEFAULT_RECORD_ESCALATION_THRESHOLD);
+    private final AtomicLong escalations = new AtomicLong();
 
     LockManager(){
-        sharedLocks = new HashMap<>();
-        exclusiveLocks = new HashMap<>();
-        transactionPages = new HashMap<>();
-        transactionWait = new HashMap<>();
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        transactionLocks = new ConcurrentHashMap<>();
+        transactionWait = new ConcurrentHashMap<>();
+    }
+
+    private Stripe stripeFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % STRIPES];
+    }
+
+    private HeldLocks locksOf(TransactionId tid) {
+        return transactionLocks.computeIfAbsent(tid, k -> new HeldLocks());
     }
 
     /**
      * Acquires a lock on a specified page by a given transaction with the specified permissions.
+     * The page's table is locked IS or IX first; no page lock is taken if the transaction's
+     * table lock already covers the request. Blocks until the locks are granted.
      * @param tid The transaction ID requesting the lock.
      * @param pid The page ID on which the lock is requested.
      * @param perm The permissions requested by the transaction.
-     * @throws TransactionAbortedException Thrown if a deadlock is detected or if the transaction is aborted.
+     * @throws TransactionAbortedException Thrown if the transaction is aborted as the victim of a deadlock,
+     *         or to prevent one.
      */
-    public synchronized void acquireLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
-        // New transaction trying to get lock on a page
+    public void acquireLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        acquireLock(tid, pid, LockMode.of(perm));
+    }
 
-        if(!transactionPages.containsKey(tid)){
-            transactionPages.put(tid, new HashSet<PageId>());
+    /**
+     * Acquires a lock on a page in any mode, e.g. IX ahead of locking some of its records X.
+     * The page's table is locked in the matching intention mode first; no page lock is taken
+     * if the transaction's table lock already covers the request. Blocks until the locks are
+     * granted.
+     * @param tid The transaction ID requesting the lock.
+     * @param pid The page ID on which the lock is requested.
+     * @param mode The lock mode.
+     * @throws TransactionAbortedException Thrown if the transaction is aborted as the victim of a deadlock,
+     *         or to prevent one.
+     */
+    public void acquireLock(TransactionId tid, PageId pid, LockMode mode) throws TransactionAbortedException {
+        TableKey table = new TableKey(pid.getTableId());
+        if (isCovered(tid, table, mode)) {
+            return;
+        }
+        lock(tid, table, mode.intention());
+        lock(tid, pid, mode);
+        int threshold = escalationThreshold;
+        if (threshold > 0 && locksOf(tid).pageCount(table.tableId) >= threshold) {
+            escalate(tid, table);
         }
+    }
 
-        transactionWait.put(tid,pid);
+    /**
+     * Acquires a lock on a record, S for reading it or X for changing it. The record's page
+     * and table are locked in the matching intention mode first; no record lock is taken if
+     * the transaction's page or table lock already covers the request. Blocks until the locks
+     * are granted.
+     * @param tid The transaction ID requesting the lock.
+     * @param rid The record on which the lock is requested.
+     * @param perm The permissions requested by the transaction.
+     * @throws TransactionAbortedException Thrown if the transaction is aborted as the victim of a deadlock,
+     *         or to prevent one.
+     */
+    public void acquireRecordLock(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        LockMode mode = LockMode.of(perm);
+        PageId pid = rid.getPageId();
+        TableKey table = new TableKey(pid.getTableId());
+        if (isCovered(tid, table, mode) || isCovered(tid, pid, mode)) {
+            return;
+        }
+        acquireLock(tid, pid, mode.intention());
+        // The page lock may have been escalated to a table lock covering the record
+        if (isCovered(tid, table, mode)) {
+            return;
+        }
+        lock(tid, new RecordKey(rid), mode);
+        int threshold = recordEscalationThreshold;
+        if (threshold > 0 && locksOf(tid).recordCount(pid) >= threshold) {
+            escalatePage(tid, pid);
+        }
+    }
 
-        if (perm == Permissions.READ_ONLY) {
-            // transaction with exclusive lock on this page already
+    // Whether a transaction's lock on a table or page makes a lock on a part
+    // of it in a mode unnecessary; throws if the transaction was wounded
+    private boolean isCovered(TransactionId tid, Object parent, LockMode mode)
+            throws TransactionAbortedException {
+        LockMode held = heldMode(tid, parent);
+        if (held == null || !held.coversChild(mode)) {
+            return false;
+        }
+        if (wounded.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+        return true;
+    }
 
-            while(exclusiveLocks.containsKey(pid)){
+    /**
+     * Acquires a lock on a whole table, S for reading it or X for writing it, e.g. for a large
+     * scan. The transaction then takes no page locks in the table. Blocks until the lock is
+     * granted.
+     * @param tid The transaction ID requesting the lock.
+     * @param tableId The table on which the lock is requested.
+     * @param perm The permissions requested by the transaction.
+     * @throws TransactionAbortedException Thrown if the transaction is aborted as the victim of a deadlock,
+     *         or to prevent one.
+     */
+    public void acquireTableLock(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        acquireTableLock(tid, tableId, LockMode.of(perm));
+    }
 
-                // already have a read/write lock on this page
-                if(exclusiveLocks.get(pid).equals(tid)){
-                    return;
-                }
+    /**
+     * Acquires a lock on a whole table in any mode, e.g. IX ahead of adding pages to it.
+     * Blocks until the lock is granted.
+     * @param tid The transaction ID requesting the lock.
+     * @param tableId The table on which the lock is requested.
+     * @param mode The lock mode.
+     * @throws TransactionAbortedException Thrown if the transaction is aborted as the victim of a deadlock,
+     *         or to prevent one.
+     */
+    public void acquireTableLock(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        TableKey table = new TableKey(tableId);
+        lock(tid, table, mode);
+        releaseCoveredPages(tid, table);
+    }
 
-                //deadlockDetector(tid, pid);
+    // Acquire a lock on a page, table or record, joined with the mode the
+    // transaction holds already
+    private void lock(TransactionId tid, Object key, LockMode mode) throws TransactionAbortedException {
+        if (wounded.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+        DeadlockPolicy policy = deadlockPolicy;
+        Stripe s = stripeFor(key);
+        LockRequest req;
+        List<TransactionId> toWound = Collections.emptyList();
+        s.latch.lock();
+        try {
+            LockEntry e = s.entries.computeIfAbsent(key, k -> new LockEntry());
+            LockMode held = e.holders.get(tid);
+            if (held != null && held.covers(mode)) {
+                return;
+            }
+            // Waiters are served in order; an upgrade only waits for the other holders
+            boolean upgrade = held != null;
+            LockMode target = upgrade ? held.join(mode) : mode;
+            if (e.isCompatible(tid, target) && (upgrade || e.waiters.isEmpty())) {
+                e.holders.put(tid, target);
+                locksOf(tid).add(key);
+                return;
+            }
+            req = new LockRequest(tid, key, target, s.latch.newCondition());
+            if (upgrade) {
+                e.waiters.addFirst(req);
+            } else {
+                e.waiters.addLast(req);
+            }
+            transactionWait.put(tid, req);
+            if (policy != DeadlockPolicy.DETECT) {
+                toWound = prevent(policy, e, req, upgrade);
+            }
+        } finally {
+            s.latch.unlock();
+        }
 
-                try{
-                    wait(300);
-                } catch(InterruptedException e){
-                    e.printStackTrace();
-                }
-                if(exclusiveLocks.containsKey(pid) && new Random().nextBoolean()){
+        if (policy != DeadlockPolicy.DETECT) {
+            for (TransactionId t : toWound) {
+                wound(t);
+            }
+            // Wounded meanwhile, while it was not waiting yet
+            if (wounded.contains(tid)) {
+                withdraw(req);
+            }
+        } else if (detector == null) {
+            // With a background detector running, the detector finds the cycle
+            synchronized (searchLock) {
+                breakDeadlock(tid);
+            }
+        }
+
+        s.latch.lock();
+        try {
+            while (!req.isGranted) {
+                if (req.isAborted) {
                     throw new TransactionAbortedException();
                 }
+                req.granted.awaitUninterruptibly();
             }
+        } finally {
+            s.latch.unlock();
+            transactionWait.remove(tid, req);
+        }
+    }
 
-            if (!sharedLocks.containsKey(pid)) {
-                sharedLocks.put(pid, new HashSet<TransactionId>());
-            }
-            Set<TransactionId> ts = sharedLocks.get(pid);
-            ts.add(tid);
+    /**
+     * Sets how deadlocks are handled. Meant to be set at startup, before
+     * transactions run: requests waiting under one policy are not checked
+     * again under another.
+     * @param policy The deadlock policy.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        deadlockPolicy = policy;
+    }
 
-        } else {
-            // check if we can upgrade before we need to wait
-            upgradeLock(tid,pid);
-            while(exclusiveLocks.containsKey(pid) || sharedLocks.containsKey(pid)) {
+    /** @return How deadlocks are handled. */
+    public DeadlockPolicy getDeadlockPolicy() {
+        return deadlockPolicy;
+    }
 
-                // already have a read write lock on this page
-                if(exclusiveLocks.containsKey(pid)){
-                    if(exclusiveLocks.get(pid).equals(tid)){
-                        return;
-                    }
-                }
-                // Check if we can upgrade our lock
-                upgradeLock(tid,pid);
+    /** @return The number of transactions aborted or wounded to prevent deadlocks. */
+    public long getPreventionAbortCount() {
+        return preventionAborts.get();
+    }
 
-                //deadlockDetector(tid, pid);
+    /**
+     * Sets which transaction of a deadlock is aborted.
+     * @param policy The victim policy.
+     */
+    public void setVictimPolicy(VictimPolicy policy) {
+        victimPolicy = policy;
+    }
 
-                try {
-                    wait(300);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+    /** @return Which transaction of a deadlock is aborted. */
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
 
-                // If we are the only shared lock holder of this page at this point, we can upgrade
-                upgradeLock(tid,pid);
-                if((exclusiveLocks.containsKey(pid) || sharedLocks.containsKey(pid)) && new Random().nextBoolean()){
-                    throw new TransactionAbortedException();
-                }
+    /** @return The number of deadlocks found and broken so far. */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
 
-            }
+    /**
+     * Sets how many page locks a transaction may hold in one table before they are replaced by
+     * a table lock.
+     * @param threshold The number of page locks, or 0 to never escalate.
+     */
+    public void setEscalationThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("negative escalation threshold");
+        }
+        escalationThreshold = threshold;
+    }
+
+    /** @return How many page locks a transaction may hold in one table before they are escalated. */
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /** @return The number of times page locks were escalated to a table lock, or record locks to a page lock. */
+    public long getEscalationCount() {
+        return escalations.get();
+    }
 
-            exclusiveLocks.put(pid,tid);
+    /**
+     * Sets how many record locks a transaction may hold on one page before they are replaced by
+     * a page lock.
+     * @param threshold The number of record locks, or 0 to never escalate.
+     */
+    public void setRecordEscalationThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("negative escalation threshold");
+        }
+        recordEscalationThreshold = threshold;
+    }
 
+    /** @return How many record locks a transaction may hold on one page before they are escalated. */
+    public int getRecordEscalationThreshold() {
+        return recordEscalationThreshold;
+    }
+
+    // The mode a transaction holds a page, table or record in, or null
+    private LockMode heldMode(TransactionId tid, Object key) {
+        Stripe s = stripeFor(key);
+        s.latch.lock();
+        try {
+            LockEntry e = s.entries.get(key);
+            return e == null ? null : e.holders.get(tid);
+        } finally {
+            s.latch.unlock();
         }
-        transactionPages.get(tid).add(pid);
-        transactionWait.remove(tid);
     }
 
     /**
-     * Upgrades a shared lock to an exclusive lock if possible.
-     * @param tid The transaction ID requesting the upgrade.
-     * @param pid The page ID for which the lock is being upgraded.
+     * Replaces a transaction's page locks in a table by one table lock: S if
+     * it only reads the table, X if it writes it. Escalation does not wait;
+     * if other transactions hold conflicting intention locks, the page locks
+     * stay and escalation is tried again on the next page lock.
      */
-    public void upgradeLock(TransactionId tid, PageId pid){
-        if(sharedLocks.containsKey(pid) && !exclusiveLocks.containsKey(pid)){
-            Set<TransactionId> ts = sharedLocks.get(pid);
-            if (ts.contains(tid) && ts.size() == 1) {
-                sharedLocks.remove(pid);
-                exclusiveLocks.put(pid,tid);
-                return;
+    private void escalate(TransactionId tid, TableKey table) {
+        if (raise(tid, table)) {
+            releaseCoveredPages(tid, table);
+        }
+    }
+
+    /**
+     * Replaces a transaction's record locks on a page by one page lock, the
+     * same way escalate does for the page locks of a table.
+     */
+    private void escalatePage(TransactionId tid, PageId pid) {
+        if (raise(tid, pid)) {
+            releaseCoveredRecords(tid, pid);
+        }
+    }
+
+    // Raise an intention lock to S, or to X if the transaction writes, if
+    // that can be granted at once
+    private boolean raise(TransactionId tid, Object key) {
+        Stripe s = stripeFor(key);
+        s.latch.lock();
+        try {
+            LockEntry e = s.entries.get(key);
+            LockMode held = e == null ? null : e.holders.get(tid);
+            if (held == null) {
+                return false;
             }
+            LockMode target = held == LockMode.IS ? LockMode.S : LockMode.X;
+            if (held.covers(target) || !e.isCompatible(tid, target)) {
+                return false;
+            }
+            e.holders.put(tid, target);
+        } finally {
+            s.latch.unlock();
         }
+        escalations.incrementAndGet();
+        return true;
     }
 
-    // Thought process for our initial dependency cycle deadlock detection, later opted out for time out approach
+    // Release the page and record locks of a table that the transaction's
+    // lock on the table makes unnecessary
+    private void releaseCoveredPages(TransactionId tid, TableKey table) {
+        LockMode held = heldMode(tid, table);
+        HeldLocks locks = transactionLocks.get(tid);
+        if (held == null || locks == null || locks.partCount(table.tableId) == 0) {
+            return;
+        }
+        for (Object key : locks.keys()) {
+            PageId pid = key instanceof RecordKey ? ((RecordKey) key).pid
+                    : key instanceof PageId ? (PageId) key : null;
+            if (pid != null && pid.getTableId() == table.tableId) {
+                LockMode part = heldMode(tid, key);
+                if (part != null && held.coversChild(part)) {
+                    unlock(tid, key);
+                }
+            }
+        }
+    }
 
-    // t1 wants p2
-    // what transactions have p2
-    // t2 has p2
-    // what does t2 want
-    // t2 wants p1
-    // who has p1? if t1, deadlock
+    // Release the record locks of a page that the transaction's lock on the
+    // page makes unnecessary
+    private void releaseCoveredRecords(TransactionId tid, PageId pid) {
+        LockMode held = heldMode(tid, pid);
+        HeldLocks locks = transactionLocks.get(tid);
+        if (held == null || locks == null || locks.recordCount(pid) == 0) {
+            return;
+        }
+        for (Object key : locks.keys()) {
+            if (key instanceof RecordKey && ((RecordKey) key).pid.equals(pid)) {
+                LockMode record = heldMode(tid, key);
+                if (record != null && held.coversChild(record)) {
+                    unlock(tid, key);
+                }
+            }
+        }
+    }
 
-    //
-    // getTransactions(p2)
-    // for transactions of p2
-    //    page = transactionWait.get(transaction)
-    //    set = getTransactions(page)
-    //    if ogTransaction in set: deadlock
+    /**
+     * Starts a background thread that searches for deadlocks periodically,
+     * instead of every request searching when it has to wait. Replaces a
+     * detector that is already running.
+     * @param intervalMillis The time between two searches, in milliseconds.
+     * @see DeadlockDetector
+     */
+    public synchronized void startDeadlockDetector(long intervalMillis) {
+        DeadlockDetector next = new DeadlockDetector(this, intervalMillis);
+        stopDeadlockDetector();
+        detector = next;
+        detector.start();
+    }
 
-    // t1 wants p2
-    // what transactions have p2
-    // t2 has p2
-    // what does t2 want
-    // t2 wants p3
-    // what transactions have p3
-    // t3 and t4 have p3
-    // t3 or t4 want p1
-    // how has p1? if t1, deadlock
+    /** Stops the background deadlock detector, if one is running; requests search for deadlocks again. */
+    public synchronized void stopDeadlockDetector() {
+        if (detector != null) {
+            detector.shutdown();
+            detector = null;
+        }
+    }
+
+    /**
+     * Searches the whole wait-for graph and breaks every deadlock in it.
+     * Called by the background detector.
+     */
+    void breakDeadlocks() {
+        synchronized (searchLock) {
+            for (TransactionId tid : new ArrayList<>(transactionWait.keySet())) {
+                breakDeadlock(tid);
+            }
+        }
+    }
 
-    //
-    // getTransactions(p2)
-    // for transactions of p2
-    //    p3 <- transactionWait.get(transaction)
-    //    getTransactions(p3)
-    //    for transactions of p3 (ie t3, t4)
-    //      page <- transactionWait.get(transaction)
-    //      if ogTransaction in getTransactions(page): deadlock
+    /**
+     * Upgrades a shared lock to an exclusive lock if possible.
+     * @param tid The transaction ID requesting the upgrade.
+     * @param pid The page ID for which the lock is being upgraded.
+     */
+    public void upgradeLock(TransactionId tid, PageId pid){
+        TableKey table = new TableKey(pid.getTableId());
+        if (heldMode(tid, pid) == LockMode.S && tryUpgrade(tid, table, LockMode.IX)) {
+            tryUpgrade(tid, pid, LockMode.X);
+        }
+    }
 
+    // Raise a held lock to a mode if the other holders allow it right now
+    private boolean tryUpgrade(TransactionId tid, Object key, LockMode mode) {
+        Stripe s = stripeFor(key);
+        s.latch.lock();
+        try {
+            LockEntry e = s.entries.get(key);
+            LockMode held = e == null ? null : e.holders.get(tid);
+            if (held == null) {
+                return false;
+            }
+            LockMode target = held.join(mode);
+            if (!e.isCompatible(tid, target)) {
+                return false;
+            }
+            e.holders.put(tid, target);
+            return true;
+        } finally {
+            s.latch.unlock();
+        }
+    }
 
-    // Helper function for our initial dependency cycle deadlock detection
     /**
      * Retrieves the transactions holding locks on a specified page.
      * @param pid The page ID for which transactions are to be retrieved.
      * @return A set of transaction IDs holding locks on the page.
      */
     public Set<TransactionId> getTransactions(PageId pid){
-        if(sharedLocks.containsKey(pid)){
-            return sharedLocks.get(pid);
+        Set<TransactionId> tids = new HashSet<>();
+        Stripe s = stripeFor(pid);
+        s.latch.lock();
+        try {
+            LockEntry e = s.entries.get(pid);
+            if (e != null) {
+                tids.addAll(e.holders.keySet());
+            }
+        } finally {
+            s.latch.unlock();
         }
-        Set<TransactionId> tid = new HashSet<>();
-        if(exclusiveLocks.containsKey(pid)){
-            tid.add(exclusiveLocks.get(pid));
+        return tids;
+    }
+
+    /**
+     * Breaks the deadlocks a transaction is on, if it is on any: aborts the
+     * victim of a cycle through it, and searches again, since the victim
+     * may be on that cycle only and leave the transaction on another one.
+     * Every transaction on a cycle is blocked and keeps its locks until it
+     * is granted, so nothing but an abort ends the cycle. Called with
+     * searchLock held.
+     * @param tid The transaction whose cycles are searched for.
+     */
+    private void breakDeadlock(TransactionId tid) {
+        while (breakCycle(tid)) {
+            // Searched again until no cycle goes through tid
         }
-        return tid;
     }
 
-    // We do not actually end up using this but this is how we initially tried to solve deadlocks
+    // Abort the victim of a cycle through a transaction; false if there is
+    // no such cycle
+    private boolean breakCycle(TransactionId tid) {
+        // The requests the edges of the graph were built from
+        HashMap<TransactionId, LockRequest> seen = new HashMap<>();
+        WaitForGraph graph = new WaitForGraph(t -> {
+            LockRequest w = transactionWait.get(t);
+            if (w == null) {
+                return Collections.<TransactionId>emptyList();
+            }
+            seen.put(t, w);
+            return blockersOf(w);
+        });
+        List<TransactionId> cycle = graph.findCycle(tid);
+        if (cycle == null) {
+            return false;
+        }
+        // The graph is a snapshot: the cycle is real only if the requests it
+        // was built from are all still waiting; otherwise search again
+        List<LockRequest> requests = new ArrayList<>();
+        for (TransactionId t : cycle) {
+            LockRequest w = transactionWait.get(t);
+            if (w == null || w != seen.get(t)) {
+                return true;
+            }
+            requests.add(w);
+        }
+        LockRequest victim = null;
+        for (LockRequest w : requests) {
+            if (victim == null || isBetterVictim(w.tid, victim.tid)) {
+                victim = w;
+            }
+        }
+        if (withdraw(victim)) {
+            deadlocks.incrementAndGet();
+        }
+        return true;
+    }
+
+    // Whether a is a better victim than b under the victim policy
+    private boolean isBetterVictim(TransactionId a, TransactionId b) {
+        if (victimPolicy == VictimPolicy.LEAST_WORK) {
+            int wa = locksHeld(a);
+            int wb = locksHeld(b);
+            if (wa != wb) {
+                return wa < wb;
+            }
+        }
+        return a.getId() > b.getId();
+    }
+
+    private int locksHeld(TransactionId tid) {
+        HeldLocks locks = transactionLocks.get(tid);
+        return locks == null ? 0 : locks.size();
+    }
+
+    // The transactions a waiting request waits for: the holders it conflicts
+    // with and the conflicting requests queued ahead of it
+    private List<TransactionId> blockersOf(LockRequest req) {
+        Stripe s = stripeFor(req.key);
+        s.latch.lock();
+        try {
+            LockEntry e = s.entries.get(req.key);
+            if (e == null || req.isGranted) {
+                return Collections.emptyList();
+            }
+            return blockersOf(e, req);
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    // Called with the stripe's latch held
+    private List<TransactionId> blockersOf(LockEntry e, LockRequest req) {
+        List<TransactionId> blockers = new ArrayList<>();
+        for (Map.Entry<TransactionId, LockMode> h : e.holders.entrySet()) {
+            if (!h.getKey().equals(req.tid) && !h.getValue().isCompatible(req.mode)) {
+                blockers.add(h.getKey());
+            }
+        }
+        for (LockRequest r : e.waiters) {
+            if (r == req) {
+                break;
+            }
+            if (!r.mode.isCompatible(req.mode)) {
+                blockers.add(r.tid);
+            }
+        }
+        return blockers;
+    }
+
     /**
-     * Detects deadlocks by checking for circular dependencies between transactions waiting for locks.
-     * @param ogTransaction The original transaction requesting the lock.
-     * @param waitPage The page for which the transaction is waiting.
-     * @throws TransactionAbortedException Thrown if a deadlock is detected.
+     * Applies WAIT_DIE or WOUND_WAIT to a request that was just queued.
+     * Under WAIT_DIE a request that would wait for an older transaction is
+     * withdrawn, and its transaction aborts. Under WOUND_WAIT the younger
+     * transactions it would wait for are returned, to be wounded once the
+     * latch is released, since they may be waiting on other stripes. An
+     * upgrade is queued ahead of the other waiters, so they are checked
+     * against it too. Called with the stripe's latch held.
+     * @return The transactions to wound.
      */
-    private void deadlockDetector(TransactionId ogTransaction, PageId waitPage)
-            throws TransactionAbortedException {
-        Set<TransactionId> pageOwners = getTransactions(waitPage);
-        for(TransactionId ownerTid : pageOwners){
-            if(transactionWait.containsKey(ownerTid)){
-                PageId ownerWait = transactionWait.get(ownerTid);
-                if(getTransactions(ownerWait).contains(ogTransaction)){
-                    transactionWait.remove(ogTransaction);
-                    throw new TransactionAbortedException();
-                } else {
-                    deadlockDetector(ogTransaction, ownerWait);
+    private List<TransactionId> prevent(DeadlockPolicy policy, LockEntry e, LockRequest req, boolean upgrade) {
+        List<TransactionId> toWound = new ArrayList<>();
+        prevent(policy, e, req, blockersOf(e, req), toWound);
+        if (upgrade && !req.isAborted) {
+            List<TransactionId> upgrader = Collections.singletonList(req.tid);
+            for (LockRequest r : new ArrayList<>(e.waiters)) {
+                if (r != req && !r.mode.isCompatible(req.mode)) {
+                    prevent(policy, e, r, upgrader, toWound);
                 }
             }
         }
+        if (!e.waiters.isEmpty()) {
+            // A withdrawn request may have held up the ones behind it
+            grantWaiters(e, req.key);
+        }
+        return toWound;
+    }
+
+    private void prevent(DeadlockPolicy policy, LockEntry e, LockRequest waiter,
+                         List<TransactionId> blockers, List<TransactionId> toWound) {
+        for (TransactionId b : blockers) {
+            boolean older = waiter.tid.getId() < b.getId();
+            if (policy == DeadlockPolicy.WAIT_DIE && !older) {
+                abortWaiter(e, waiter);
+                preventionAborts.incrementAndGet();
+                return;
+            }
+            if (policy == DeadlockPolicy.WOUND_WAIT && older) {
+                toWound.add(b);
+            }
+        }
+    }
+
+    // Abort a transaction under WOUND_WAIT: withdraw its request if it is
+    // waiting, or make its next request fail
+    private void wound(TransactionId tid) {
+        if (wounded.add(tid)) {
+            preventionAborts.incrementAndGet();
+        }
+        LockRequest w = transactionWait.get(tid);
+        if (w != null) {
+            withdraw(w);
+        }
+    }
+
+    // Withdraw a waiting request and wake its thread, which aborts its
+    // transaction; false if the request was granted meanwhile
+    private boolean withdraw(LockRequest req) {
+        Stripe s = stripeFor(req.key);
+        s.latch.lock();
+        try {
+            if (req.isGranted || req.isAborted) {
+                return false;
+            }
+            LockEntry e = s.entries.get(req.key);
+            abortWaiter(e, req);
+            // The requests behind it may be grantable now
+            grantWaiters(e, req.key);
+            if (e.isUnused()) {
+                s.entries.remove(req.key);
+            }
+        } finally {
+            s.latch.unlock();
+        }
+        return true;
+    }
+
+    // Take a request out of its queue and wake its thread to abort. Called
+    // with the stripe's latch held.
+    private void abortWaiter(LockEntry e, LockRequest req) {
+        req.isAborted = true;
+        req.granted.signal();
+        e.waiters.remove(req);
+        transactionWait.remove(req.tid, req);
+    }
+
+    // Grant the requests at the head of the queue that the holders allow, and
+    // wake their threads. Called with the stripe's latch held.
+    private void grantWaiters(LockEntry e, Object key) {
+        Iterator<LockRequest> it = e.waiters.iterator();
+        while (it.hasNext()) {
+            LockRequest r = it.next();
+            if (!e.isCompatible(r.tid, r.mode)) {
+                break;
+            }
+            it.remove();
+            e.holders.put(r.tid, r.mode);
+            locksOf(r.tid).add(key);
+            r.isGranted = true;
+            r.granted.signal();
+        }
     }
 
     /**
@@ -204,59 +953,112 @@ public class LockManager {
      * @param tid The transaction ID releasing the lock.
      * @param pid The page ID for which the lock is being released.
      */
-    public synchronized void releaseLock(TransactionId tid, PageId pid)
-            {
-        if(exclusiveLocks.containsKey(pid)){
-            exclusiveLocks.remove(pid);
-        } else if(sharedLocks.containsKey(pid)){
-            Set<TransactionId> ts = sharedLocks.get(pid);
-            ts.remove(tid);
-            if(ts.isEmpty()){
-                sharedLocks.remove(pid);
+    public void releaseLock(TransactionId tid, PageId pid) {
+        unlock(tid, pid);
+    }
+
+    private void unlock(TransactionId tid, Object key) {
+        Stripe s = stripeFor(key);
+        s.latch.lock();
+        try {
+            LockEntry e = s.entries.get(key);
+            if (e != null) {
+                e.holders.remove(tid);
+                grantWaiters(e, key);
+                if (e.isUnused()) {
+                    s.entries.remove(key);
+                }
             }
+        } finally {
+            s.latch.unlock();
+        }
+        HeldLocks locks = transactionLocks.get(tid);
+        if (locks != null) {
+            locks.remove(key);
         }
-        notifyAll();
     }
 
     /**
      * Releases all locks held by a specified transaction.
      * @param tid The transaction ID for which locks are to be released.
      */
-    public synchronized void releaseTransaction(TransactionId tid){
-        Set<PageId> pages = transactionPages.get(tid);
-        if(pages != null) {
-            for (PageId pid : pages) {
-                releaseLock(tid, pid);
+    public void releaseTransaction(TransactionId tid){
+        HeldLocks locks = transactionLocks.remove(tid);
+        if(locks != null) {
+            // Records before pages before tables, so no lock outlives the
+            // intention lock above it
+            List<Object> keys = locks.keys();
+            for (Object key : keys) {
+                if (key instanceof RecordKey) {
+                    unlock(tid, key);
+                }
+            }
+            for (Object key : keys) {
+                if (key instanceof PageId) {
+                    unlock(tid, key);
+                }
+            }
+            for (Object key : keys) {
+                if (key instanceof TableKey) {
+                    unlock(tid, key);
+                }
             }
         }
+        wounded.remove(tid);
     }
 
     /**
-     * Retrieves the set of page IDs accessed by a specified transaction.
+     * Retrieves the set of page IDs a specified transaction holds page locks on, including
+     * intention locks. Pages covered by a table lock are not included.
      * @param tid The transaction ID for which page IDs are to be retrieved.
-     * @return A set of page IDs accessed by the transaction.
+     * @return A set of page IDs locked by the transaction, or null if it holds no locks.
      */
-    public synchronized Set<PageId> pagesTouched (TransactionId tid){
-        return transactionPages.get(tid);
+    public Set<PageId> pagesTouched (TransactionId tid){
+        HeldLocks locks = transactionLocks.get(tid);
+        if (locks == null) {
+            return null;
+        }
+        Set<PageId> pages = new HashSet<>();
+        for (Object key : locks.keys()) {
+            if (key instanceof PageId) {
+                pages.add((PageId) key);
+            }
+        }
+        return pages;
     }
 
     /**
-     * Checks if a transaction holds a lock on a specified page.
+     * Checks if a transaction holds a lock on a specified page, or on its whole table.
      * @param tid The transaction ID to be checked.
      * @param p The page ID for which the lock ownership is to be checked.
      * @return True if the transaction holds a lock on the page, false otherwise.
      */
-    public synchronized boolean hasLock(TransactionId tid, PageId p){
-        if(exclusiveLocks.containsKey(p)){
-            return tid.equals(exclusiveLocks.get(p));
-        } else if(sharedLocks.containsKey(p)){
-            Set<TransactionId> ts = sharedLocks.get(p);
-            return ts.contains(tid);
-        } else {
-            return false;
+    public boolean hasLock(TransactionId tid, PageId p){
+        if (heldMode(tid, p) != null) {
+            return true;
         }
+        LockMode table = heldMode(tid, new TableKey(p.getTableId()));
+        return table != null && table.coversChild(LockMode.S);
     }
 
+    /**
+     * Checks if any transaction holds an exclusive lock on a specified page, or on its whole table.
+     * @param p The page ID to be checked.
+     * @return True if the page is exclusively locked, false otherwise.
+     */
+    public boolean isExclusivelyLocked(PageId p){
+        return isHeldIn(p, LockMode.X) || isHeldIn(new TableKey(p.getTableId()), LockMode.X);
+    }
 
+    private boolean isHeldIn(Object key, LockMode mode) {
+        Stripe s = stripeFor(key);
+        s.latch.lock();
+        try {
+            LockEntry e = s.entries.get(key);
+            return e != null && e.holders.containsValue(mode);
+        } finally {
+            s.latch.unlock();
+        }
+    }
 
 }
@@ -0,0 +1,83 @@
+package simpledb;
+
+/**
+ * LockMode is the mode of a lock granted by the LockManager. Records are
+ * locked S (shared) or X (exclusive). Tables and pages are also locked with
+ * the intention modes: IS and IX say that the transaction locks parts of
+ * the table or page S, respectively S or X; SIX is S on the whole table or
+ * page plus the intention to lock some of its parts X.
+ *
+ * @see LockManager
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    // COMPATIBLE[a][b]: whether a and b may be held by two transactions at once
+    private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+    };
+
+    /** @return whether another transaction may hold a lock in mode other while this one is held */
+    public boolean isCompatible(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** @return whether holding this mode allows everything mode other does */
+    public boolean covers(LockMode other) {
+        switch (this) {
+            case X:
+                return true;
+            case SIX:
+                return other != X;
+            case S:
+                return other == S || other == IS;
+            case IX:
+                return other == IX || other == IS;
+            default:
+                return other == IS;
+        }
+    }
+
+    /**
+     * @return whether holding this mode on a table or page makes a lock in
+     *         mode child on a part of it unnecessary
+     */
+    public boolean coversChild(LockMode child) {
+        switch (this) {
+            case X:
+                return true;
+            case S:
+            case SIX:
+                return child == S || child == IS;
+            default:
+                return false;
+        }
+    }
+
+    /** @return the weakest mode that covers both this mode and other */
+    public LockMode join(LockMode other) {
+        if (covers(other)) {
+            return this;
+        }
+        if (other.covers(this)) {
+            return other;
+        }
+        // Only S and IX do not cover one another
+        return SIX;
+    }
+
+    /** @return the mode a table or page is locked in before one of its parts is locked in this mode */
+    public LockMode intention() {
+        return this == S || this == IS ? IS : IX;
+    }
+
+    /** @return the page lock mode of a permission */
+    public static LockMode of(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? X : S;
+    }
+}
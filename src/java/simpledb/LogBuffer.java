@@ -0,0 +1,178 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LogBuffer collects log records in memory and writes them to the log file
+ * in large sequential writes, instead of one write per field of a record.
+ * <p>
+ * Records are appended to a ring of fixed-size buffers. A buffer is written
+ * out when the ring is full or when somebody needs the log on disk up to a
+ * given point: before the log is read, before the log is forced, and before
+ * a page is written to its table (the write-ahead rule).
+ * <p>
+ * Every byte of the log has a log sequence number (LSN), its position in
+ * the log as a whole. LSNs only grow, even when the log is truncated or
+ * discarded. The buffer writes to one segment of the log at a time; the
+ * position of a byte in the segment's file is its LSN minus the first LSN
+ * of the segment.
+ * <p>
+ * Writes are positional, so they do not move the file pointer of the
+ * RandomAccessFile the LogFile reads the segment with.
+ *
+ * @see LogFile
+ * @see LogSegment
+ * @see Page#getLSN
+ * @Threadsafe
+ */
+public class LogBuffer {
+
+    /** Default size of each buffer of the ring, in bytes. */
+    public static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+
+    /** Default number of buffers in the ring. */
+    public static final int DEFAULT_BUFFERS = 16;
+
+    private final ByteBuffer[] ring;
+    // Index of the oldest buffer with unwritten bytes, and of the one being filled
+    private int head;
+    private int tail;
+
+    private FileChannel channel;
+    // LSN of offset 0 of channel
+    private long base;
+    // Bytes below this LSN are written to the channel
+    private long writtenLsn;
+    // LSN of the next byte appended
+    private long endLsn;
+
+    /**
+     * @param channel the log file
+     * @param base the LSN of offset 0 of the file
+     * @param lsn the LSN the next byte appended will get
+     */
+    public LogBuffer(FileChannel channel, long base, long lsn) {
+        this(channel, base, lsn, DEFAULT_BUFFERS, DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * @param channel the log file
+     * @param base the LSN of offset 0 of the file
+     * @param lsn the LSN the next byte appended will get
+     * @param buffers the number of buffers in the ring
+     * @param bufferBytes the size of each buffer, in bytes
+     */
+    public LogBuffer(FileChannel channel, long base, long lsn, int buffers, int bufferBytes) {
+        if (buffers < 1 || bufferBytes < 1) {
+            throw new IllegalArgumentException("empty log buffer");
+        }
+        this.ring = new ByteBuffer[buffers];
+        for (int i = 0; i < buffers; i++) {
+            ring[i] = ByteBuffer.allocate(bufferBytes);
+        }
+        this.channel = channel;
+        this.base = base;
+        this.writtenLsn = lsn;
+        this.endLsn = lsn;
+    }
+
+    /**
+     * Append bytes to the log.
+     *
+     * @return the LSN of the first byte appended
+     */
+    public synchronized long append(byte[] b, int off, int len) throws IOException {
+        long lsn = endLsn;
+        while (len > 0) {
+            ByteBuffer cur = ring[tail];
+            if (!cur.hasRemaining()) {
+                int next = (tail + 1) % ring.length;
+                if (next == head) {
+                    // Every buffer is full
+                    writeOut();
+                } else {
+                    tail = next;
+                }
+                continue;
+            }
+            int n = Math.min(len, cur.remaining());
+            cur.put(b, off, n);
+            off += n;
+            len -= n;
+            endLsn += n;
+        }
+        return lsn;
+    }
+
+    /**
+     * Write every byte appended so far to the log file. The file is not
+     * forced.
+     *
+     * @return the LSN just past the last byte written
+     */
+    public synchronized long flush() throws IOException {
+        writeOut();
+        return endLsn;
+    }
+
+    /**
+     * Write the log to the log file up to at least a given LSN. The file is
+     * not forced.
+     */
+    public synchronized void flushTo(long lsn) throws IOException {
+        if (lsn > writtenLsn) {
+            writeOut();
+        }
+    }
+
+    /** @return the LSN the next byte appended will get */
+    public synchronized long getEndLsn() {
+        return endLsn;
+    }
+
+    /** @return the channel of the log file */
+    public synchronized FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Switch to another log file, e.g. a new segment of the log. Bytes not
+     * yet written are dropped, so callers flush first if they want to keep
+     * them.
+     *
+     * @param channel the new log file
+     * @param base the LSN of offset 0 of the new file
+     * @param lsn the LSN the next byte appended will get
+     */
+    public synchronized void reset(FileChannel channel, long base, long lsn) {
+        for (ByteBuffer b : ring) {
+            b.clear();
+        }
+        head = 0;
+        tail = 0;
+        this.channel = channel;
+        this.base = base;
+        this.writtenLsn = lsn;
+        this.endLsn = lsn;
+    }
+
+    // Write the buffers from head to tail, in order, and empty them
+    private void writeOut() throws IOException {
+        long pos = writtenLsn - base;
+        for (int i = head; ; i = (i + 1) % ring.length) {
+            ByteBuffer b = ring[i];
+            b.flip();
+            while (b.hasRemaining()) {
+                pos += channel.write(b, pos);
+            }
+            b.clear();
+            if (i == tail) {
+                break;
+            }
+        }
+        head = tail;
+        writtenLsn = endLsn;
+    }
+}
@@ -2,7 +2,16 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.lang.reflect.*;
 
 /**
@@ -39,20 +48,38 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
-
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
-
-<li> Each log record begins with an integer type and a long integer
-transaction id.
-
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
-
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> The log is a sequence of segments: numbered files of a fixed
+size, named after the log file, that are filled with zeros when they
+are created (see LogSegment).  A new segment is started once the
+current one is full (see setSegmentSize); records never span two
+segments.  Segments the log no longer needs are recycled as new ones.
+
+<li> The log file itself is the manifest: an integer magic number, the
+long integer LSN of the last written checkpoint or -1 if there are no
+checkpoints, the integer number of the next segment file to create,
+an integer count of the segments of the log followed by the integer
+file number and the long integer first LSN of each, in log order, and
+an integer count of the segment files waiting to be recycled followed
+by the integer file number of each.
+
+<li> The segments hold log records, one after the other.  Log records
+are variable length.  Records refer to each other by their LSN, their
+position in the log as a whole, which does not change when segments
+are added or dropped.  The log ends at the first place that does not
+hold a whole record (see isRecordAt): the zeros of a new segment, or
+older records of a recycled one.
+
+<li> Each log record begins with an integer type, the integer length
+of the whole record, a long integer transaction id and the long
+integer LSN of the previous record of the same transaction (its
+prevLSN), or -1 if there is none.  Following the prevLSNs back from a
+transaction's last record visits all of its records, newest first.
+
+<li> Each log record ends with a long integer LSN representing the
+position in the log where the record began.
+
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, BULK_INSERT and DELTA
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -62,19 +89,48 @@ accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first and last log records, and of
+the dirty page table: the pages with logged changes not yet on disk,
+each with the LSN of the first such change (its recLSN).  The format
+of the record is an integer count of the number of transactions, as
+well as a long integer transaction id, a long integer first record LSN
+and a long integer last record LSN for each active transaction,
+followed by an integer count of the number of dirty pages, as well as
+an integer table id, an integer page number and a long integer recLSN
+for each dirty page.
+
+<li> BULK_INSERT records describe pages a transaction appended to a
+table without going through the buffer pool: an integer table id, the
+integer number of the first new page and the integer number of pages.
+The pages are on disk before the transaction commits, so they are never
+redone; undoing the record writes empty pages over them.
+
+<li> DELTA records describe a change to a HeapPage by the slots that
+changed: an integer table id, an integer page number and a
+HeapPageDelta (see HeapPageDelta.write), holding the tuples each slot
+had before and after.  They replace UPDATE records for HeapPages
+unless full page images are turned on (see setFullPageImages).
 
 </ul>
 
+<p> Records are not written to the file directly but appended to a
+LogBuffer, which writes them out in large writes.
+
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    // The segments of the log by their first LSN, and the segment files
+    // waiting to be recycled. Protected by this
+    private TreeMap<Long,LogSegment> segments;
+    private List<LogSegment> free;
+    // The last segment, appended to
+    private volatile LogSegment appending;
+    // LSN of the last checkpoint and number of the next segment file
+    // created, as in the manifest. Protected by this
+    private long lastCheckpoint;
+    private int nextSegment;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,18 +138,95 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int BULK_INSERT_RECORD = 6;
+    static final int DELTA_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_PREV_RECORD = -1;
+
+    // First int of the manifest
+    private static final int MANIFEST_MAGIC = 0x4c4f4732; // "LOG2"
+
+    /** Number of segment files kept for recycling when the log is
+        truncated; more are deleted. */
+    static final int MAX_FREE_SEGMENTS = 4;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    // Size of a record with no body: type, length, tid, prev and start
+    static final int MIN_RECORD_SIZE = INT_SIZE + INT_SIZE + 3 * LONG_SIZE;
+
+    long currentOffset = -1;//protected by this; LSN of the next record
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // Offset of the last record of each active transaction; protected by this
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
+
+    /** Default number of threads pages are redone on during recovery. */
+    static final int REDO_THREADS = Runtime.getRuntime().availableProcessors();
+    private volatile int redoThreads = REDO_THREADS;
+
+    // Compensations for the records undone by rollback, in log order
+    Stack<Undo> toUndo;
+
+    /** Name of the system property that turns on full page images in
+        UPDATE records instead of DELTA records. */
+    public static final String FULL_PAGE_IMAGES_PROPERTY = "simpledb.log.fullPageImages";
+
+    private volatile boolean fullPageImages = Boolean.getBoolean(FULL_PAGE_IMAGES_PROPERTY);
+
+    /** Default size of a segment of the log, in bytes. */
+    public static final long DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    /** Name of the system property that sets the segment size, in bytes. */
+    public static final String SEGMENT_SIZE_PROPERTY = "simpledb.log.segmentBytes";
+
+    private volatile long segmentBytes = Long.getLong(SEGMENT_SIZE_PROPERTY, DEFAULT_SEGMENT_BYTES);
+
+    /** How to undo one log record on one page. */
+    static class Undo {
+        final PageId pid;
+        // The page before the record and after it, or null
+        final Page before;
+        final Page after;
+        // The changes the record made, or null
+        final HeapPageDelta delta;
+
+        Undo(PageId pid, Page before, Page after, HeapPageDelta delta) {
+            this.pid = pid;
+            this.before = before;
+            this.after = after;
+            this.delta = delta;
+        }
+    }
 
-    Stack<Page> toUndo;
+    // Records are appended to buffer, not written to the segments; the
+    // segments are only read after flushing the buffer
+    private LogBuffer buffer;
+    // Each record is built here and appended to buffer in one piece; protected by this
+    private final RecordBytes recordBytes = new RecordBytes();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+    private static class RecordBytes extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /** Name of the system property that sets the default maximum batch
+        delay of group commit, in microseconds. */
+    public static final String GROUP_COMMIT_DELAY_PROPERTY = "simpledb.groupCommitDelayMicros";
+
+    // Group commit state, protected by durableLock. durableLock is never
+    // held while acquiring the monitor of this LogFile.
+    private final Object durableLock = new Object();
+    private long durableLsn = 0; // log up to here is on disk
+    private boolean forcing = false; // a leader is forcing the log
+    private volatile long maxBatchDelayMicros = Long.getLong(GROUP_COMMIT_DELAY_PROPERTY, 0L);
+    private long forceCount = 0;
+    private long commitCount = 0;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -104,11 +237,25 @@ public class LogFile {
         do it, while if someone starts adding log file entries, then first
         throw out the initial log file contents.
 
-        @param f The log file's name
+        @param f The log file's name, i.e. that of its manifest; the
+        segments of the log are kept next to it
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new TreeMap<>();
+        free = new ArrayList<>();
+        readManifest();
+        if (segments.isEmpty()) {
+            LogSegment seg = LogSegment.create(f, nextSegment++, segmentBytes);
+            segments.put(0L, seg);
+            writeManifest();
+            currentOffset = 0;
+        } else {
+            // Past every record of the old log, wherever it ends
+            currentOffset = segments.lastEntry().getValue().getEnd();
+        }
+        appending = segments.lastEntry().getValue();
+        buffer = new LogBuffer(appending.getChannel(), appending.getStart(), currentOffset);
         recoveryUndecided = true;
         toUndo = new Stack<>();
 
@@ -124,17 +271,206 @@ public class LogFile {
     }
 
     // we're about to append a log record. if we weren't sure whether the
-    // DB wants to do recovery, we're sure now -- it didn't. So truncate
-    // the log.
+    // DB wants to do recovery, we're sure now -- it didn't. So recycle
+    // the old segments; LSNs carry on from the end of the old log.
     void preAppend() throws IOException {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            lastCheckpoint = NO_CHECKPOINT_ID;
+            List<LogSegment> deleted = recycle(segments.values());
+            segments.clear();
+            startSegment(currentOffset);
+            for (LogSegment seg : deleted) {
+                seg.delete();
+            }
+        }
+    }
+
+    /** Put segments the log no longer needs on the list of files to
+        recycle, up to MAX_FREE_SEGMENTS files.  Files of another size
+        than the segment size are not recycled, so a new size takes
+        effect.
+        @return the segments not recycled, to delete once the manifest
+                no longer lists them
+    */
+    private List<LogSegment> recycle(Collection<LogSegment> unneeded) {
+        List<LogSegment> deleted = new ArrayList<>();
+        for (LogSegment seg : unneeded) {
+            if (free.size() < MAX_FREE_SEGMENTS && seg.getCapacity() == segmentBytes) {
+                free.add(seg);
+            } else {
+                deleted.add(seg);
+            }
+        }
+        return deleted;
+    }
+
+    /** Start a new segment at an LSN and append to it from now on.  A
+        recycled segment file is used if there is one.
+    */
+    private void startSegment(long start) throws IOException {
+        LogSegment seg = free.isEmpty()
+                ? LogSegment.create(logFile, nextSegment++, segmentBytes)
+                : free.remove(0);
+        seg.setStart(start);
+        segments.put(start, seg);
+        // The segment is part of the log before anything is appended to it
+        writeManifest();
+        buffer.reset(seg.getChannel(), start, start);
+        appending = seg;
+        currentOffset = start;
+    }
+
+    /** Move on to a new segment if the current one is full, i.e. an
+        UPDATE record with two full page images may not fit in it.  The
+        full one is forced first, so the log is on disk up to the new one.
+        Records that do not fit anyway make the segment's file longer.
+    */
+    private void rollIfFull() throws IOException {
+        long used = currentOffset - appending.getStart();
+        long reserve = 2 * BufferPool.getPageSize() + 1024;
+        if (used > 0 && used + reserve > appending.getCapacity()) {
+            force();
+            startSegment(currentOffset);
+        }
+    }
+
+    /** @return the segment holding an LSN, positioned at it for reading.
+        The LSN just past the last record of a segment is the first of the
+        next.
+    */
+    private RandomAccessFile seek(long lsn) throws IOException {
+        Map.Entry<Long,LogSegment> e = segments.floorEntry(lsn);
+        if (e == null) {
+            throw new IOException("log record " + lsn + " was truncated");
+        }
+        return e.getValue().seek(lsn);
+    }
+
+    /** Check whether a whole record starts at an LSN: a known type and a
+        length whose last long integer is the LSN.  The end of the log is
+        followed by zeros, by records of an older incarnation of a
+        recycled segment or by a record torn by a crash, none of which
+        passes.  The file is left positioned at the LSN.
+    */
+    private boolean isRecordAt(long lsn) throws IOException {
+        RandomAccessFile in = seek(lsn);
+        long pos = in.getFilePointer();
+        if (pos + MIN_RECORD_SIZE > in.length()) {
+            return false;
+        }
+        int type = in.readInt();
+        int length = in.readInt();
+        if (type < ABORT_RECORD || type > DELTA_RECORD
+                || length < MIN_RECORD_SIZE || pos + length > in.length()) {
+            in.seek(pos);
+            return false;
+        }
+        in.seek(pos + length - LONG_SIZE);
+        boolean whole = in.readLong() == lsn;
+        in.seek(pos);
+        return whole;
+    }
+
+    /** Read the manifest: the segments of the log, the free segment files
+        and the last checkpoint.  A missing manifest, or one in an unknown
+        format, means an empty log.
+    */
+    private void readManifest() throws IOException {
+        lastCheckpoint = NO_CHECKPOINT_ID;
+        nextSegment = 0;
+        if (!logFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(logFile)))) {
+            if (in.readInt() != MANIFEST_MAGIC) {
+                return;
+            }
+            lastCheckpoint = in.readLong();
+            nextSegment = in.readInt();
+            int numSegments = in.readInt();
+            for (int i = 0; i < numSegments; i++) {
+                LogSegment seg = LogSegment.open(logFile, in.readInt());
+                seg.setStart(in.readLong());
+                segments.put(seg.getStart(), seg);
+            }
+            int numFree = in.readInt();
+            for (int i = 0; i < numFree; i++) {
+                free.add(LogSegment.open(logFile, in.readInt()));
+            }
+        } catch (EOFException e) {
+            throw new IOException("log manifest " + logFile + " is truncated");
+        }
+    }
+
+    /** Write the manifest.  It is written to a temporary file and forced
+        first, so a crash leaves either the old or the new manifest.
+    */
+    private void writeManifest() throws IOException {
+        File tmp = new File(logFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeLong(lastCheckpoint);
+            out.writeInt(nextSegment);
+            out.writeInt(segments.size());
+            for (LogSegment seg : segments.values()) {
+                out.writeInt(seg.getNumber());
+                out.writeLong(seg.getStart());
+            }
+            out.writeInt(free.size());
+            for (LogSegment seg : free) {
+                out.writeInt(seg.getNumber());
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        // Make the rename durable, where directories can be forced
+        try (FileChannel dir = FileChannel.open(
+                logFile.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // Not supported on this platform
+        }
+    }
+
+    /** Append the record built in record to the log buffer, filling in
+        its length.
+        @return the LSN just past the record
+    */
+    private long appendRecord() throws IOException {
+        record.flush();
+        int size = recordBytes.size();
+        byte[] bytes = recordBytes.bytes();
+        bytes[INT_SIZE] = (byte) (size >>> 24);
+        bytes[INT_SIZE + 1] = (byte) (size >>> 16);
+        bytes[INT_SIZE + 2] = (byte) (size >>> 8);
+        bytes[INT_SIZE + 3] = (byte) size;
+        long lsn = buffer.append(bytes, 0, size);
+        recordBytes.reset();
+        currentOffset += size;
+        return lsn + size;
+    }
+
+    /** Start building a record in record: its type, room for its length,
+        the transaction and the transaction's previous record, which this
+        one now follows.
+    */
+    private void startRecord(int type, long tid) throws IOException {
+        rollIfFull();
+        record.writeInt(type);
+        record.writeInt(0);
+        record.writeLong(tid);
+        Long prev = tidToLastLogRecord.get(tid);
+        record.writeLong(prev == null ? NO_PREV_RECORD : prev);
+        if (type == COMMIT_RECORD || type == ABORT_RECORD) {
+            tidToLastLogRecord.remove(tid);
+        } else {
+            tidToLastLogRecord.put(tid, currentOffset);
         }
     }
 
@@ -164,15 +500,13 @@ public class LogFile {
                 // Write CLR records from the pages we want to update back to its before
                 // which we built up in rollback()
                 while(!toUndo.isEmpty()){
-                    Page before = toUndo.pop();
-                    Page after = toUndo.pop();
-                    logWrite(tid, before, after);
+                    writeCompensation(tid.getId(), toUndo.pop());
                 }
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                startRecord(ABORT_RECORD, tid.getId());
+                record.writeLong(currentOffset);
+                appendRecord();
+                // Aborts are rare and hold the buffer pool; no point in batching them
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -180,25 +514,36 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The log is forced by group commit:
+        commits arriving while the log is being forced wait for the next
+        force, which makes all of them durable at once.
 
         @param tid The committing transaction.
+        @see #setMaxBatchDelay
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            startRecord(COMMIT_RECORD, tid.getId());
+            record.writeLong(currentOffset);
+            lsn = appendRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        synchronized (durableLock) {
+            commitCount++;
+        }
+        waitUntilDurable(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  The LSN of the
+        after image is set to the end of the record.  For HeapPages a
+        DELTA record with just the changed slots is written instead,
+        unless full page images are turned on.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -208,28 +553,149 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
+        after.setLSN(writeUpdate(tid.getId(), before, after));
+
+        Debug.log("WRITE OFFSET = " + currentOffset);
+    }
+
+    /** Write an UPDATE or DELTA record.
+        @return the LSN just past the record
+    */
+    private long writeUpdate(long tid, Page before, Page after)
+        throws IOException {
+        if (!fullPageImages && before instanceof HeapPage && after instanceof HeapPage) {
+            return writeDelta(tid, ((HeapPage) after).deltaFrom((HeapPage) before));
+        }
         /* update record conists of
 
            record type
            transaction id
+           previous record offset
            before page data (see writePageData)
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        startRecord(UPDATE_RECORD, tid);
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(record,before);
+        writePageData(record,after);
+        record.writeLong(currentOffset);
+        return appendRecord();
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** Write the compensation record for undoing a record, if it needs one. */
+    private void writeCompensation(long tid, Undo undo) throws IOException {
+        if (undo.delta != null) {
+            writeDelta(tid, undo.delta.inverse());
+        } else if (undo.after != null) {
+            writeUpdate(tid, undo.after, undo.before);
+        }
+    }
+
+    /** Write a BULK_INSERT record for pages a transaction appended to a
+        table, and force the log to disk. The pages must not be written
+        before this returns.
+
+        @param tid The transaction appending the pages
+        @param tableId The table the pages were appended to
+        @param firstPage The number of the first new page
+        @param numPages The number of new pages
+
+        @see HeapFile#appendPages
+    */
+    public void logBulkInsert(TransactionId tid, int tableId,
+                              int firstPage, int numPages)
+        throws IOException {
+        long lsn;
+        synchronized (this) {
+            Debug.log("BULK INSERT, offset = " + currentOffset);
+            preAppend();
+            startRecord(BULK_INSERT_RECORD, tid.getId());
+            record.writeInt(tableId);
+            record.writeInt(firstPage);
+            record.writeInt(numPages);
+            record.writeLong(currentOffset);
+            lsn = appendRecord();
+        }
+        waitUntilDurable(lsn);
+    }
+
+    /** Write a DELTA record for the specified tid.
+        @return the LSN just past the record
+    */
+    private long writeDelta(long tid, HeapPageDelta delta)
+        throws IOException {
+        startRecord(DELTA_RECORD, tid);
+        record.writeInt(delta.getPageId().getTableId());
+        record.writeInt(delta.getPageId().getPageNumber());
+        delta.write(record);
+        record.writeLong(currentOffset);
+        return appendRecord();
+    }
+
+    HeapPageDelta readDelta(DataInput in) throws IOException {
+        int table = in.readInt();
+        int pgNo = in.readInt();
+        return HeapPageDelta.read(new HeapPageId(table, pgNo), in);
+    }
+
+    /**
+     * Turn full page images in UPDATE records on or off. With them off,
+     * the default, changes to HeapPages are logged as DELTA records
+     * holding only the tuples that changed. The default can be changed
+     * with the {@value #FULL_PAGE_IMAGES_PROPERTY} system property.
+     */
+    public void setFullPageImages(boolean on) {
+        fullPageImages = on;
+    }
+
+    /** @return true if UPDATE records carry full page images */
+    public boolean isFullPageImages() {
+        return fullPageImages;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /**
+     * Set the size of the segment files created from now on. Smaller
+     * segments let truncation free space sooner, at the cost of a force
+     * of the log and of the manifest each time a segment fills up. The
+     * default is {@link #DEFAULT_SEGMENT_BYTES}, or the value of the
+     * {@value #SEGMENT_SIZE_PROPERTY} system property.
+     *
+     * @param bytes the segment size, in bytes
+     */
+    public void setSegmentSize(long bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("empty log segments");
+        }
+        segmentBytes = bytes;
+    }
+
+    /** @return the size of new segment files, in bytes */
+    public long getSegmentSize() {
+        return segmentBytes;
+    }
+
+    /**
+     * Set how many threads the redo pass of recovery spreads pages over.
+     * The default is the number of processors.
+     *
+     * @param threads the number of redo threads
+     */
+    public void setRedoThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("no redo threads");
+        }
+        redoThreads = threads;
+    }
+
+    /** @return the number of threads the redo pass runs on */
+    public int getRedoThreads() {
+        return redoThreads;
+    }
+
+    void writePageData(DataOutput out, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -244,16 +710,16 @@ public class LogFile {
         String pageClassName = p.getClass().getName();
         String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        out.writeUTF(pageClassName);
+        out.writeUTF(idClassName);
 
-        raf.writeInt(pageInfo.length);
+        out.writeInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            out.writeInt(pageInfo[i]);
         }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
@@ -318,150 +784,183 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        startRecord(BEGIN_RECORD, tid.getId());
+        record.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        appendRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        Checkpoints are fuzzy: no pages are written.  The record holds
+        the active transactions and the dirty page table, the pages with
+        logged changes not yet on disk and the LSN of the first such
+        change of each, so recovery knows where to start redoing.  Only
+        the monitor of this LogFile is held, and only while the tables
+        are copied into the record; the record is forced by group commit.
+        Segments recovery no longer needs are then deleted.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+        long checkpoint;
+        long end;
+        synchronized (this) {
+            preAppend();
+            rollIfFull();
+            checkpoint = currentOffset;
+            record.writeInt(CHECKPOINT_RECORD);
+            record.writeInt(0); // length, filled in by appendRecord
+            record.writeLong(-1); //no tid , but leave space for convenience
+            record.writeLong(NO_PREV_RECORD);
+
+            //write list of outstanding transactions
+            record.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long,Long> e : tidToFirstLogRecord.entrySet()) {
+                Long key = e.getKey();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                record.writeLong(key);
+                record.writeLong(e.getValue());
+                Long last = tidToLastLogRecord.get(key);
+                record.writeLong(last == null ? e.getValue() : last);
+            }
+
+            // write the dirty page table. A change logged after this has
+            // a recLSN noted before it was appended, so either the page is
+            // in the table or the change follows this record
+            Map<PageId,Long> dirty = new HashMap<>();
+            for (FrameDescriptor frame : Database.getBufferPool().getFrameDescriptors()) {
+                long recLsn = frame.getRecLSN();
+                if (recLsn != FrameDescriptor.NO_REC_LSN) {
+                    dirty.put(frame.getPageId(), recLsn);
                 }
+            }
+            record.writeInt(dirty.size());
+            for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+                record.writeInt(e.getKey().getTableId());
+                record.writeInt(e.getKey().getPageNumber());
+                record.writeLong(e.getValue());
+            }
+            record.writeLong(checkpoint);
+            end = appendRecord();
+        }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        flushTo(end);
+        synchronized (this) {
+            //once the CP is on disk, make sure the manifest points to it
+            lastCheckpoint = checkpoint;
+            writeManifest();
+        }
+
+        // Free space maps are hints, saved along with each checkpoint
+        Iterator<Integer> tableIds = Database.getCatalog().tableIdIterator();
+        while (tableIds.hasNext()) {
+            DbFile file = Database.getCatalog().getDatabaseFile(tableIds.next());
+            if (file instanceof HeapFile) {
+                ((HeapFile) file).saveFreeSpaceMap();
             }
         }
 
         logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+    /** The active transaction table and the dirty page table of a
+        CHECKPOINT record. */
+    static class Checkpoint {
+        // Active transaction -> its first and its last record
+        final Map<Long,Long> firstRecord = new HashMap<>();
+        final Map<Long,Long> lastRecord = new HashMap<>();
+        // Dirty page -> its recLSN
+        final Map<PageId,Long> dirtyPages = new HashMap<>();
+
+        /** @return the oldest record recovery may need, given the
+            checkpoint record's own LSN */
+        long oldestNeeded(long checkpoint) {
+            long oldest = checkpoint;
+            for (long lsn : firstRecord.values()) {
+                oldest = Math.min(oldest, lsn);
             }
+            return Math.min(oldest, redoStart(checkpoint));
+        }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        /** @return the LSN redo starts at */
+        long redoStart(long checkpoint) {
+            long start = checkpoint;
+            for (long lsn : dirtyPages.values()) {
+                start = Math.min(start, lsn);
             }
+            return start;
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+    /** Read the body of a CHECKPOINT record. */
+    Checkpoint readCheckpoint(DataInput in) throws IOException {
+        Checkpoint cp = new Checkpoint();
+        int numXactions = in.readInt();
+        while (numXactions-- > 0) {
+            long tid = in.readLong();
+            cp.firstRecord.put(tid, in.readLong());
+            cp.lastRecord.put(tid, in.readLong());
+        }
+        int numDirty = in.readInt();
+        while (numDirty-- > 0) {
+            int table = in.readInt();
+            int pgNo = in.readInt();
+            cp.dirtyPages.put(new HeapPageId(table, pgNo), in.readLong());
+        }
+        return cp;
+    }
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+    /** Read the CHECKPOINT record at an LSN. */
+    private Checkpoint readCheckpointAt(long lsn) throws IOException {
+        RandomAccessFile in = seek(lsn);
+        int cpType = in.readInt();
+        in.readInt();
+        in.readLong();
+        in.readLong();
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        return readCheckpoint(in);
+    }
 
-            } catch (EOFException e) {
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption: the segments that only hold records older than
+        everything recovery from the last checkpoint needs are dropped
+        from the manifest and recycled, or deleted if enough segment
+        files are waiting to be recycled already. */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        long cpLoc = lastCheckpoint;
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
+        buffer.flush();
+        long minLogRecord = readCheckpointAt(cpLoc).oldestNeeded(cpLoc);
+
+        // A segment can go once the next one starts at or before
+        // minLogRecord; the segment being appended to always stays
+        List<LogSegment> unneeded = new ArrayList<>();
+        while (segments.size() > 1) {
+            Map.Entry<Long,LogSegment> first = segments.firstEntry();
+            if (segments.higherKey(first.getKey()) > minLogRecord) {
                 break;
             }
+            segments.remove(first.getKey());
+            unneeded.add(first.getValue());
+        }
+        if (unneeded.isEmpty()) {
+            return;
+        }
+        List<LogSegment> deleted = recycle(unneeded);
+        // The segments leave the log before their files are reused
+        writeManifest();
+        for (LogSegment seg : deleted) {
+            seg.delete();
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG; DROPPED " + unneeded.size() + " SEGMENTS ; NEW START : " + segments.firstKey());
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -482,6 +981,10 @@ public class LogFile {
 
                 preAppend();
 
+                // Log the changes the transaction made only in memory, so
+                // that undoing its records undoes all of its changes
+                Database.getBufferPool().logDirtyPages(tid);
+
                 long tidLong = tid.getId();
                 rollback(tidLong);
                 
@@ -493,70 +996,172 @@ public class LogFile {
     // since that is how we get tids for loser transactions in recover
     public void rollback(long tidLong)
             throws NoSuchElementException, IOException{
-        raf.seek(tidToFirstLogRecord.get(tidLong));
-        Map<PageId,Page> beforePages = new HashMap<>();
-
-        while (true) {
-            try {
-
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
+        Long last = tidToLastLogRecord.get(tidLong);
+        if (last == null) {
+            return;
+        }
+        buffer.flush();
+
+        // Follow the transaction's chain of records back from its last one,
+        // undoing each on the pages as they are now, so each page ends up
+        // as it was before the transaction's first record
+        Map<PageId,Page> undone = new HashMap<>();
+        List<Undo> undos = new ArrayList<>();
+        long offset = last;
+        while (offset != NO_PREV_RECORD) {
+            offset = undoRecordAt(offset, undone, undos);
+        }
 
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-                        if(record_tid == tidLong) {
-                            PageId pid = before.getId();
-                            if(!beforePages.containsKey(pid)){
-                                beforePages.put(pid,before);
-                            }
+        // Compensation records are written for these in logAbort, newest first
+        for (int i = undos.size() - 1; i >= 0; i--) {
+            toUndo.push(undos.get(i));
+        }
+        // Pages changed a tuple at a time are undone in memory instead:
+        // other transactions may be changing other tuples of them, and
+        // their uncommitted changes must neither be lost nor reach disk
+        Iterator<PageId> pids = undone.keySet().iterator();
+        while (pids.hasNext()) {
+            if (abortRowChanges(pids.next(), tidLong)) {
+                pids.remove();
+            }
+        }
+        writeUndonePages(undone);
+    }
 
-                            // Update the pages we need to write CLR/update records for
-                            // push before page, after page, so when it is popped, after is
-                            // before and before is after
-                            toUndo.push(before);
-                            toUndo.push(after);
-                        }
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        while (numXactions-- > 0) {
-                            raf.readLong();
-                            raf.readLong();
-                        }
-                        break;
-                    case COMMIT_RECORD:
-                    case BEGIN_RECORD:
-                    case ABORT_RECORD:
-                        break;
+    /** Undo the record at an LSN of the log.
+        @param undone the pages undone so far, updated
+        @param undos the Undo of the record is added here, if it needs a
+               compensation record
+        @return the offset of the transaction's previous record, or
+                NO_PREV_RECORD if this is its first
+    */
+    private long undoRecordAt(long offset, Map<PageId,Page> undone, List<Undo> undos)
+        throws IOException {
+        RandomAccessFile in = seek(offset);
+        int type = in.readInt();
+        in.readInt();
+        in.readLong();
+        long prev = in.readLong();
+
+        switch (type) {
+            case UPDATE_RECORD:
+                Page before = readPageData(in);
+                Page after = readPageData(in);
+                Undo update = new Undo(before.getId(), before, after, null);
+                undoRecord(update, undone);
+                undos.add(update);
+                break;
+            case DELTA_RECORD:
+                HeapPageDelta delta = readDelta(in);
+                Undo change = new Undo(delta.getPageId(), null, null, delta);
+                undoRecord(change, undone);
+                undos.add(change);
+                break;
+            case BULK_INSERT_RECORD:
+                int bulkTable = in.readInt();
+                int firstPage = in.readInt();
+                int numPages = in.readInt();
+                // The pages were empty before the bulk insert
+                for (int i = 0; i < numPages; i++) {
+                    HeapPageId pid = new HeapPageId(bulkTable, firstPage + i);
+                    undone.put(pid, new HeapPage(pid, HeapPage.createEmptyPageData()));
                 }
-
-                raf.readLong();
-            }catch (EOFException e) {
                 break;
-            }
+            case BEGIN_RECORD:
+                return NO_PREV_RECORD;
+        }
+        return prev;
+    }
 
+    // Undo a record on the pages undone so far, or on the page as it is now
+    private void undoRecord(Undo undo, Map<PageId,Page> undone) throws IOException {
+        if(undo.delta == null){
+            undone.put(undo.pid, undo.before);
+            return;
         }
+        Page current = undone.get(undo.pid);
+        if(current == null){
+            current = currentPage(undo.pid);
+        }
+        byte[] data = current.getPageData();
+        undo.delta.undo(data);
+        undone.put(undo.pid, new HeapPage((HeapPageId) undo.pid, data));
+    }
 
-        // for each pid of pages we undo updates for this tid, we mapped to earliest before image of page
-        // discard from memory, write og to disk
-        for(PageId pid : beforePages.keySet()){
+    // Discard undone pages from memory and write them to disk
+    private void writeUndonePages(Map<PageId,Page> undone) throws IOException {
+        for(PageId pid : undone.keySet()){
             int table = pid.getTableId();
             Database.getBufferPool().discardPage(pid);
-            Database.getCatalog().getDatabaseFile(table).writePage(beforePages.get(pid));
+            DbFile file = Database.getCatalog().getDatabaseFile(table);
+            file.writePage(undone.get(pid));
+            // Undoing inserts frees slots again
+            if(file instanceof HeapFile){
+                ((HeapFile) file).getFreeSpaceMap().setHasSpace(pid.getPageNumber(), true);
+            }
         }
     }
 
+    // Undo a transaction's tuples on a cached page it changed a tuple at a
+    // time, and write out what is committed of the page in case the
+    // changes reached disk; false if there is no such page
+    private boolean abortRowChanges(PageId pid, long tidLong) throws IOException {
+        FrameDescriptor frame = Database.getBufferPool().getFrameDescriptor(pid);
+        Page page = frame == null ? null : frame.getPage();
+        if (!(page instanceof HeapPage)) {
+            return false;
+        }
+        HeapPage heapPage = (HeapPage) page;
+        for (TransactionId writer : heapPage.getWriters()) {
+            if (writer.getId() == tidLong) {
+                heapPage.abortWrites(writer);
+                Database.getBufferPool().writeCommittedImage(pid, writer);
+                // Undoing inserts frees slots again
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                if (file instanceof HeapFile) {
+                    ((HeapFile) file).getFreeSpaceMap().setHasSpace(pid.getPageNumber(), true);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The page as it is now: the copy in the buffer pool if there is one,
+    // or else the one on disk. Pages past the end of their file are empty.
+    private Page currentPage(PageId pid) throws IOException {
+        FrameDescriptor frame = Database.getBufferPool().getFrameDescriptor(pid);
+        Page page = frame == null ? null : frame.getPage();
+        if (page != null) {
+            return page;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (file instanceof HeapFile && pid.getPageNumber() >= ((HeapFile) file).numPages()) {
+            return new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData());
+        }
+        return file.readPage(pid);
+    }
+
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // Checkpoints are fuzzy, so write the pages out first to
+            // leave nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                force();
+                for (LogSegment seg : segments.values()) {
+                    seg.close();
+                }
+                for (LogSegment seg : free) {
+                    seg.close();
+                }
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -566,105 +1171,274 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery makes three passes, as in ARIES.  Analysis starts from
+        the tables of the last checkpoint and reads the log from the
+        oldest recLSN of its dirty page table, finding the transactions
+        that never finished (the losers) and, for every dirty page, the
+        records to redo.  Before the checkpoint only records of pages in
+        its dirty page table, from their recLSN on, are redone; the
+        other pages were on disk.  Redo repeats history page by page, on
+        up to {@link #setRedoThreads} threads, reading and writing each
+        dirty page once.
+        Undo follows the prevLSN chains of the losers back, newest
+        record first, logging a compensation record for each record it
+        undoes and an ABORT record for each loser.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
+                buffer.flush();
+
+                // Analysis: the last record of each loser, and the records
+                // to redo for each dirty page, in log order
+                Map<Long,Long> losers = new HashMap<>();
+                Map<PageId,List<Object>> dirtyPages = new LinkedHashMap<>();
 
-                raf.seek(0);
                 // Check the pointer to latest checkpoint and start reading log from there if
                 // there is a one
-                long checkpoint = raf.readLong();
-                if(checkpoint != -1){
-                    raf.seek(checkpoint);
+                long checkpoint = lastCheckpoint;
+                Checkpoint cp = null;
+                long offset = segments.firstKey();
+                if(checkpoint != NO_CHECKPOINT_ID){
+                    cp = readCheckpointAt(checkpoint);
+                    // Transactions active at the checkpoint are losers
+                    // unless they finish later on
+                    tidToFirstLogRecord.putAll(cp.firstRecord);
+                    losers.putAll(cp.lastRecord);
+                    offset = cp.redoStart(checkpoint);
                 }
 
-                Set<Long> losers = new HashSet<>();
-
-                // from checkpoint or beginning, we redo
-
-                while (true) {
+                while (isRecordAt(offset)) {
                     try {
-                        int type = raf.readInt();
-                        long record_tid = raf.readLong();
-                        if(record_tid != -1) {
-                            losers.add(record_tid);
-                        }
+                        RandomAccessFile in = seek(offset);
+                        long pos = in.getFilePointer();
+                        int type = in.readInt();
+                        in.readInt();
+                        long record_tid = in.readLong();
+                        in.readLong();
+                        // The checkpoint's tables cover what came before it
+                        boolean beforeCheckpoint = offset < checkpoint;
 
                         switch (type) {
                             case UPDATE_RECORD:
-                                Page before = readPageData(raf);
-                                Page after = readPageData(raf);
-                                int table = after.getId().getTableId();
-
-                                // Do the update by writing changed page to disk
-                                Database.getCatalog().getDatabaseFile(table).writePage(after);
-
+                                readPageData(in);
+                                Page after = readPageData(in);
+                                if (beforeCheckpoint && !isRedone(cp, after.getId(), offset)) {
+                                    break;
+                                }
+                                // A full image makes the page's earlier records moot
+                                List<Object> redo = new ArrayList<>();
+                                redo.add(after);
+                                dirtyPages.put(after.getId(), redo);
                                 break;
-                            case ABORT_RECORD:
-                            case COMMIT_RECORD:
-                                // Committed or aborted so not part of the loser transactions set
-                                losers.remove(record_tid);
-                                tidToFirstLogRecord.remove(record_tid);
+                            case DELTA_RECORD:
+                                HeapPageDelta delta = readDelta(in);
+                                if (beforeCheckpoint && !isRedone(cp, delta.getPageId(), offset)) {
+                                    break;
+                                }
+                                List<Object> deltas = dirtyPages.get(delta.getPageId());
+                                if (deltas == null) {
+                                    deltas = new ArrayList<>();
+                                    dirtyPages.put(delta.getPageId(), deltas);
+                                }
+                                deltas.add(delta);
+                                break;
+                            case BULK_INSERT_RECORD:
+                                // Bulk inserted pages were forced to disk when they were written
+                                in.readInt();
+                                in.readInt();
+                                in.readInt();
                                 break;
                             case CHECKPOINT_RECORD:
-                                int numXactions = raf.readInt();
-                                while (numXactions-- > 0) {
-                                    long active_tid = raf.readLong();
-                                    long tid_offset = raf.readLong();
-
-                                    // Build tidToFirstLogRecord for active transactions in checkpoint
-                                    // in case records after this checkpoint are not related to the active
-                                    // transactions here
-                                    tidToFirstLogRecord.put(active_tid,tid_offset);
-                                    losers.add(active_tid);
-                                }
+                                readCheckpoint(in);
                                 break;
                             case BEGIN_RECORD:
-                                // Need to build tidToFirstLogRecord for use in rollback()
-                                // Begin record marks the offset for the start of this transaction
-                                tidToFirstLogRecord.put(record_tid, raf.getFilePointer() - INT_SIZE - LONG_SIZE);
+                                if (!beforeCheckpoint) {
+                                    tidToFirstLogRecord.put(record_tid, offset);
+                                }
                                 break;
                         }
-                        raf.readLong();
+                        in.readLong();
+
+                        if (!beforeCheckpoint) {
+                            if (type == COMMIT_RECORD || type == ABORT_RECORD) {
+                                // Committed or aborted so not part of the loser transactions set
+                                losers.remove(record_tid);
+                                tidToFirstLogRecord.remove(record_tid);
+                            } else if (type != CHECKPOINT_RECORD) {
+                                losers.put(record_tid, offset);
+                            }
+                        }
+                        offset += in.getFilePointer() - pos;
                     } catch (EOFException e) {
                         break;
                     }
                 }
 
-                // Undo the losers
-                for(long loser : losers){
-                    rollback(loser);
-                }
+                // New records go after the last whole record, over
+                // whatever follows it
+                appending = segments.floorEntry(offset).getValue();
+                currentOffset = offset;
+                buffer.reset(appending.getChannel(), appending.getStart(), offset);
 
+                redo(dirtyPages);
+                undoLosers(losers);
+                force();
             }
          }
     }
 
+    /** @return true if a record before the checkpoint, at an LSN, is
+        redone: its page was in the dirty page table and the record is
+        not older than the page's recLSN */
+    private static boolean isRedone(Checkpoint cp, PageId pid, long lsn) {
+        Long recLsn = cp.dirtyPages.get(pid);
+        return recLsn != null && lsn >= recLsn;
+    }
+
+    // Redo pass: bring each dirty page up to date, pages spread over threads
+    private void redo(Map<PageId,List<Object>> dirtyPages) throws IOException {
+        int threads = Math.max(1, Math.min(redoThreads, dirtyPages.size()));
+        List<List<Map.Entry<PageId,List<Object>>>> parts = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            parts.add(new ArrayList<>());
+        }
+        for (Map.Entry<PageId,List<Object>> e : dirtyPages.entrySet()) {
+            parts.get(Math.floorMod(e.getKey().hashCode(), threads)).add(e);
+        }
+        if (threads == 1) {
+            for (Map.Entry<PageId,List<Object>> e : parts.get(0)) {
+                redoPage(e.getKey(), e.getValue());
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> done = new ArrayList<>();
+            for (final List<Map.Entry<PageId,List<Object>>> part : parts) {
+                done.add(pool.submit(() -> {
+                    for (Map.Entry<PageId,List<Object>> e : part) {
+                        redoPage(e.getKey(), e.getValue());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> f : done) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during redo");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("redo failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Apply a page's records, a full image or deltas, and write it once
+    private void redoPage(PageId pid, List<Object> records) throws IOException {
+        Page page;
+        int i = 0;
+        if (records.get(0) instanceof Page) {
+            page = (Page) records.get(0);
+            i = 1;
+        } else {
+            page = currentPage(pid);
+        }
+        if (i < records.size()) {
+            byte[] data = page.getPageData();
+            for (; i < records.size(); i++) {
+                ((HeapPageDelta) records.get(i)).redo(data);
+            }
+            page = new HeapPage((HeapPageId) pid, data);
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        file.writePage(page);
+        // Redone deletes may have freed slots
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).getFreeSpaceMap().setHasSpace(pid.getPageNumber(), true);
+        }
+    }
+
+    // Undo pass: undo the records of the losers, newest of all first
+    private void undoLosers(Map<Long,Long> losers) throws IOException {
+        // Next record to undo -> its transaction
+        TreeMap<Long,Long> next = new TreeMap<>();
+        for (Map.Entry<Long,Long> e : losers.entrySet()) {
+            next.put(e.getValue(), e.getKey());
+            // Compensation records continue the losers' chains
+            tidToLastLogRecord.put(e.getKey(), e.getValue());
+        }
+        Map<PageId,Page> undone = new HashMap<>();
+        List<Undo> undos = new ArrayList<>();
+
+        while (!next.isEmpty()) {
+            Map.Entry<Long,Long> e = next.pollLastEntry();
+            long tidLong = e.getValue();
+            long prev = undoRecordAt(e.getKey(), undone, undos);
+            for (Undo undo : undos) {
+                writeCompensation(tidLong, undo);
+            }
+            undos.clear();
+
+            if (prev == NO_PREV_RECORD) {
+                startRecord(ABORT_RECORD, tidLong);
+                record.writeLong(currentOffset);
+                appendRecord();
+                tidToFirstLogRecord.remove(tidLong);
+            } else {
+                next.put(prev, tidLong);
+            }
+        }
+
+        // The compensation records go to disk before the pages
+        force();
+        writeUndonePages(undone);
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        raf.seek(LONG_SIZE);
+        buffer.flush();
+        long offset = segments.firstKey();
 
-        while (true) {
+        while (isRecordAt(offset)) {
             try {
-
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
+                RandomAccessFile in = seek(offset);
+                long pos = in.getFilePointer();
+                int type = in.readInt();
+                in.readInt();
+                long record_tid = in.readLong();
+                in.readLong();
                 switch (type) {
                     case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
+                        Page before = readPageData(in);
+                        Page after = readPageData(in);
                         System.out.println("Transaction " + record_tid + " updates Page " +
                                 before.getId().getPageNumber());
                         break;
+                    case DELTA_RECORD:
+                        HeapPageDelta delta = readDelta(in);
+                        System.out.println("Transaction " + record_tid + " updates Page " +
+                                delta.getPageId().getPageNumber() + " (" + delta + ")");
+                        break;
+                    case BULK_INSERT_RECORD:
+                        int bulkTable = in.readInt();
+                        int firstPage = in.readInt();
+                        int numPages = in.readInt();
+                        System.out.println("Transaction " + record_tid + " bulk inserts Pages " +
+                                firstPage + " to " + (firstPage + numPages - 1) + " of table " + bulkTable);
+                        break;
                     case CHECKPOINT_RECORD:
-                        System.out.println("Checkpoint record");
-                        int numXactions = raf.readInt();
-                        while (numXactions-- > 0) {
-                            raf.readLong();
-                            raf.readLong();
-                        }
+                        Checkpoint cp = readCheckpoint(in);
+                        System.out.println("Checkpoint record, " + cp.firstRecord.size() +
+                                " active transactions, " + cp.dirtyPages.size() + " dirty pages");
                         break;
                     case COMMIT_RECORD:
                         System.out.println("Transaction " + record_tid + " commits");
@@ -675,7 +1449,8 @@ public class LogFile {
                         break;
                 }
 
-                raf.readLong();
+                in.readLong();
+                offset += in.getFilePointer() - pos;
             }catch (EOFException e) {
                 break;
             }
@@ -685,7 +1460,128 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        long end = buffer.flush();
+        appending.force();
+        markDurable(end);
+    }
+
+    /**
+     * Make the log durable up to a given LSN, e.g. before writing a page
+     * whose LSN it is to disk (the write-ahead rule). Returns immediately
+     * if the log is durable that far already. Does not need the monitor of
+     * this LogFile.
+     *
+     * @param lsn the LSN the log must be durable up to
+     * @see Page#getLSN
+     */
+    public void flushTo(long lsn) throws IOException {
+        waitUntilDurable(lsn);
+    }
+
+    /** @return the LSN the next log record will get */
+    public long getEndLSN() {
+        return buffer.getEndLsn();
+    }
+
+    /**
+     * Set how long the thread that forces the log for a group of commits
+     * waits for more commits to join the group before forcing. With no
+     * delay, the group is whatever commits arrive while the previous force
+     * is running. A short delay makes groups larger under many concurrent
+     * transactions, at the cost of that much latency for every commit.
+     * The default is 0, or the value of the
+     * {@value #GROUP_COMMIT_DELAY_PROPERTY} system property.
+     *
+     * @param micros the delay, in microseconds
+     */
+    public void setMaxBatchDelay(long micros) {
+        if (micros < 0) {
+            throw new IllegalArgumentException("negative delay");
+        }
+        maxBatchDelayMicros = micros;
+    }
+
+    /** @return the maximum batch delay of group commit, in microseconds */
+    public long getMaxBatchDelay() {
+        return maxBatchDelayMicros;
+    }
+
+    /** @return the number of times the log was forced */
+    public long getForceCount() {
+        synchronized (durableLock) {
+            return forceCount;
+        }
+    }
+
+    /** @return the number of commit records written */
+    public long getCommitCount() {
+        synchronized (durableLock) {
+            return commitCount;
+        }
+    }
+
+    /**
+     * Wait until the log is on disk up to a given LSN. The first waiter
+     * to find no force in progress becomes the leader: it waits for the
+     * batch delay, writes out and forces everything appended so far and
+     * wakes every waiter the force covers. The others wait for the leader,
+     * and one of those not covered leads the next force.
+     *
+     * @param lsn the LSN just past the record that has to be durable
+     */
+    private void waitUntilDurable(long lsn) throws IOException {
+        while (true) {
+            synchronized (durableLock) {
+                while (durableLsn < lsn && forcing) {
+                    try {
+                        durableLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted waiting for the log");
+                    }
+                }
+                if (durableLsn >= lsn) {
+                    return;
+                }
+                forcing = true;
+            }
+
+            try {
+                long delay = maxBatchDelayMicros;
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay / 1000, (int) (delay % 1000) * 1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                long target = buffer.flush();
+                try {
+                    // Read after the flush: a segment the log moved past
+                    // meanwhile was forced when the log moved
+                    appending.force();
+                } catch (ClosedChannelException e) {
+                    // The segment was forced before the log moved past it
+                }
+                markDurable(target);
+            } finally {
+                synchronized (durableLock) {
+                    forcing = false;
+                    durableLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Record that the log is on disk up to lsn. */
+    private void markDurable(long lsn) {
+        synchronized (durableLock) {
+            if (lsn > durableLsn) {
+                durableLsn = lsn;
+            }
+            forceCount++;
+            durableLock.notifyAll();
+        }
     }
 
 }
@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LogSegment is one file of the log. The log is a sequence of segments, each
+ * holding the records from its first LSN up to the first LSN of the next
+ * segment; a record never spans two segments, so the LSN of a record is the
+ * first LSN of its segment plus its offset in the segment's file.
+ * <p>
+ * Segment files are numbered, e.g. <tt>log.000003</tt>, and preallocated:
+ * they are filled with zeros when they are created, so appending records
+ * writes over space the file already has instead of growing it, and forcing
+ * the log does not have to write file metadata. Which files are segments of
+ * the log, and from which LSN, is recorded in the log's manifest; a segment
+ * the log no longer needs is recycled as a later segment instead of being
+ * deleted. The end of the log is therefore not the end of a file, but the
+ * first place that does not hold a whole record (see LogFile).
+ *
+ * @see LogFile
+ */
+public class LogSegment {
+
+    // Zeros a new segment is filled with, a chunk at a time
+    private static final int ZERO_CHUNK = 64 * 1024;
+
+    private final int number;
+    private final File file;
+    private final RandomAccessFile raf;
+    // Size of the file: as preallocated, or grown by a record that did not fit
+    private volatile long capacity;
+    // LSN of the first record; set again when the file is recycled
+    private volatile long start;
+
+    private LogSegment(int number, File file) throws IOException {
+        this.number = number;
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.capacity = raf.length();
+    }
+
+    /** @return the file of the segment of a log with a given number */
+    static File fileFor(File log, int number) {
+        return new File(log.getAbsoluteFile().getParentFile(),
+                log.getName() + "." + String.format("%06d", number));
+    }
+
+    /**
+     * Create a segment file filled with zeros, replacing any file of the
+     * same name, and force it to disk.
+     *
+     * @param log the log the segment belongs to
+     * @param number the number of the segment file
+     * @param bytes the size of the file
+     */
+    static LogSegment create(File log, int number, long bytes) throws IOException {
+        LogSegment seg = new LogSegment(number, fileFor(log, number));
+        seg.raf.setLength(0);
+        FileChannel ch = seg.raf.getChannel();
+        ByteBuffer zeros = ByteBuffer.allocate(ZERO_CHUNK);
+        for (long pos = 0; pos < bytes; ) {
+            zeros.clear();
+            zeros.limit((int) Math.min(ZERO_CHUNK, bytes - pos));
+            while (zeros.hasRemaining()) {
+                pos += ch.write(zeros, pos);
+            }
+        }
+        ch.force(true);
+        seg.capacity = bytes;
+        return seg;
+    }
+
+    /**
+     * Open an existing segment file.
+     *
+     * @param log the log the segment belongs to
+     * @param number the number of the segment file
+     */
+    static LogSegment open(File log, int number) throws IOException {
+        File f = fileFor(log, number);
+        if (!f.exists()) {
+            throw new IOException("log segment " + f + " is missing");
+        }
+        return new LogSegment(number, f);
+    }
+
+    /** @return the number of this segment's file */
+    public int getNumber() {
+        return number;
+    }
+
+    /** @return the file of this segment */
+    public File getFile() {
+        return file;
+    }
+
+    /** @return the LSN of the first record of this segment */
+    public long getStart() {
+        return start;
+    }
+
+    /** Give the segment its place in the log, e.g. when it is recycled. */
+    void setStart(long start) {
+        this.start = start;
+    }
+
+    /** @return the size of this segment's file, in bytes */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the LSN just past the end of this segment's file; the
+     *         segment's records end at or before it
+     */
+    public long getEnd() throws IOException {
+        return start + raf.length();
+    }
+
+    /**
+     * @return the segment's file, positioned at an LSN of the segment, for
+     *         reading records
+     */
+    RandomAccessFile seek(long lsn) throws IOException {
+        raf.seek(lsn - start);
+        return raf;
+    }
+
+    /** @return the channel records are appended to the segment with */
+    FileChannel getChannel() {
+        return raf.getChannel();
+    }
+
+    /**
+     * Force what was written to the segment to disk. The file metadata is
+     * only forced if a record did not fit in the file and made it longer.
+     */
+    void force() throws IOException {
+        long length = raf.length();
+        raf.getChannel().force(length > capacity);
+        // Only raised once the new length is on disk
+        if (length > capacity) {
+            capacity = length;
+        }
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+
+    /** Close the segment and delete its file. */
+    void delete() throws IOException {
+        raf.close();
+        if (!file.delete() && file.exists()) {
+            throw new IOException("could not delete log segment " + file);
+        }
+    }
+}
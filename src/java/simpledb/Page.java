@@ -56,4 +56,17 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of this page: the log position just past the last log
+     * record describing a change to it. The log must be on disk up to this
+     * LSN before the page is written to disk. Pages read from disk have an
+     * LSN of 0; the LSN is not stored with the page.
+     *
+     * @see LogFile#flushTo
+     */
+    public long getLSN();
+
+    /** Set the LSN of this page, when a log record describing it is written. */
+    public void setLSN(long lsn);
 }
@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * PageFlusher is a background thread that writes committed dirty pages from
+ * the BufferPool to their DbFiles ahead of time, so that evictions and
+ * checkpoints rarely have to write pages themselves.
+ * <p>
+ * The flusher wakes up periodically, or when the BufferPool reports new
+ * dirty pages. Once more than the high watermark fraction of the pool is
+ * dirty it writes committed pages until the dirty fraction falls back to the
+ * low watermark. Pages dirtied by running transactions are left alone.
+ * <p>
+ * The thread stops when {@link #shutdown} is called or when its BufferPool
+ * is no longer the one installed in {@link Database}.
+ *
+ * @see BufferPool#startBackgroundFlusher
+ */
+class PageFlusher extends Thread {
+
+    /** How long the flusher sleeps between checks, in milliseconds. */
+    static final long INTERVAL_MILLIS = 100;
+
+    private final BufferPool pool;
+    private final double highWatermark;
+    private final double lowWatermark;
+    private volatile boolean running;
+
+    /**
+     * @param pool the buffer pool to flush
+     * @param highWatermark fraction of the pool that may be dirty before the
+     *                      flusher starts writing
+     * @param lowWatermark fraction of the pool the flusher writes down to
+     */
+    PageFlusher(BufferPool pool, double highWatermark, double lowWatermark) {
+        super("simpledb-page-flusher");
+        if (lowWatermark < 0 || lowWatermark > highWatermark || highWatermark > 1) {
+            throw new IllegalArgumentException("watermarks must satisfy 0 <= low <= high <= 1");
+        }
+        this.pool = pool;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    /** Wake the flusher up to check the dirty page count now. */
+    synchronized void wake() {
+        notify();
+    }
+
+    /** Stop the flusher; it exits after its current pass. */
+    synchronized void shutdown() {
+        running = false;
+        notify();
+    }
+
+    public void run() {
+        while (running) {
+            synchronized (this) {
+                try {
+                    wait(INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (!running || Database.getBufferPool() != pool) {
+                return;
+            }
+
+            int capacity = pool.getNumPages();
+            int dirty = pool.countDirtyPages();
+            if (dirty > highWatermark * capacity) {
+                int target = (int) (lowWatermark * capacity);
+                try {
+                    pool.flushCommittedPages(dirty - target);
+                } catch (IOException e) {
+                    // Pages that could not be written stay dirty and are
+                    // retried on the next pass or at eviction
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb;
+
+/**
+ * PageHandle is a pinned reference to a page in the BufferPool, returned by
+ * {@link BufferPool#pinPage}. While the handle is open the page cannot be
+ * evicted, so an operator can keep working on it across calls. Closing the
+ * handle releases the pin (but not the lock on the page, which is held until
+ * the transaction completes).
+ * <p>
+ * Handles are meant to be used with try-with-resources:
+ * <pre>
+ *     try (PageHandle h = Database.getBufferPool().pinPage(tid, pid, perm)) {
+ *         HeapPage page = (HeapPage) h.getPage();
+ *         ...
+ *     }
+ * </pre>
+ * Any handle a transaction leaves open is closed when the transaction
+ * completes.
+ */
+public class PageHandle implements AutoCloseable {
+
+    private final BufferPool pool;
+    private final TransactionId tid;
+    private final FrameDescriptor frame;
+    // The version a snapshot transaction reads, or null to read the frame
+    private final Page version;
+    private boolean closed;
+
+    PageHandle(BufferPool pool, TransactionId tid, FrameDescriptor frame, Page version) {
+        this.pool = pool;
+        this.tid = tid;
+        this.frame = frame;
+        this.version = version;
+        this.closed = false;
+    }
+
+    /** @return the pinned page, or for a snapshot transaction the version of it that it sees */
+    public Page getPage() {
+        return version != null ? version : frame.getPage();
+    }
+
+    /** @return the id of the pinned page */
+    public PageId getPageId() {
+        return frame.getPageId();
+    }
+
+    /** @return the transaction that pinned the page */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
+    FrameDescriptor getFrame() {
+        return frame;
+    }
+
+    /**
+     * Mark this handle closed.
+     * @return false if it was already closed
+     */
+    synchronized boolean markClosed() {
+        if (closed) {
+            return false;
+        }
+        closed = true;
+        return true;
+    }
+
+    /** Release the pin. Closing a handle more than once has no effect. */
+    public void close() {
+        pool.unpinPage(this);
+    }
+}
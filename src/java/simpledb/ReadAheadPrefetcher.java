@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ReadAheadPrefetcher reads pages of a HeapFile into the BufferPool ahead of
+ * a sequential scan, on a few background threads, so that the scan finds its
+ * next pages already cached instead of waiting for one disk read per page.
+ * <p>
+ * Each scan opens a {@link Stream} and reports the pages it reads. Once a
+ * stream has read a few consecutive pages, every further page extends the
+ * read-ahead to the next N pages of the file. N is shared by all streams and
+ * adapts to how useful prefetching is: it doubles after N prefetched pages
+ * have been used, and halves whenever a prefetched page is evicted before
+ * anybody asked for it. N never exceeds a quarter of the buffer pool.
+ * <p>
+ * Prefetching takes no locks. A page is only read ahead if it is not in the
+ * buffer pool and no transaction holds an exclusive lock on it, in which case
+ * the copy on disk is the current one.
+ *
+ * @see BufferPool#getPrefetcher
+ * @Threadsafe
+ */
+public class ReadAheadPrefetcher {
+
+    /** Smallest read-ahead window, in pages. */
+    static final int MIN_WINDOW = 2;
+
+    /** Largest read-ahead window, in pages. */
+    static final int MAX_WINDOW = 64;
+
+    // Number of consecutive pages a stream reads before read-ahead starts
+    private static final int SEQUENTIAL_TRIGGER = 2;
+
+    private static final int THREADS = 2;
+
+    private final BufferPool pool;
+    private final ThreadPoolExecutor executor;
+    // Pages queued or being read, so a page is never requested twice
+    private final Set<PageId> inFlight;
+    private final int maxWindow;
+    private final AtomicInteger window;
+    // Prefetched pages used since the window last changed
+    private final AtomicInteger useful;
+    private volatile boolean enabled;
+
+    private final AtomicLong issued;
+    private final AtomicLong hits;
+    private final AtomicLong wasted;
+
+    /**
+     * @param pool the buffer pool pages are read into
+     */
+    ReadAheadPrefetcher(BufferPool pool) {
+        this.pool = pool;
+        this.maxWindow = Math.min(MAX_WINDOW, pool.getNumPages() / 4);
+        this.window = new AtomicInteger(MIN_WINDOW);
+        this.useful = new AtomicInteger(0);
+        // Pools too small for a minimal window would only thrash
+        this.enabled = maxWindow >= MIN_WINDOW;
+        this.inFlight = ConcurrentHashMap.newKeySet();
+        this.issued = new AtomicLong();
+        this.hits = new AtomicLong();
+        this.wasted = new AtomicLong();
+
+        // Idle threads exit, so that replaced buffer pools do not leak them
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "simpledb-read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start tracking a scan over a table.
+     *
+     * @param tableId the id of the scanned table
+     * @param numPages the number of pages in the table
+     * @return a stream the scan reports the pages it reads to
+     */
+    public Stream openStream(int tableId, int numPages) {
+        return new Stream(tableId, numPages);
+    }
+
+    /** Turn read-ahead on or off; pages already queued are still read. */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled && maxWindow >= MIN_WINDOW;
+    }
+
+    /** @return true if read-ahead is on */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** @return the current read-ahead window, in pages */
+    public int getWindow() {
+        return window.get();
+    }
+
+    /** @return the number of pages read ahead */
+    public long getIssuedCount() {
+        return issued.get();
+    }
+
+    /** @return the number of pages read ahead that a scan later asked for */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** @return the number of pages read ahead that were evicted unused */
+    public long getWastedCount() {
+        return wasted.get();
+    }
+
+    /** @return the fraction of pages read ahead that were used, or 0 if none were read */
+    public double getHitRate() {
+        long n = issued.get();
+        return n == 0 ? 0.0 : (double) hits.get() / n;
+    }
+
+    /** Reset the counters, e.g. between benchmark runs. */
+    public void resetCounters() {
+        issued.set(0);
+        hits.set(0);
+        wasted.set(0);
+    }
+
+    /** Called by the BufferPool when a page that was read ahead is requested. */
+    void prefetchHit() {
+        hits.incrementAndGet();
+        int w = window.get();
+        if (useful.incrementAndGet() >= w) {
+            useful.set(0);
+            window.compareAndSet(w, Math.min(maxWindow, w * 2));
+        }
+    }
+
+    /** Called by the BufferPool when a page that was read ahead is evicted unused. */
+    void prefetchWasted() {
+        wasted.incrementAndGet();
+        useful.set(0);
+        window.updateAndGet(w -> Math.max(MIN_WINDOW, w / 2));
+    }
+
+    private void submit(PageId pid) {
+        if (!inFlight.add(pid)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    // Nobody reads pages into a buffer pool that was replaced
+                    if (Database.getBufferPool() == pool && pool.prefetchPage(pid)) {
+                        issued.incrementAndGet();
+                    }
+                } finally {
+                    inFlight.remove(pid);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(pid);
+        }
+    }
+
+    /**
+     * The pages read by one scan. A stream is used by a single thread.
+     */
+    public class Stream {
+        private final int tableId;
+        private final int numPages;
+        private int lastPage;
+        // Number of consecutive pages read so far
+        private int run;
+        // Highest page number already requested ahead
+        private int frontier;
+
+        private Stream(int tableId, int numPages) {
+            this.tableId = tableId;
+            this.numPages = numPages;
+            this.lastPage = -1;
+            this.run = 0;
+            this.frontier = -1;
+        }
+
+        /**
+         * Report that the scan is about to read a page, and read ahead of it
+         * if the scan is sequential.
+         *
+         * @param pgNo the number of the page read
+         */
+        public void pageRequested(int pgNo) {
+            if (pgNo == lastPage + 1) {
+                run++;
+            } else {
+                // The scan jumped, e.g. after a rewind; start over
+                run = 1;
+                frontier = pgNo;
+            }
+            lastPage = pgNo;
+            if (!enabled || run < SEQUENTIAL_TRIGGER) {
+                return;
+            }
+
+            int end = Math.min(numPages - 1, pgNo + window.get());
+            for (int p = Math.max(frontier, pgNo) + 1; p <= end; p++) {
+                submit(new HeapPageId(tableId, p));
+            }
+            frontier = Math.max(frontier, end);
+        }
+    }
+}
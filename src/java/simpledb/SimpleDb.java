@@ -43,8 +43,29 @@ public class SimpleDb {
                     fieldSeparator=args[4].charAt(0);
             }
 
+            final long start = System.nanoTime();
+            final long[] done = new long[3]; // bytes, records, pages
             HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
+                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator,
+                        new HeapFileEncoder.ProgressListener() {
+                            long lastReport = start;
+                            public void progress(long bytesRead, long totalBytes, long records, long pages) {
+                                done[0] = bytesRead;
+                                done[1] = records;
+                                done[2] = pages;
+                                // Report at most once a second
+                                long now = System.nanoTime();
+                                if (now - lastReport >= 1000000000L) {
+                                    lastReport = now;
+                                    System.err.println(String.format("converted %.1f of %.1f MB (%d%%), %d records, %d pages",
+                                            bytesRead / 1048576.0, totalBytes / 1048576.0,
+                                            totalBytes == 0 ? 100 : bytesRead * 100 / totalBytes, records, pages));
+                                }
+                            }
+                        });
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+            System.err.println(String.format("converted %d records into %d pages in %.2f s (%.1f MB/s, %.0f records/s)",
+                        done[1], Math.max(done[2], 1), seconds, done[0] / 1048576.0 / seconds, done[1] / seconds));
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -10,6 +10,8 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    // A read-only transaction reading a snapshot; it writes no log records
+    private boolean snapshot = false;
 
     public Transaction() {
         tid = new TransactionId();
@@ -25,6 +27,18 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction as a read-only snapshot transaction: it sees the
+     * database as of the last commit and takes no locks.
+     *
+     * @see BufferPool#beginSnapshot
+     */
+    public void startSnapshot() {
+        started = true;
+        snapshot = true;
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -44,20 +58,20 @@ public class Transaction {
 
         if (started) {
             //write abort log record and rollback transaction
-            if (abort) {
+            if (abort && !snapshot) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } 
 
-            // Release locks and flush pages if needed
-            try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            
-            // write commit log record
-            if (!abort) {
-            	Database.getLogFile().logCommit(tid);
+            if (!abort && !snapshot) {
+                // write commit log record; it is forced before the locks are released
+                Database.getBufferPool().transactionComplete(tid, true, true);
+            } else {
+                // Release locks and flush pages if needed
+                try {
+                    Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -9,6 +11,9 @@ import java.util.List;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * Tuples read from a HeapPage decode each field from the page's bytes the
+ * first time the field is asked for.
  */
 public class Tuple implements Serializable {
 
@@ -24,6 +29,10 @@ public class Tuple implements Serializable {
     private TupleDesc scheme;
     private RecordId RId;
     private Field[] fields;
+    // Serialized tuple the fields are decoded from on first access, or null;
+    // the bytes must never change
+    private transient byte[] source;
+    private int sourceOffset;
 
     public Tuple(TupleDesc td) {
         scheme = td;
@@ -31,6 +40,23 @@ public class Tuple implements Serializable {
         fields = new Field[td.numFields()];
     }
 
+    /**
+     * Create a tuple whose fields are decoded lazily from serialized form.
+     *
+     * @param td
+     *            the schema of this tuple.
+     * @param data
+     *            bytes holding the tuple, e.g. the data of a page. They must
+     *            not be changed afterwards.
+     * @param offset
+     *            the offset of the tuple in data.
+     */
+    Tuple(TupleDesc td, byte[] data, int offset) {
+        this(td);
+        source = data;
+        sourceOffset = offset;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -75,7 +101,24 @@ public class Tuple implements Serializable {
      *            field index to return. Must be a valid index.
      */
     public Field getField(int i) {
-        return fields[i];
+        Field f = fields[i];
+        byte[] src = source;
+        if (f == null && src != null) {
+            // Tuples of a cached page are shared by its readers; decoding a
+            // field twice is harmless
+            f = scheme.getFieldType(i).parse(src, sourceOffset + scheme.getFieldOffset(i));
+            fields[i] = f;
+        }
+        return f;
+    }
+
+    // Decode every field that has not been decoded yet
+    private void materialize() {
+        if (source != null) {
+            for (int i = 0; i < fields.length; i++) {
+                getField(i);
+            }
+        }
     }
 
     /**
@@ -88,6 +131,7 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         // throw new UnsupportedOperationException("Implement this");
+        materialize();
         String string = "";
         string = string + fields[0];
         for(int i = 1; i < fields.length; i++){
@@ -102,6 +146,7 @@ public class Tuple implements Serializable {
      * */
     public Iterator<Field> fields()
     {
+        materialize();
         List<Field> list = Arrays.asList(fields);
         return list.iterator();
     }
@@ -111,6 +156,13 @@ public class Tuple implements Serializable {
      * */
     public void resetTupleDesc(TupleDesc td)
     {
+        // Lazy fields are decoded with the schema they were written with
+        materialize();
         scheme = td;
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
 }
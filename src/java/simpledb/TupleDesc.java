@@ -48,6 +48,8 @@ public class TupleDesc implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private TDItem[] TDItems;
+    // Byte offset of each field within a serialized tuple; computed on first use
+    private transient int[] offsets;
 
     /**
      * Create a new TupleDesc with typeAr.length fields with fields of the
@@ -159,6 +161,26 @@ public class TupleDesc implements Serializable {
         return total;
     }
 
+    /**
+     * @return The offset (in bytes) of the ith field within a serialized
+     *         tuple of this TupleDesc.
+     * @param i
+     *            index of the field. It must be a valid index.
+     */
+    public int getFieldOffset(int i) {
+        int[] o = offsets;
+        if (o == null) {
+            o = new int[TDItems.length];
+            int offset = 0;
+            for (int j = 0; j < TDItems.length; j++) {
+                o[j] = offset;
+                offset += TDItems[j].fieldType.getLen();
+            }
+            offsets = o;
+        }
+        return o[i];
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
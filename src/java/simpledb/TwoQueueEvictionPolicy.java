@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * TwoQueueEvictionPolicy implements the full 2Q algorithm. Newly loaded pages
+ * enter a FIFO probation queue (A1in). When they are evicted from it, their
+ * ids are remembered in a ghost queue (A1out); a page that is loaded again
+ * while its id is still in A1out has proven it is hot and goes to the main
+ * LRU queue (Am). Pages that are only ever touched once never reach Am.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final int maxIn;
+    private final int maxOut;
+
+    // Iteration order of each set is oldest first
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+
+    /**
+     * Creates a 2Q policy sized for a buffer pool of numPages pages, using the
+     * recommended 25% of the pool for A1in and ghost entries for half the pool.
+     *
+     * @param numPages the size of the buffer pool this policy serves
+     */
+    public TwoQueueEvictionPolicy(int numPages) {
+        this(Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+    }
+
+    /**
+     * @param maxIn the number of resident pages A1in may hold before it is
+     *              preferred for eviction
+     * @param maxOut the number of ghost entries remembered in A1out
+     */
+    public TwoQueueEvictionPolicy(int maxIn, int maxOut) {
+        this.maxIn = maxIn;
+        this.maxOut = maxOut;
+        this.a1in = new LinkedHashSet<>();
+        this.a1out = new LinkedHashSet<>();
+        this.am = new LinkedHashSet<>();
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (am.contains(pid) || a1in.contains(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // Hits in A1in are deliberately ignored: correlated references
+        // right after a load should not promote a page
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > maxOut) {
+                Iterator<PageId> oldest = a1out.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized void pageDiscarded(PageId pid) {
+        // Only evictions from A1in leave a ghost entry
+        if (!a1in.remove(pid)) {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (a1in.size() > maxIn || am.isEmpty()) {
+            victim = firstEvictable(a1in, evictable);
+        }
+        if (victim == null) {
+            victim = firstEvictable(am, evictable);
+        }
+        if (victim == null) {
+            victim = firstEvictable(a1in, evictable);
+        }
+        return victim;
+    }
+
+    private PageId firstEvictable(LinkedHashSet<PageId> queue,
+                                  Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
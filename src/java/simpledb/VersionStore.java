@@ -0,0 +1,253 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the older committed versions of pages that snapshot
+ * transactions may still need, so that read-only transactions can read a
+ * consistent snapshot of the database without taking any locks.
+ * <p>
+ * Every commit that changed pages gets a commit sequence number (CSN). A
+ * snapshot is the CSN of the last commit when it began, and it sees, for
+ * each page, the newest version committed at or before it. The newest
+ * committed version of a page is its before image in the BufferPool (see
+ * {@link Page#getBeforeImage}), which uncommitted changes never touch; the
+ * versions it replaced are kept here, each with the CSN of the commit that
+ * replaced it. They are only kept while a snapshot is running that may
+ * need them: {@link #vacuum} drops every version no running snapshot can
+ * see, and runs whenever a snapshot ends.
+ * <p>
+ * Pages written around the BufferPool by {@link HeapFile#appendPages} are
+ * registered as pending: until their transaction commits, snapshots see
+ * them as they were before, empty.
+ *
+ * @see BufferPool#beginSnapshot
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    // CSN of a version replaced by a transaction that has not committed yet
+    private static final long PENDING = Long.MAX_VALUE;
+
+    /** A committed version of a page that a later commit replaced. */
+    private static class Version {
+        final Page page;
+        // CSN of the commit that replaced it, or PENDING
+        long replacedBy;
+
+        Version(Page page, long replacedBy) {
+            this.page = page;
+            this.replacedBy = replacedBy;
+        }
+    }
+
+    // CSN of the last commit; only changed under this
+    private volatile long lastCsn = 0;
+    // CSN of the commit of the newest version of each page, for pages
+    // committed since the oldest running snapshot began; 0 if not listed
+    private final ConcurrentHashMap<PageId, Long> pageCsn = new ConcurrentHashMap<>();
+    // Older versions of each page, oldest first; lists are changed under this
+    private final ConcurrentHashMap<PageId, List<Version>> versions = new ConcurrentHashMap<>();
+    // The snapshot of each running snapshot transaction
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    // Pending pages of each transaction
+    private final ConcurrentHashMap<TransactionId, List<PageId>> pending = new ConcurrentHashMap<>();
+
+    private long saved = 0; // protected by this
+    private long reclaimed = 0; // protected by this
+
+    /**
+     * Begin a snapshot for a transaction: from now on it reads the
+     * database as of the last commit.
+     *
+     * @param tid the transaction
+     * @return the CSN of its snapshot
+     */
+    public synchronized long beginSnapshot(TransactionId tid) {
+        long csn = lastCsn;
+        snapshots.put(tid, csn);
+        return csn;
+    }
+
+    /** @return whether a transaction reads a snapshot */
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /** End the snapshot of a transaction and reclaim the versions nobody needs any more. */
+    public void endSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) != null) {
+            vacuum();
+        }
+    }
+
+    /**
+     * Make the changes of a committing transaction the newest committed
+     * versions of its pages, keeping the versions they replace for running
+     * snapshots, and commit its pending pages.
+     *
+     * @param tid the committing transaction
+     * @param pages the pages the transaction changed, already logged
+     */
+    public synchronized void publish(TransactionId tid, List<Page> pages) {
+        List<PageId> mine = pending.remove(tid);
+        if (pages.isEmpty() && mine == null) {
+            return;
+        }
+        long csn = lastCsn + 1;
+        for (Page page : pages) {
+            PageId pid = page.getId();
+            if (!snapshots.isEmpty()) {
+                addVersion(pid, new Version(page.getBeforeImage(), csn));
+            }
+            // Published before the before image changes, see read
+            pageCsn.put(pid, csn);
+            if (page instanceof HeapPage) {
+                // Leaves the uncommitted tuples of other transactions out
+                ((HeapPage) page).setBeforeImage(tid);
+            } else {
+                page.setBeforeImage();
+            }
+        }
+        if (mine != null) {
+            for (PageId pid : mine) {
+                for (Version v : versions.getOrDefault(pid, new ArrayList<>())) {
+                    if (v.replacedBy == PENDING) {
+                        v.replacedBy = csn;
+                    }
+                }
+                pageCsn.put(pid, csn);
+            }
+        }
+        lastCsn = csn;
+    }
+
+    /**
+     * Register pages a transaction writes directly to disk. Snapshots see
+     * them as their before images until the transaction commits.
+     *
+     * @param tid the transaction
+     * @param pages the new pages
+     */
+    public synchronized void addPending(TransactionId tid, List<Page> pages) {
+        List<PageId> mine = pending.computeIfAbsent(tid, k -> new ArrayList<>());
+        for (Page page : pages) {
+            PageId pid = page.getId();
+            addVersion(pid, new Version(page.getBeforeImage(), PENDING));
+            pageCsn.put(pid, PENDING);
+            mine.add(pid);
+        }
+    }
+
+    /**
+     * Forget the pending pages of an aborted transaction; rollback has made
+     * them what they were before.
+     */
+    public synchronized void abandon(TransactionId tid) {
+        List<PageId> mine = pending.remove(tid);
+        if (mine == null) {
+            return;
+        }
+        for (PageId pid : mine) {
+            List<Version> vs = versions.get(pid);
+            if (vs != null) {
+                vs.removeIf(v -> v.replacedBy == PENDING);
+                if (vs.isEmpty()) {
+                    versions.remove(pid);
+                }
+            }
+            pageCsn.remove(pid, PENDING);
+        }
+    }
+
+    /**
+     * Return the version of a page a snapshot transaction sees.
+     *
+     * @param tid the snapshot transaction
+     * @param current the page as it is in the BufferPool
+     * @throws TransactionAbortedException if the version was reclaimed,
+     *         which only happens to a transaction whose snapshot ended
+     */
+    public Page read(TransactionId tid, Page current) throws TransactionAbortedException {
+        Long snapshot = snapshots.get(tid);
+        if (snapshot == null) {
+            throw new TransactionAbortedException();
+        }
+        PageId pid = current.getId();
+        while (true) {
+            long csn = pageCsn.getOrDefault(pid, 0L);
+            if (csn <= snapshot) {
+                Page image = current.getBeforeImage();
+                // A commit publishes its CSN before it changes the before
+                // image, so an unchanged CSN means image is that version
+                if (pageCsn.getOrDefault(pid, 0L) == csn) {
+                    return image;
+                }
+                continue;
+            }
+            synchronized (this) {
+                List<Version> vs = versions.get(pid);
+                if (vs != null) {
+                    for (Version v : vs) {
+                        if (v.replacedBy > snapshot) {
+                            return v.page;
+                        }
+                    }
+                }
+            }
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Drop the versions no running snapshot can see: a version replaced by
+     * a commit at or before the oldest snapshot is hidden from all of them.
+     *
+     * @return the number of versions dropped
+     */
+    public synchronized int vacuum() {
+        long min = lastCsn;
+        for (long s : snapshots.values()) {
+            min = Math.min(min, s);
+        }
+        final long oldest = min;
+        int dropped = 0;
+        Iterator<Map.Entry<PageId, List<Version>>> it = versions.entrySet().iterator();
+        while (it.hasNext()) {
+            List<Version> vs = it.next().getValue();
+            int before = vs.size();
+            vs.removeIf(v -> v.replacedBy <= oldest);
+            dropped += before - vs.size();
+            if (vs.isEmpty()) {
+                it.remove();
+            }
+        }
+        // Every snapshot sees these pages' newest versions anyway
+        pageCsn.values().removeIf(csn -> csn <= oldest);
+        reclaimed += dropped;
+        return dropped;
+    }
+
+    /** @return the number of versions currently kept */
+    public synchronized int size() {
+        int n = 0;
+        for (List<Version> vs : versions.values()) {
+            n += vs.size();
+        }
+        return n;
+    }
+
+    public synchronized String toString() {
+        return "VersionStore(saved=" + saved + ", reclaimed=" + reclaimed + ", csn=" + lastCsn + ")";
+    }
+
+    // Called with this held
+    private void addVersion(PageId pid, Version v) {
+        versions.computeIfAbsent(pid, k -> new ArrayList<>()).add(v);
+        saved++;
+    }
+}
@@ -0,0 +1,80 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * WaitForGraph records which transactions wait for which: an edge from T1
+ * to T2 means that T1 waits for a lock that T2 holds, or that T2 asked for
+ * before T1 in a conflicting mode. A cycle in the graph is a deadlock.
+ * <p>
+ * The graph is built by the LockManager from the requests that are waiting
+ * and the holders of the locks they wait for. The edges of a transaction
+ * are only looked up when a search reaches it, and then kept, so a search
+ * that starts at one blocked transaction only looks at the part of the
+ * lock table it can reach. A graph is a snapshot; the LockManager checks
+ * that the transactions of a cycle are still waiting before it acts on it.
+ *
+ * @see LockManager
+ */
+class WaitForGraph {
+
+    private final Function<TransactionId, List<TransactionId>> loader;
+    private final Map<TransactionId, List<TransactionId>> edges = new HashMap<>();
+
+    /**
+     * @param loader returns the transactions a transaction waits for, or an
+     *               empty list if it is not waiting
+     */
+    WaitForGraph(Function<TransactionId, List<TransactionId>> loader) {
+        this.loader = loader;
+    }
+
+    /** @return the transactions a transaction waits for */
+    List<TransactionId> waitsFor(TransactionId tid) {
+        List<TransactionId> out = edges.get(tid);
+        if (out == null) {
+            out = loader.apply(tid);
+            edges.put(tid, out);
+        }
+        return out;
+    }
+
+    /**
+     * Find a cycle through a transaction.
+     *
+     * @param start the transaction
+     * @return the transactions of the cycle, starting with start, or null
+     *         if start is not on a cycle
+     */
+    List<TransactionId> findCycle(TransactionId start) {
+        List<TransactionId> path = new ArrayList<>();
+        path.add(start);
+        return search(start, path, new HashSet<>()) ? path : null;
+    }
+
+    // Depth-first search for an edge back to the first transaction of path;
+    // done holds the transactions already known not to lead back to it
+    private boolean search(TransactionId tid, List<TransactionId> path, Set<TransactionId> done) {
+        for (TransactionId next : waitsFor(tid)) {
+            if (next.equals(path.get(0))) {
+                return true;
+            }
+            if (done.contains(next) || path.contains(next)) {
+                continue;
+            }
+            path.add(next);
+            if (search(next, path, done)) {
+                return true;
+            }
+            path.remove(path.size() - 1);
+            done.add(next);
+        }
+        return false;
+    }
+}
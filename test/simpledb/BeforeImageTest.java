@@ -0,0 +1,84 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A HeapPage's before image is its state as of the last commit: captured
+ * by the first change after setBeforeImage, and the page itself while it
+ * is unchanged.
+ */
+public class BeforeImageTest {
+    private File file;
+    private HeapPage page;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("before", ".dat");
+        HeapFile hf = Utility.openHeapFile(2, file);
+        HeapPage committed = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        committed.insertTuple(tuple(1));
+        committed.insertTuple(tuple(2));
+        page = new HeapPage(committed.getId(), committed.getPageData());
+    }
+
+    @After public void tearDown() {
+        file.delete();
+    }
+
+    private static Tuple tuple(int value) {
+        return Utility.getHeapTuple(new int[]{value, 0});
+    }
+
+    private static List<Integer> values(HeapPage page) {
+        List<Integer> values = new ArrayList<>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        return values;
+    }
+
+    @Test public void unchangedPageIsItsOwnBeforeImage() throws Exception {
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+    }
+
+    @Test public void firstChangeCapturesBeforeImage() throws Exception {
+        page.insertTuple(tuple(3));
+        page.deleteTuple(page.iterator().next());
+        assertEquals(Arrays.asList(2, 3), values(page));
+        assertEquals(Arrays.asList(1, 2), values(page.getBeforeImage()));
+    }
+
+    @Test public void commitMakesCurrentStateTheBeforeImage() throws Exception {
+        page.insertTuple(tuple(3));
+        page.setBeforeImage();
+        assertEquals(Arrays.asList(1, 2, 3), values(page.getBeforeImage()));
+
+        page.insertTuple(tuple(4));
+        assertEquals(Arrays.asList(1, 2, 3), values(page.getBeforeImage()));
+    }
+
+    @Test public void beforeImageIsNotChangedByLaterChanges() throws Exception {
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(tuple(3));
+        page.deleteTuple(page.iterator().next());
+        assertEquals(Arrays.asList(1, 2), values(before));
+        // Nor does changing the image change the page
+        before.insertTuple(tuple(9));
+        assertEquals(Arrays.asList(2, 3), values(page));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BeforeImageTest.class);
+    }
+}
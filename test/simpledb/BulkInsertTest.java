@@ -0,0 +1,166 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Bulk loads write whole pages at the end of a table before the commit, and
+ * are undone by abort and by recovery; Insert switches to them once it has
+ * more than a page worth of tuples.
+ */
+public class BulkInsertTest {
+    private File file;
+    private HeapFile hf;
+    private int perPage;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("bulk", ".dat");
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        perPage = hf.tuplesPerPage();
+        // One committed tuple on page 0
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{-1, 0}));
+        t.commit();
+        Database.getBufferPool().flushAllPages();
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".fsm").delete();
+    }
+
+    private static List<Tuple> tuples(int from, int to) {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            tuples.add(Utility.getHeapTuple(new int[]{i, 0}));
+        }
+        return tuples;
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> values = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            values.add(i);
+        }
+        return values;
+    }
+
+    // The values on a page as it is on disk
+    private List<Integer> onDisk(int pgNo) {
+        List<Integer> values = new ArrayList<>();
+        Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo))).iterator();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        return values;
+    }
+
+    private List<Integer> committedValues() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        List<Integer> values = new ArrayList<>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        t.commit();
+        Collections.sort(values);
+        return values;
+    }
+
+    private List<Integer> freePages() {
+        List<Integer> pages = new ArrayList<>();
+        FreeSpaceMap fsm = hf.getFreeSpaceMap();
+        for (int i = fsm.nextPageWithSpace(0); i >= 0; i = fsm.nextPageWithSpace(i + 1)) {
+            pages.add(i);
+        }
+        return pages;
+    }
+
+    @Test public void pagesReachDiskBeforeCommit() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().bulkInsert(t.getId(), hf.getId(), tuples(0, 2 * perPage + 1));
+        // Appended after page 0, which is left alone
+        assertEquals(4, hf.numPages());
+        assertEquals(Arrays.asList(-1), onDisk(0));
+        assertEquals(range(0, perPage), onDisk(1));
+        assertEquals(range(perPage, 2 * perPage), onDisk(2));
+        assertEquals(Arrays.asList(2 * perPage), onDisk(3));
+        t.commit();
+
+        List<Integer> expected = range(-1, 2 * perPage + 1);
+        assertEquals(expected, committedValues());
+        // Only the last page has room for more
+        assertEquals(Arrays.asList(0, 3), freePages());
+    }
+
+    @Test public void abortEmptiesPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().bulkInsert(t.getId(), hf.getId(), tuples(0, perPage + 1));
+        t.abort();
+        assertEquals(Arrays.asList(-1), committedValues());
+        assertEquals(Collections.emptyList(), onDisk(1));
+        assertEquals(Collections.emptyList(), onDisk(2));
+    }
+
+    @Test public void recoveryUndoesUncommittedLoad() throws Exception {
+        Transaction winner = new Transaction();
+        winner.start();
+        Database.getBufferPool().bulkInsert(winner.getId(), hf.getId(), tuples(0, 3));
+        winner.commit();
+        Transaction loser = new Transaction();
+        loser.start();
+        Database.getBufferPool().bulkInsert(loser.getId(), hf.getId(), tuples(100, 100 + perPage + 1));
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(Arrays.asList(-1, 0, 1, 2), committedValues());
+    }
+
+    @Test public void largeInsertIsBulkLoaded() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        List<Tuple> tuples = tuples(0, 2 * perPage);
+        Insert insert = new Insert(t.getId(), new TupleIterator(hf.getTupleDesc(), tuples), hf.getId());
+        insert.open();
+        assertEquals(2 * perPage, ((IntField) insert.next().getField(0)).getValue());
+        insert.close();
+        // Page 0 still has room, but the tuples went onto new pages on disk
+        assertEquals(Arrays.asList(-1), onDisk(0));
+        assertEquals(range(0, perPage), onDisk(1));
+        t.commit();
+        assertEquals(range(-1, 2 * perPage), committedValues());
+    }
+
+    @Test public void smallInsertFillsExistingPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Insert insert = new Insert(t.getId(), new TupleIterator(hf.getTupleDesc(), tuples(0, 3)), hf.getId());
+        insert.open();
+        assertEquals(3, ((IntField) insert.next().getField(0)).getValue());
+        insert.close();
+        t.commit();
+        assertEquals(1, hf.numPages());
+        assertEquals(Arrays.asList(-1, 0, 1, 2), committedValues());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkInsertTest.class);
+    }
+}
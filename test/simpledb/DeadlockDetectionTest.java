@@ -0,0 +1,136 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Deadlocks found in the wait-for graph, by the waiting request or by the
+ * background detector, and the choice of the transaction to abort.
+ */
+public class DeadlockDetectionTest {
+    private static final int TABLE = 1;
+    // Time after which a request that has not been granted is taken to wait
+    private static final long WAIT_MILLIS = 200;
+
+    private LockManager lm;
+    private ExecutorService threads;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @After public void tearDown() {
+        lm.stopDeadlockDetector();
+        threads.shutdownNow();
+    }
+
+    private static PageId page(int n) {
+        return new HeapPageId(TABLE, n);
+    }
+
+    private interface Request {
+        void run() throws TransactionAbortedException;
+    }
+
+    /**
+     * Make a lock request on another thread.
+     * @return true once the lock is granted, false if the transaction aborts
+     */
+    private Future<Boolean> request(Request r) {
+        return threads.submit(() -> {
+            try {
+                r.run();
+                return true;
+            } catch (TransactionAbortedException e) {
+                return false;
+            }
+        });
+    }
+
+    private static void assertWaiting(Future<Boolean> f) throws Exception {
+        try {
+            f.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("request was not blocked");
+        } catch (TimeoutException expected) {
+        }
+    }
+
+    private static void assertGranted(Future<Boolean> f) throws Exception {
+        assertTrue(f.get(10, TimeUnit.SECONDS));
+    }
+
+    private static void assertAborted(Future<Boolean> f) throws Exception {
+        assertFalse(f.get(10, TimeUnit.SECONDS));
+    }
+
+    /** Both transactions wait for each other; the younger one is aborted. */
+    @Test public void detectAbortsYoungest() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(older, page(1), Permissions.READ_WRITE);
+        lm.acquireLock(younger, page(2), Permissions.READ_WRITE);
+
+        Future<Boolean> o = request(() -> lm.acquireLock(older, page(2), Permissions.READ_WRITE));
+        assertWaiting(o);
+        Future<Boolean> y = request(() -> lm.acquireLock(younger, page(1), Permissions.READ_WRITE));
+        assertAborted(y);
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseTransaction(younger);
+        assertGranted(o);
+    }
+
+    /** Under LEAST_WORK the transaction holding fewer locks is aborted, even if it is older. */
+    @Test public void leastWorkAbortsFewestLocks() throws Exception {
+        lm.setVictimPolicy(LockManager.VictimPolicy.LEAST_WORK);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(older, page(1), Permissions.READ_WRITE);
+        for (int i = 2; i <= 4; i++) {
+            lm.acquireLock(younger, page(i), Permissions.READ_WRITE);
+        }
+
+        Future<Boolean> y = request(() -> lm.acquireLock(younger, page(1), Permissions.READ_WRITE));
+        assertWaiting(y);
+        Future<Boolean> o = request(() -> lm.acquireLock(older, page(2), Permissions.READ_WRITE));
+        assertAborted(o);
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseTransaction(older);
+        assertGranted(y);
+    }
+
+    /** With the background detector running, requests leave the search to it. */
+    @Test public void backgroundDetectorBreaksDeadlock() throws Exception {
+        // The detector only runs for the lock manager of the installed BufferPool
+        Database.reset();
+        lm = Database.getBufferPool().getLockManager();
+        lm.startDeadlockDetector(50);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(older, page(1), Permissions.READ_WRITE);
+        lm.acquireLock(younger, page(2), Permissions.READ_WRITE);
+
+        Future<Boolean> o = request(() -> lm.acquireLock(older, page(2), Permissions.READ_WRITE));
+        assertWaiting(o);
+        Future<Boolean> y = request(() -> lm.acquireLock(younger, page(1), Permissions.READ_WRITE));
+        assertAborted(y);
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseTransaction(younger);
+        assertGranted(o);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DeadlockDetectionTest.class);
+    }
+}
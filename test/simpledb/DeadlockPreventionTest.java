@@ -0,0 +1,148 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * WOUND_WAIT and WAIT_DIE deadlock prevention: which of two conflicting
+ * transactions waits and which is aborted, decided by their age.
+ */
+public class DeadlockPreventionTest {
+    private static final int TABLE = 1;
+    // Time after which a request that has not been granted is taken to wait
+    private static final long WAIT_MILLIS = 200;
+
+    private LockManager lm;
+    private ExecutorService threads;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @After public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    private static PageId page(int n) {
+        return new HeapPageId(TABLE, n);
+    }
+
+    private interface Request {
+        void run() throws TransactionAbortedException;
+    }
+
+    /**
+     * Make a lock request on another thread.
+     * @return true once the lock is granted, false if the transaction aborts
+     */
+    private Future<Boolean> request(Request r) {
+        return threads.submit(() -> {
+            try {
+                r.run();
+                return true;
+            } catch (TransactionAbortedException e) {
+                return false;
+            }
+        });
+    }
+
+    private static void assertWaiting(Future<Boolean> f) throws Exception {
+        try {
+            f.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("request was not blocked");
+        } catch (TimeoutException expected) {
+        }
+    }
+
+    private static void assertGranted(Future<Boolean> f) throws Exception {
+        assertTrue(f.get(10, TimeUnit.SECONDS));
+    }
+
+    private static void assertAborted(Future<Boolean> f) throws Exception {
+        assertFalse(f.get(10, TimeUnit.SECONDS));
+    }
+
+    /** Under WOUND_WAIT an older transaction wounds the younger one it would wait for. */
+    @Test public void woundWaitWoundsYoungerHolder() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(younger, page(1), Permissions.READ_WRITE);
+
+        Future<Boolean> o = request(() -> lm.acquireLock(older, page(1), Permissions.READ_WRITE));
+        assertWaiting(o);
+        assertEquals(1, lm.getPreventionAbortCount());
+        // The younger transaction was not waiting; it aborts on its next request
+        try {
+            lm.acquireLock(younger, page(2), Permissions.READ_ONLY);
+            fail("wounded transaction got a lock");
+        } catch (TransactionAbortedException expected) {
+        }
+
+        lm.releaseTransaction(younger);
+        assertGranted(o);
+    }
+
+    /** Under WOUND_WAIT a younger transaction waits for an older one. */
+    @Test public void woundWaitYoungerWaits() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(older, page(1), Permissions.READ_WRITE);
+
+        Future<Boolean> y = request(() -> lm.acquireLock(younger, page(1), Permissions.READ_WRITE));
+        assertWaiting(y);
+        lm.releaseTransaction(older);
+        assertGranted(y);
+        assertEquals(0, lm.getPreventionAbortCount());
+    }
+
+    /** Under WAIT_DIE a younger transaction aborts instead of waiting for an older one. */
+    @Test public void waitDieYoungerDies() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(older, page(1), Permissions.READ_WRITE);
+
+        assertAborted(request(() -> lm.acquireLock(younger, page(1), Permissions.READ_ONLY)));
+        assertEquals(1, lm.getPreventionAbortCount());
+        assertTrue(lm.hasLock(older, page(1)));
+    }
+
+    /** Under WAIT_DIE an older transaction waits for a younger one. */
+    @Test public void waitDieOlderWaits() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(younger, page(1), Permissions.READ_WRITE);
+
+        Future<Boolean> o = request(() -> lm.acquireLock(older, page(1), Permissions.READ_WRITE));
+        assertWaiting(o);
+        lm.releaseTransaction(younger);
+        assertGranted(o);
+        assertEquals(0, lm.getPreventionAbortCount());
+    }
+
+    @Test public void policyFromProperty() {
+        System.setProperty(LockManager.DEADLOCK_POLICY_PROPERTY, "WAIT_DIE");
+        try {
+            assertEquals(LockManager.DeadlockPolicy.WAIT_DIE, new LockManager().getDeadlockPolicy());
+        } finally {
+            System.clearProperty(LockManager.DEADLOCK_POLICY_PROPERTY);
+        }
+        assertEquals(LockManager.DeadlockPolicy.DETECT, new LockManager().getDeadlockPolicy());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DeadlockPreventionTest.class);
+    }
+}
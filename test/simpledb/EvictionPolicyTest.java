@@ -0,0 +1,100 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+/**
+ * The order in which the CLOCK, LRU-K and 2Q eviction policies give up
+ * their pages, and how they treat pages the BufferPool discards.
+ */
+public class EvictionPolicyTest {
+
+    private static PageId page(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    private static void load(EvictionPolicy policy, int... pages) {
+        for (int n : pages) {
+            policy.pageLoaded(page(n));
+        }
+    }
+
+    // Ask for a victim and evict it, as the BufferPool does
+    private static PageId evict(EvictionPolicy policy) {
+        PageId victim = policy.chooseVictim(pid -> true);
+        policy.pageRemoved(victim);
+        return victim;
+    }
+
+    @Test public void clockSkipsReferencedPages() {
+        EvictionPolicy clock = new ClockEvictionPolicy();
+        load(clock, 0, 1, 2);
+        // The first sweep clears every bit, so the hand comes back to page 0
+        assertEquals(page(0), evict(clock));
+        clock.pageAccessed(page(1));
+        assertEquals(page(2), evict(clock));
+        assertEquals(page(1), evict(clock));
+        assertNull(clock.chooseVictim(pid -> true));
+    }
+
+    @Test public void clockReusesSlotsOfRemovedPages() {
+        EvictionPolicy clock = new ClockEvictionPolicy();
+        load(clock, 0, 1);
+        assertEquals(page(0), evict(clock));
+        load(clock, 2);
+        assertEquals(page(1), evict(clock));
+        assertEquals(page(2), evict(clock));
+    }
+
+    @Test public void lruKEvictsPagesSeenFewerThanKTimesFirst() {
+        EvictionPolicy lruK = new LRUKEvictionPolicy(2);
+        load(lruK, 0, 1, 2);
+        lruK.pageAccessed(page(0));
+        lruK.pageAccessed(page(1));
+        // Page 2 was referenced once; then the older second-to-last reference
+        assertEquals(page(2), evict(lruK));
+        assertEquals(page(0), evict(lruK));
+        assertEquals(page(1), evict(lruK));
+    }
+
+    @Test public void policiesSkipPagesThatCannotBeEvicted() {
+        EvictionPolicy[] policies = {
+            new ClockEvictionPolicy(), new LRUKEvictionPolicy(), new TwoQueueEvictionPolicy(4)
+        };
+        for (EvictionPolicy policy : policies) {
+            load(policy, 0, 1);
+            assertEquals(page(1), policy.chooseVictim(pid -> !pid.equals(page(0))));
+            assertNull(policy.chooseVictim(pid -> false));
+        }
+    }
+
+    @Test public void twoQueuePromotesPagesReloadedFromGhosts() {
+        EvictionPolicy twoQ = new TwoQueueEvictionPolicy(1, 4);
+        load(twoQ, 0, 1);
+        assertEquals(page(0), evict(twoQ));
+        // Page 0 comes back while it is a ghost and goes to the main queue
+        load(twoQ, 0, 2);
+        assertEquals(page(1), evict(twoQ));
+        // Once A1in is back within its size the main queue gives up pages
+        assertEquals(page(0), evict(twoQ));
+        assertEquals(page(2), evict(twoQ));
+    }
+
+    @Test public void twoQueueKeepsNoGhostForDiscardedPages() {
+        EvictionPolicy twoQ = new TwoQueueEvictionPolicy(1, 4);
+        load(twoQ, 0);
+        twoQ.pageDiscarded(page(0));
+        load(twoQ, 1, 0);
+        // Both pages are in A1in, which is over its size, so it goes first
+        assertEquals(page(1), evict(twoQ));
+        assertEquals(page(0), evict(twoQ));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Channels on table files stay open between reads and writes, up to a
+ * limit, and are reopened when they were closed under a caller.
+ */
+public class FileHandleCacheTest {
+    private List<File> files;
+    private FileHandleCache cache;
+
+    @Before public void setUp() throws Exception {
+        files = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            files.add(File.createTempFile("handles", ".dat"));
+        }
+        cache = new FileHandleCache(2);
+    }
+
+    @After public void tearDown() {
+        cache.closeAll();
+        for (File f : files) {
+            f.delete();
+        }
+    }
+
+    private void write(File f, String s, long position) throws IOException {
+        cache.write(f, ByteBuffer.wrap(s.getBytes("UTF-8")), position);
+    }
+
+    private String read(File f, int length, long position) throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate(length);
+        int n = cache.read(f, dst, position);
+        return new String(dst.array(), 0, n, "UTF-8");
+    }
+
+    @Test public void readsWhatWasWritten() throws Exception {
+        File f = files.get(0);
+        write(f, "hello", 0);
+        write(f, "world", 10);
+        assertEquals("hello", read(f, 5, 0));
+        assertEquals("world", read(f, 5, 10));
+        // Reads stop at the end of the file
+        assertEquals("ld", read(f, 5, 13));
+        assertEquals(15, f.length());
+    }
+
+    @Test public void channelStaysOpen() throws Exception {
+        File f = files.get(0);
+        FileChannel ch = cache.getChannel(f, false);
+        write(f, "abc", 0);
+        read(f, 3, 0);
+        assertSame(ch, cache.getChannel(f, false));
+        assertTrue(ch.isOpen());
+        assertEquals(1, cache.size());
+    }
+
+    @Test public void leastRecentlyUsedChannelIsClosed() throws Exception {
+        FileChannel first = cache.getChannel(files.get(0), false);
+        FileChannel second = cache.getChannel(files.get(1), false);
+        cache.getChannel(files.get(0), false);
+        cache.getChannel(files.get(2), false);
+        assertEquals(2, cache.size());
+        assertTrue(first.isOpen());
+        assertFalse(second.isOpen());
+    }
+
+    @Test public void closedChannelIsReopened() throws Exception {
+        File f = files.get(0);
+        write(f, "abc", 0);
+        cache.getChannel(f, false).close();
+        assertEquals("abc", read(f, 3, 0));
+        write(f, "d", 3);
+        assertEquals("abcd", read(f, 4, 0));
+    }
+
+    @Test(expected = IOException.class)
+    public void missingFileIsNotCreatedByReads() throws Exception {
+        File f = files.get(0);
+        f.delete();
+        try {
+            read(f, 1, 0);
+        } finally {
+            assertFalse(f.exists());
+        }
+    }
+
+    @Test public void closeOneFile() throws Exception {
+        FileChannel ch = cache.getChannel(files.get(0), false);
+        cache.getChannel(files.get(1), false);
+        cache.close(files.get(0));
+        assertFalse(ch.isOpen());
+        assertEquals(1, cache.size());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileHandleCacheTest.class);
+    }
+}
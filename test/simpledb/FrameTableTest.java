@@ -0,0 +1,85 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Threads reading pages through the BufferPool at the same time: each page
+ * is read from disk once, and the pool never grows past its size.
+ */
+public class FrameTableTest {
+    private static final int THREADS = 8;
+
+    private File file;
+    private HeapFile hf;
+    private ExecutorService threads;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("frames", ".dat");
+        hf = Utility.openHeapFile(2, file);
+        for (int i = 0; i < 32; i++) {
+            hf.writePage(new HeapPage(new HeapPageId(hf.getId(), i), HeapPage.createEmptyPageData()));
+        }
+        threads = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After public void tearDown() {
+        threads.shutdownNow();
+        file.delete();
+        new File(file.getPath() + ".fsm").delete();
+    }
+
+    // Have every thread read the pages of the table in its own order
+    private void readConcurrently(BufferPool pool, int rounds) throws Exception {
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            done.add(threads.submit(() -> {
+                Random r = new Random(seed);
+                TransactionId tid = new TransactionId();
+                for (int i = 0; i < rounds; i++) {
+                    PageId pid = new HeapPageId(hf.getId(), r.nextInt(hf.numPages()));
+                    Page page = pool.getPage(tid, pid, Permissions.READ_ONLY);
+                    assertEquals(pid, page.getId());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : done) {
+            f.get(60, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test public void eachPageReadOnce() throws Exception {
+        BufferPool pool = new BufferPool(hf.numPages());
+        readConcurrently(pool, 200);
+        assertEquals(hf.numPages(), pool.getMissCount());
+        assertEquals(THREADS * 200, pool.getHitCount() + pool.getMissCount());
+    }
+
+    @Test public void poolStaysWithinSize() throws Exception {
+        // Room for a page pinned by every thread, and one to evict
+        int size = THREADS + 1;
+        BufferPool pool = new BufferPool(size);
+        readConcurrently(pool, 500);
+        assertTrue(pool.getFrameDescriptors().size() <= size);
+        for (FrameDescriptor frame : pool.getFrameDescriptors()) {
+            assertEquals(0, frame.getPinCount());
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FrameTableTest.class);
+    }
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The free space map of a HeapFile: which pages inserts try, how it is
+ * kept up to date, and how it is saved and loaded.
+ */
+public class FreeSpaceMapTest {
+    private File mapFile;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        mapFile = File.createTempFile("free", ".fsm");
+        mapFile.delete();
+    }
+
+    @After public void tearDown() {
+        mapFile.delete();
+    }
+
+    private static List<Integer> pagesWithSpace(FreeSpaceMap fsm) {
+        List<Integer> pages = new ArrayList<>();
+        for (int i = fsm.nextPageWithSpace(0); i >= 0; i = fsm.nextPageWithSpace(i + 1)) {
+            pages.add(i);
+        }
+        return pages;
+    }
+
+    @Test public void newMapHasSpaceEverywhere() {
+        FreeSpaceMap fsm = FreeSpaceMap.load(mapFile, 3);
+        assertEquals(Arrays.asList(0, 1, 2), pagesWithSpace(fsm));
+    }
+
+    @Test public void setHasSpace() {
+        FreeSpaceMap fsm = FreeSpaceMap.load(mapFile, 4);
+        fsm.setHasSpace(0, false);
+        fsm.setHasSpace(2, false);
+        assertEquals(Arrays.asList(1, 3), pagesWithSpace(fsm));
+        assertEquals(2, fsm.countPagesWithSpace());
+        // Pages past the end extend the map
+        fsm.setHasSpace(6, true);
+        assertEquals(Arrays.asList(1, 3, 6), pagesWithSpace(fsm));
+        fsm.rebuild(2);
+        assertEquals(Arrays.asList(0, 1), pagesWithSpace(fsm));
+    }
+
+    @Test public void saveAndLoad() throws Exception {
+        FreeSpaceMap fsm = FreeSpaceMap.load(mapFile, 3);
+        fsm.setHasSpace(1, false);
+        fsm.save();
+        assertEquals(Arrays.asList(0, 2), pagesWithSpace(FreeSpaceMap.load(mapFile, 3)));
+        // Pages added since the map was saved may have room
+        assertEquals(Arrays.asList(0, 2, 3, 4), pagesWithSpace(FreeSpaceMap.load(mapFile, 5)));
+        // A map of more pages than the file has is from another file
+        assertEquals(Arrays.asList(0, 1), pagesWithSpace(FreeSpaceMap.load(mapFile, 2)));
+    }
+
+    @Test public void corruptFileIsReplaced() throws Exception {
+        FileOutputStream out = new FileOutputStream(mapFile);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+        assertEquals(Arrays.asList(0, 1), pagesWithSpace(FreeSpaceMap.load(mapFile, 2)));
+    }
+
+    @Test public void insertsFollowTheMap() throws Exception {
+        Database.getLogFile().setFullPageImages(true);
+        File file = File.createTempFile("free", ".dat");
+        try {
+            HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+            Transaction t = new Transaction();
+            t.start();
+            int perPage = hf.tuplesPerPage();
+            for (int i = 0; i < 2 * perPage; i++) {
+                Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                        Utility.getHeapTuple(new int[]{i, 0}));
+            }
+            assertEquals(2, hf.numPages());
+            FreeSpaceMap fsm = hf.getFreeSpaceMap();
+            assertEquals(0, fsm.countPagesWithSpace());
+
+            // A delete frees a slot on page 0, where the next insert goes
+            Tuple victim = ((HeapPage) Database.getBufferPool().getPage(t.getId(),
+                    new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY)).iterator().next();
+            Database.getBufferPool().deleteTuple(t.getId(), victim);
+            assertEquals(Arrays.asList(0), pagesWithSpace(fsm));
+            Tuple inserted = Utility.getHeapTuple(new int[]{-1, 0});
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), inserted);
+            assertEquals(0, inserted.getRecordId().getPageId().getPageNumber());
+            assertEquals(2, hf.numPages());
+            t.commit();
+
+            hf.saveFreeSpaceMap();
+            assertEquals(0, FreeSpaceMap.load(new File(file.getPath() + ".fsm"), 2).countPagesWithSpace());
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".fsm").delete();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
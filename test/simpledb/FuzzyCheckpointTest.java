@@ -0,0 +1,120 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checkpoints write no pages and do not wait for the BufferPool; they
+ * record the recLSN of each page with logged changes that are not on disk,
+ * and recovery redoes those changes from there.
+ */
+public class FuzzyCheckpointTest {
+    private File file;
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("checkpoint", ".dat");
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".fsm").delete();
+    }
+
+    private void commitInsert(int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{value, 0}));
+        t.commit();
+    }
+
+    private List<Integer> onDisk() {
+        List<Integer> values = new ArrayList<>();
+        Iterator<Tuple> it = ((HeapPage) hf.readPage(pid)).iterator();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        return values;
+    }
+
+    @Test public void recLsnTracksUnwrittenChanges() throws Exception {
+        long start = Database.getLogFile().getEndLSN();
+        commitInsert(1);
+        FrameDescriptor frame = Database.getBufferPool().getFrameDescriptor(pid);
+        long recLsn = frame.getRecLSN();
+        assertTrue(recLsn >= start);
+        // A later change does not move the recLSN
+        commitInsert(2);
+        assertEquals(recLsn, frame.getRecLSN());
+        Database.getBufferPool().flushAllPages();
+        assertEquals(FrameDescriptor.NO_REC_LSN, frame.getRecLSN());
+    }
+
+    @Test public void checkpointWritesNoPages() throws Exception {
+        commitInsert(1);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(Collections.emptyList(), onDisk());
+        commitInsert(2);
+
+        // The change from before the checkpoint is redone from its recLSN
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        Database.getBufferPool().flushAllPages();
+        assertEquals(Arrays.asList(1, 2), onDisk());
+    }
+
+    @Test public void checkpointDoesNotWaitForBufferPool() throws Exception {
+        commitInsert(1);
+        final Object held = new Object();
+        Thread holder = new Thread(() -> {
+            synchronized (Database.getBufferPool()) {
+                synchronized (held) {
+                    held.notifyAll();
+                    try {
+                        held.wait(10000);
+                    } catch (InterruptedException e) {
+                        // done
+                    }
+                }
+            }
+        });
+        synchronized (held) {
+            holder.start();
+            held.wait();
+        }
+        final Throwable[] error = new Throwable[1];
+        Thread checkpointer = new Thread(() -> {
+            try {
+                Database.getLogFile().logCheckpoint();
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        });
+        checkpointer.start();
+        checkpointer.join(5000);
+        boolean finished = !checkpointer.isAlive();
+        holder.interrupt();
+        holder.join();
+        checkpointer.join();
+        assertTrue("checkpoint waited for the BufferPool", finished);
+        assertNull(error[0]);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FuzzyCheckpointTest.class);
+    }
+}
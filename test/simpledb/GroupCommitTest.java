@@ -0,0 +1,122 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Group commit: concurrent commits share log forces, and a transaction's
+ * locks are only released once its commit record is durable.
+ */
+public class GroupCommitTest {
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("group", ".dat");
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".fsm").delete();
+    }
+
+    @Test public void commitsShareForces() throws Exception {
+        final LogFile log = Database.getLogFile();
+        log.setMaxBatchDelay(2000);
+        final int threads = 16;
+        final CyclicBarrier start = new CyclicBarrier(threads);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> committers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    TransactionId tid = new TransactionId();
+                    log.logXactionBegin(tid);
+                    start.await();
+                    log.logCommit(tid);
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            committers.add(t);
+        }
+        long forces = log.getForceCount();
+        long commits = log.getCommitCount();
+        for (Thread t : committers) {
+            t.start();
+        }
+        for (Thread t : committers) {
+            t.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(commits + threads, log.getCommitCount());
+        assertTrue(log.getForceCount() - forces < threads);
+    }
+
+    @Test public void locksHeldUntilCommitIsDurable() throws Exception {
+        final Transaction writer = new Transaction();
+        writer.start();
+        Database.getBufferPool().insertTuple(writer.getId(), hf.getId(), Utility.getHeapTuple(new int[]{1, 0}));
+        // Every force waits this long for more commits to join it
+        Database.getLogFile().setMaxBatchDelay(300000);
+
+        long started = System.nanoTime();
+        Thread committer = new Thread(() -> {
+            try {
+                writer.commit();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        committer.start();
+        Transaction reader = new Transaction();
+        reader.start();
+        Database.getBufferPool().getPage(reader.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        long waitedMillis = (System.nanoTime() - started) / 1000000;
+        committer.join();
+        assertTrue("read after " + waitedMillis + "ms", waitedMillis >= 300);
+        reader.commit();
+    }
+
+    @Test public void committedChangesSurviveCrash() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{7, 0}));
+        t.commit();
+        // Nothing but the log was written
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+
+        Transaction check = new Transaction();
+        check.start();
+        DbFileIterator it = hf.iterator(check.getId());
+        it.open();
+        assertTrue(it.hasNext());
+        assertEquals(new IntField(7), it.next().getField(0));
+        assertFalse(it.hasNext());
+        it.close();
+        check.commit();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDelay() {
+        Database.getLogFile().setMaxBatchDelay(-1);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
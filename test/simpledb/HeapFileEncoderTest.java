@@ -0,0 +1,150 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * HeapFileEncoder converts text files to the same pages HeapPage writes,
+ * in input order, however many chunks the conversion is split into.
+ */
+public class HeapFileEncoderTest {
+    private File in;
+    private File out;
+    private File table;
+    private HeapFile hf;
+    private int pageSize;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        in = File.createTempFile("encode", ".txt");
+        out = File.createTempFile("encode", ".dat");
+        table = File.createTempFile("encode", ".tbl");
+        hf = Utility.openHeapFile(2, table);
+        pageSize = BufferPool.getPageSize();
+    }
+
+    @After public void tearDown() {
+        in.delete();
+        out.delete();
+        table.delete();
+    }
+
+    private void writeInput(String text) throws IOException {
+        FileOutputStream os = new FileOutputStream(in);
+        os.write(text.getBytes("UTF-8"));
+        os.close();
+    }
+
+    private void convert() throws IOException {
+        HeapFileEncoder.convert(in, out, pageSize, 2);
+    }
+
+    // The pages HeapPage produces for the records (v, -v), from..to-1
+    private byte[] expected(int from, int to) throws Exception {
+        int perPage = hf.tuplesPerPage();
+        int npages = Math.max(1, (to - from + perPage - 1) / perPage);
+        byte[] data = new byte[npages * pageSize];
+        for (int p = 0; p < npages; p++) {
+            HeapPage page = new HeapPage(new HeapPageId(hf.getId(), p), HeapPage.createEmptyPageData());
+            for (int v = from + p * perPage; v < Math.min(to, from + (p + 1) * perPage); v++) {
+                page.insertTuple(Utility.getHeapTuple(new int[]{v, -v}));
+            }
+            System.arraycopy(page.getPageData(), 0, data, p * pageSize, pageSize);
+        }
+        return data;
+    }
+
+    private static String lines(int from, int to, String newline) {
+        StringBuilder sb = new StringBuilder();
+        for (int v = from; v < to; v++) {
+            sb.append(v).append(',').append(-v).append(newline);
+        }
+        return sb.toString();
+    }
+
+    @Test public void manyChunksStayInOrder() throws Exception {
+        // Several chunks of 256 pages, the last one partial
+        int n = 3 * 256 * hf.tuplesPerPage() + 17;
+        writeInput(lines(0, n, "\n"));
+        final long[] last = new long[4];
+        HeapFileEncoder.convert(in, out, pageSize, 2, new Type[]{Type.INT_TYPE, Type.INT_TYPE}, ',',
+                (bytesRead, totalBytes, records, pages) -> {
+                    assertTrue(records > last[2]);
+                    last[0] = bytesRead;
+                    last[1] = totalBytes;
+                    last[2] = records;
+                    last[3] = pages;
+                });
+        assertArrayEquals(expected(0, n), Files.readAllBytes(out.toPath()));
+        assertEquals(in.length(), last[0]);
+        assertEquals(in.length(), last[1]);
+        assertEquals(n, last[2]);
+        assertEquals(out.length() / pageSize, last[3]);
+    }
+
+    @Test public void lineEndings() throws Exception {
+        // CRLF, blank lines, and no newline after the last line
+        writeInput("\n" + lines(0, 3, "\r\n") + "\r\n\n" + lines(3, 5, "\n") + "5,-5");
+        convert();
+        assertArrayEquals(expected(0, 6), Files.readAllBytes(out.toPath()));
+    }
+
+    @Test public void emptyInputIsOneEmptyPage() throws Exception {
+        writeInput("");
+        convert();
+        assertArrayEquals(new byte[pageSize], Files.readAllBytes(out.toPath()));
+    }
+
+    @Test public void badIntIsZero() throws Exception {
+        writeInput("0,0\nx,-1\n2,-2\n");
+        convert();
+        byte[] pages = Files.readAllBytes(out.toPath());
+        HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 0), pages);
+        List<Integer> values = new ArrayList<>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            values.add(((IntField) t.getField(0)).getValue());
+            values.add(((IntField) t.getField(1)).getValue());
+        }
+        // The second field of the bad line stays in place
+        assertEquals(Arrays.asList(0, 0, 0, -1, 2, -2), values);
+    }
+
+    @Test(expected = IOException.class)
+    public void tooManyFields() throws Exception {
+        writeInput("1,2\n3,4,5\n");
+        convert();
+    }
+
+    @Test(expected = IOException.class)
+    public void tooFewFields() throws Exception {
+        writeInput("1,2\n3\n");
+        convert();
+    }
+
+    @Test public void tupleList() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+        for (int v = 0; v < 10; v++) {
+            tuples.add(new ArrayList<>(Arrays.asList(v, -v)));
+        }
+        HeapFileEncoder.convert(tuples, out, pageSize, 2);
+        assertArrayEquals(expected(0, 10), Files.readAllBytes(out.toPath()));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileEncoderTest.class);
+    }
+}
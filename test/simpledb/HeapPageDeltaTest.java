@@ -0,0 +1,157 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * HeapPageDeltas hold just the slots that changed between two versions of
+ * a page, and the log writes them instead of full page images.
+ */
+public class HeapPageDeltaTest {
+    private File file;
+    private HeapFile hf;
+    private HeapPage before;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("delta", ".dat");
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        before = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        for (int v = 1; v <= 3; v++) {
+            before.insertTuple(tuple(v));
+        }
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".fsm").delete();
+    }
+
+    private static Tuple tuple(int value) {
+        return Utility.getHeapTuple(new int[]{value, 0});
+    }
+
+    private static List<Integer> values(HeapPage page) {
+        List<Integer> values = new ArrayList<>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        return values;
+    }
+
+    // before with 4 inserted, 3 deleted and 1 replaced by 10
+    private HeapPage after() throws Exception {
+        HeapPage after = new HeapPage(before.getId(), before.getPageData());
+        after.insertTuple(tuple(4));
+        Iterator<Tuple> it = after.iterator();
+        Tuple first = it.next();
+        it.next();
+        after.deleteTuple(it.next());
+        after.deleteTuple(first);
+        after.insertTuple(tuple(10));
+        return after;
+    }
+
+    @Test public void onlyChangedSlots() throws Exception {
+        HeapPage after = after();
+        assertEquals(Arrays.asList(10, 2, 4), values(after));
+        HeapPageDelta delta = after.deltaFrom(before);
+        assertEquals(3, delta.size());
+        assertEquals(before.getId(), delta.getPageId());
+        assertTrue(before.deltaFrom(before).isEmpty());
+    }
+
+    @Test public void redoAndUndo() throws Exception {
+        HeapPage after = after();
+        HeapPageDelta delta = after.deltaFrom(before);
+
+        byte[] data = before.getPageData();
+        delta.redo(data);
+        assertArrayEquals(after.getPageData(), data);
+        // Applying a delta twice does no harm
+        delta.redo(data);
+        assertArrayEquals(after.getPageData(), data);
+
+        delta.undo(data);
+        assertArrayEquals(before.getPageData(), data);
+        delta.undo(data);
+        assertArrayEquals(before.getPageData(), data);
+
+        data = after.getPageData();
+        delta.inverse().redo(data);
+        assertArrayEquals(before.getPageData(), data);
+    }
+
+    @Test public void writeAndRead() throws Exception {
+        HeapPage after = after();
+        HeapPageDelta delta = after.deltaFrom(before);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(bytes));
+        HeapPageDelta read = HeapPageDelta.read(before.getId(),
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(delta.size(), read.size());
+        byte[] data = before.getPageData();
+        read.redo(data);
+        assertArrayEquals(after.getPageData(), data);
+    }
+
+    // How far the log grows when a transaction inserts one tuple
+    private long logBytesForOneInsert() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        long start = log.getEndLSN();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tuple(1));
+        t.commit();
+        return log.getEndLSN() - start;
+    }
+
+    @Test public void deltasAreSmall() throws Exception {
+        logBytesForOneInsert();
+        long delta = logBytesForOneInsert();
+        Database.getLogFile().setFullPageImages(true);
+        long images = logBytesForOneInsert();
+        assertTrue(delta < BufferPool.getPageSize() / 10);
+        assertTrue(images > 2 * BufferPool.getPageSize());
+    }
+
+    @Test public void abortUndoesDeltas() throws Exception {
+        Transaction setup = new Transaction();
+        setup.start();
+        for (int v = 1; v <= 3; v++) {
+            Database.getBufferPool().insertTuple(setup.getId(), hf.getId(), tuple(v));
+        }
+        setup.commit();
+
+        Transaction t = new Transaction();
+        t.start();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(t.getId(), page.iterator().next());
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tuple(5));
+        // The changes reach disk before the abort
+        Database.getBufferPool().flushAllPages();
+        assertEquals(Arrays.asList(5, 2, 3), values((HeapPage) hf.readPage(pid)));
+        t.abort();
+        Database.getBufferPool().flushAllPages();
+        assertEquals(Arrays.asList(1, 2, 3), values((HeapPage) hf.readPage(pid)));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapPageDeltaTest.class);
+    }
+}
@@ -0,0 +1,186 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Locks on tables, pages and records: intention locks on the levels above
+ * a lock, record locks under page intention locks, and escalation of many
+ * small locks to one lock on the level above.
+ */
+public class IntentionLockTest {
+    private static final int TABLE = 1;
+    // Time after which a request that has not been granted is taken to wait
+    private static final long WAIT_MILLIS = 200;
+
+    private LockManager lm;
+    private ExecutorService threads;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @After public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    private static PageId page(int n) {
+        return new HeapPageId(TABLE, n);
+    }
+
+    private static RecordId record(int page, int slot) {
+        return new RecordId(page(page), slot);
+    }
+
+    private interface Request {
+        void run() throws TransactionAbortedException;
+    }
+
+    /**
+     * Make a lock request on another thread.
+     * @return true once the lock is granted, false if the transaction aborts
+     */
+    private Future<Boolean> request(Request r) {
+        return threads.submit(() -> {
+            try {
+                r.run();
+                return true;
+            } catch (TransactionAbortedException e) {
+                return false;
+            }
+        });
+    }
+
+    private static void assertWaiting(Future<Boolean> f) throws Exception {
+        try {
+            f.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("request was not blocked");
+        } catch (TimeoutException expected) {
+        }
+    }
+
+    private static void assertGranted(Future<Boolean> f) throws Exception {
+        assertTrue(f.get(10, TimeUnit.SECONDS));
+    }
+
+    /** Intention locks on a table let page locks through; a table lock in S stops writers. */
+    @Test public void tableLocksAndIntentionLocks() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, page(0), Permissions.READ_WRITE);
+        lm.acquireLock(t2, page(1), Permissions.READ_ONLY);
+
+        TransactionId scanner = new TransactionId();
+        Future<Boolean> s = request(() -> lm.acquireTableLock(scanner, TABLE, Permissions.READ_ONLY));
+        assertWaiting(s);
+        lm.releaseTransaction(t1);
+        assertGranted(s);
+        assertTrue(lm.hasLock(scanner, page(5)));
+
+        TransactionId writer = new TransactionId();
+        Future<Boolean> w = request(() -> lm.acquireLock(writer, page(2), Permissions.READ_WRITE));
+        assertWaiting(w);
+        lm.releaseTransaction(scanner);
+        assertGranted(w);
+    }
+
+    @Test public void pageLocksEscalateToTableLock() throws Exception {
+        lm.setEscalationThreshold(3);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) {
+            lm.acquireLock(tid, page(i), Permissions.READ_ONLY);
+        }
+        assertEquals(1, lm.getEscalationCount());
+        // The table lock covers pages never locked one by one
+        assertTrue(lm.hasLock(tid, page(7)));
+
+        // Other readers go on; a writer waits for the table lock
+        TransactionId reader = new TransactionId();
+        lm.acquireLock(reader, page(5), Permissions.READ_ONLY);
+        TransactionId writer = new TransactionId();
+        Future<Boolean> w = request(() -> lm.acquireLock(writer, page(6), Permissions.READ_WRITE));
+        assertWaiting(w);
+        lm.releaseTransaction(tid);
+        lm.releaseTransaction(reader);
+        assertGranted(w);
+    }
+
+    /** Escalation does not wait: page locks stay if another transaction writes the table. */
+    @Test public void noEscalationPastOtherWriters() throws Exception {
+        lm.setEscalationThreshold(3);
+        TransactionId writer = new TransactionId();
+        lm.acquireLock(writer, page(9), Permissions.READ_WRITE);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 4; i++) {
+            lm.acquireLock(tid, page(i), Permissions.READ_ONLY);
+        }
+        assertEquals(0, lm.getEscalationCount());
+        assertFalse(lm.hasLock(tid, page(7)));
+    }
+
+    /** Record locks on different tuples of one page do not conflict. */
+    @Test public void recordLocksOnOnePage() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireRecordLock(t1, record(0, 1), Permissions.READ_WRITE);
+        lm.acquireRecordLock(t2, record(0, 2), Permissions.READ_WRITE);
+        assertTrue(lm.hasLock(t1, page(0)));
+        assertTrue(lm.hasLock(t2, page(0)));
+        assertFalse(lm.isExclusivelyLocked(page(0)));
+
+        // The same tuple waits; so does a reader of the whole page
+        Future<Boolean> same = request(() -> lm.acquireRecordLock(t2, record(0, 1), Permissions.READ_WRITE));
+        assertWaiting(same);
+        TransactionId reader = new TransactionId();
+        Future<Boolean> r = request(() -> lm.acquireLock(reader, page(0), Permissions.READ_ONLY));
+        assertWaiting(r);
+
+        lm.releaseTransaction(t1);
+        assertGranted(same);
+        assertWaiting(r);
+        lm.releaseTransaction(t2);
+        assertGranted(r);
+    }
+
+    /** A page lock covers the records of the page; no record lock is taken under it. */
+    @Test public void pageLockCoversRecords() throws Exception {
+        TransactionId tid = new TransactionId();
+        lm.acquireLock(tid, page(0), Permissions.READ_WRITE);
+        lm.acquireRecordLock(tid, record(0, 1), Permissions.READ_WRITE);
+        TransactionId other = new TransactionId();
+        Future<Boolean> o = request(() -> lm.acquireRecordLock(other, record(0, 2), Permissions.READ_WRITE));
+        assertWaiting(o);
+        lm.releaseTransaction(tid);
+        assertGranted(o);
+    }
+
+    @Test public void recordLocksEscalateToPageLock() throws Exception {
+        lm.setRecordEscalationThreshold(2);
+        TransactionId tid = new TransactionId();
+        lm.acquireRecordLock(tid, record(0, 1), Permissions.READ_WRITE);
+        assertFalse(lm.isExclusivelyLocked(page(0)));
+        lm.acquireRecordLock(tid, record(0, 2), Permissions.READ_WRITE);
+        assertTrue(lm.isExclusivelyLocked(page(0)));
+        assertEquals(1, lm.getEscalationCount());
+
+        // Other tuples of the page are now covered too
+        TransactionId other = new TransactionId();
+        Future<Boolean> o = request(() -> lm.acquireRecordLock(other, record(0, 5), Permissions.READ_WRITE));
+        assertWaiting(o);
+        lm.releaseTransaction(tid);
+        assertGranted(o);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntentionLockTest.class);
+    }
+}
@@ -0,0 +1,122 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * HeapPages keep their bytes instead of decoding them: tuples and fields
+ * are read out of the page array when asked for, and stay valid when the
+ * page changes later.
+ */
+public class LazyHeapPageTest {
+    private File file;
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("lazy", ".dat");
+        hf = Utility.openHeapFile(2, file);
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    @After public void tearDown() {
+        file.delete();
+    }
+
+    private HeapPage pageWith(int... values) throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        for (int v : values) {
+            page.insertTuple(Utility.getHeapTuple(new int[]{v, -v}));
+        }
+        return page;
+    }
+
+    private static List<Integer> values(HeapPage page) {
+        List<Integer> values = new ArrayList<>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            values.add(value(it.next()));
+        }
+        return values;
+    }
+
+    private static int value(Tuple t) {
+        return ((IntField) t.getField(0)).getValue();
+    }
+
+    @Test public void pageDataRoundTrips() throws Exception {
+        byte[] data = pageWith(1, 2, 3).getPageData();
+        HeapPage page = new HeapPage(pid, data);
+        assertArrayEquals(data, page.getPageData());
+        assertEquals(Arrays.asList(1, 2, 3), values(page));
+        Tuple first = page.iterator().next();
+        assertEquals(-1, ((IntField) first.getField(1)).getValue());
+        assertEquals(new RecordId(pid, 0), first.getRecordId());
+    }
+
+    @Test public void pageKeepsItsOwnCopy() throws Exception {
+        byte[] data = pageWith(1, 2).getPageData();
+        HeapPage page = new HeapPage(pid, data);
+        Arrays.fill(data, (byte) 0);
+        assertEquals(Arrays.asList(1, 2), values(page));
+        page.getPageData()[0] = 0;
+        assertEquals(Arrays.asList(1, 2), values(page));
+    }
+
+    @Test public void shortDataIsPadded() throws Exception {
+        byte[] full = pageWith(7).getPageData();
+        HeapPage page = new HeapPage(pid, Arrays.copyOf(full, 100));
+        assertEquals(BufferPool.getPageSize(), page.getPageData().length);
+        assertEquals(Arrays.asList(7), values(page));
+    }
+
+    @Test public void tuplesSurviveLaterChanges() throws Exception {
+        HeapPage page = new HeapPage(pid, pageWith(1, 2).getPageData());
+        // Changed since the last commit, so the next change has no before
+        // image to capture and only the tuples force a copy
+        page.insertTuple(Utility.getHeapTuple(new int[]{3, -3}));
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        Tuple second = it.next();
+        // The fields are not decoded yet when the page changes
+        page.deleteTuple(second);
+        page.insertTuple(Utility.getHeapTuple(new int[]{5, -5}));
+        assertEquals(1, value(first));
+        assertEquals(2, value(second));
+        assertEquals(Arrays.asList(1, 5, 3), values(page));
+    }
+
+    @Test public void deletedSlotIsZeroed() throws Exception {
+        HeapPage page = pageWith(1, 2);
+        page.deleteTuple(page.iterator().next());
+        int tupleSize = hf.getTupleDesc().getSize();
+        int numSlots = BufferPool.getPageSize() * 8 / (tupleSize * 8 + 1);
+        int headerSize = (numSlots + 7) / 8;
+        byte[] data = page.getPageData();
+        for (int i = headerSize; i < headerSize + tupleSize; i++) {
+            assertEquals(0, data[i]);
+        }
+        HeapPage reread = new HeapPage(pid, data);
+        assertFalse(reread.isSlotUsed(0));
+        assertEquals(Arrays.asList(2), values(reread));
+    }
+
+    @Test public void typeParsesFromOffset() {
+        byte[] data = {0, 0, 0, 0, 0, 0, 1, 2};
+        assertEquals(new IntField(258), Type.INT_TYPE.parse(data, 4));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LazyHeapPageTest.class);
+    }
+}
@@ -0,0 +1,153 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The LockManager's lock table: shared and exclusive page locks, requests
+ * that wait in a queue per page and are granted in order, and upgrades.
+ */
+public class LockTableTest {
+    private static final int TABLE = 1;
+    // Time after which a request that has not been granted is taken to wait
+    private static final long WAIT_MILLIS = 200;
+
+    private LockManager lm;
+    private ExecutorService threads;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @After public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    private static PageId page(int n) {
+        return new HeapPageId(TABLE, n);
+    }
+
+    private interface Request {
+        void run() throws TransactionAbortedException;
+    }
+
+    /**
+     * Make a lock request on another thread.
+     * @return true once the lock is granted, false if the transaction aborts
+     */
+    private Future<Boolean> request(Request r) {
+        return threads.submit(() -> {
+            try {
+                r.run();
+                return true;
+            } catch (TransactionAbortedException e) {
+                return false;
+            }
+        });
+    }
+
+    private static void assertWaiting(Future<Boolean> f) throws Exception {
+        try {
+            f.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("request was not blocked");
+        } catch (TimeoutException expected) {
+        }
+    }
+
+    private static void assertGranted(Future<Boolean> f) throws Exception {
+        assertTrue(f.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test public void readersShare() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, page(0), Permissions.READ_ONLY);
+        lm.acquireLock(t2, page(0), Permissions.READ_ONLY);
+        assertEquals(new HashSet<>(Arrays.asList(t1, t2)), lm.getTransactions(page(0)));
+        assertFalse(lm.isExclusivelyLocked(page(0)));
+    }
+
+    @Test public void writerWaitsForReaders() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, page(0), Permissions.READ_ONLY);
+        lm.acquireLock(t2, page(0), Permissions.READ_ONLY);
+        TransactionId writer = new TransactionId();
+        Future<Boolean> w = request(() -> lm.acquireLock(writer, page(0), Permissions.READ_WRITE));
+        assertWaiting(w);
+        lm.releaseLock(t1, page(0));
+        assertWaiting(w);
+        lm.releaseTransaction(t2);
+        assertGranted(w);
+        assertTrue(lm.isExclusivelyLocked(page(0)));
+        // Other pages are not affected
+        lm.acquireLock(t1, page(1), Permissions.READ_WRITE);
+    }
+
+    /** A reader queued behind a waiting writer waits, though the holder would let it in. */
+    @Test public void waitersServedInOrder() throws Exception {
+        TransactionId holder = new TransactionId();
+        lm.acquireLock(holder, page(0), Permissions.READ_ONLY);
+        TransactionId writer = new TransactionId();
+        Future<Boolean> w = request(() -> lm.acquireLock(writer, page(0), Permissions.READ_WRITE));
+        assertWaiting(w);
+        TransactionId reader = new TransactionId();
+        Future<Boolean> r = request(() -> lm.acquireLock(reader, page(0), Permissions.READ_ONLY));
+        assertWaiting(r);
+
+        lm.releaseTransaction(holder);
+        assertGranted(w);
+        assertWaiting(r);
+        lm.releaseTransaction(writer);
+        assertGranted(r);
+    }
+
+    /** An upgrade only waits for the other holders, not for the queue. */
+    @Test public void upgradeGoesFirst() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, page(0), Permissions.READ_ONLY);
+        lm.acquireLock(t2, page(0), Permissions.READ_ONLY);
+        TransactionId writer = new TransactionId();
+        Future<Boolean> w = request(() -> lm.acquireLock(writer, page(0), Permissions.READ_WRITE));
+        assertWaiting(w);
+        Future<Boolean> u = request(() -> lm.acquireLock(t1, page(0), Permissions.READ_WRITE));
+        assertWaiting(u);
+
+        lm.releaseTransaction(t2);
+        assertGranted(u);
+        assertEquals(Collections.singleton(t1), lm.getTransactions(page(0)));
+        assertWaiting(w);
+        lm.releaseTransaction(t1);
+        assertGranted(w);
+    }
+
+    @Test public void soleReaderUpgradesInPlace() throws Exception {
+        TransactionId tid = new TransactionId();
+        lm.acquireLock(tid, page(0), Permissions.READ_ONLY);
+        lm.upgradeLock(tid, page(0));
+        assertTrue(lm.isExclusivelyLocked(page(0)));
+
+        // Not while another transaction reads the page
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, page(1), Permissions.READ_ONLY);
+        lm.acquireLock(t2, page(1), Permissions.READ_ONLY);
+        lm.upgradeLock(t1, page(1));
+        assertFalse(lm.isExclusivelyLocked(page(1)));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockTableTest.class);
+    }
+}
@@ -0,0 +1,127 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Log records are collected in a LogBuffer and written out in large writes;
+ * pages carry the LSN of their last record, and the log is forced up to it
+ * before the page is written.
+ */
+public class LogBufferTest {
+    private File file;
+    private FileChannel channel;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("logbuffer", ".dat");
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @After public void tearDown() throws Exception {
+        channel.close();
+        file.delete();
+        new File(file.getPath() + ".fsm").delete();
+    }
+
+    private static byte[] bytes(int from, int count) {
+        byte[] b = new byte[count];
+        for (int i = 0; i < count; i++) {
+            b[i] = (byte) (from + i);
+        }
+        return b;
+    }
+
+    private byte[] fileBytes() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+        channel.read(buf, 0);
+        return buf.array();
+    }
+
+    @Test public void appendReturnsLsns() throws Exception {
+        LogBuffer buffer = new LogBuffer(channel, 1000, 1010);
+        assertEquals(1010, buffer.append(bytes(0, 3), 0, 3));
+        assertEquals(1013, buffer.append(bytes(3, 2), 0, 2));
+        assertEquals(1015, buffer.getEndLsn());
+        // Nothing is written until somebody needs it
+        assertEquals(0, channel.size());
+        assertEquals(1015, buffer.flush());
+        byte[] expected = new byte[15];
+        System.arraycopy(bytes(0, 5), 0, expected, 10, 5);
+        assertArrayEquals(expected, fileBytes());
+    }
+
+    @Test public void fullRingIsWrittenOut() throws Exception {
+        LogBuffer buffer = new LogBuffer(channel, 0, 0, 2, 4);
+        buffer.append(bytes(0, 10), 0, 10);
+        assertArrayEquals(bytes(0, 8), fileBytes());
+        buffer.flushTo(8);
+        assertEquals(8, channel.size());
+        buffer.flushTo(9);
+        assertArrayEquals(bytes(0, 10), fileBytes());
+    }
+
+    @Test public void resetToAnotherFile() throws Exception {
+        LogBuffer buffer = new LogBuffer(channel, 0, 0);
+        buffer.append(bytes(0, 4), 0, 4);
+        buffer.flush();
+        File next = File.createTempFile("logbuffer", ".dat");
+        try (FileChannel other = FileChannel.open(next.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer.reset(other, 4, 4);
+            assertEquals(4, buffer.append(bytes(4, 2), 0, 2));
+            buffer.flush();
+            assertEquals(4, channel.size());
+            ByteBuffer read = ByteBuffer.allocate(2);
+            other.read(read, 0);
+            assertArrayEquals(bytes(4, 2), read.array());
+        } finally {
+            next.delete();
+        }
+    }
+
+    @Test public void logIsForcedUpToPageLsn() throws Exception {
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{1, 0}));
+        Page page = Database.getBufferPool().getPage(t.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(0, page.getLSN());
+
+        long forces = log.getForceCount();
+        Database.getBufferPool().flushAllPages();
+        // The page's record was the last one written, and is on disk
+        assertTrue(page.getLSN() > 0);
+        assertEquals(log.getEndLSN(), page.getLSN());
+        assertEquals(forces + 1, log.getForceCount());
+        // A page read back from its file starts with no LSN
+        assertEquals(0, hf.readPage(page.getId()).getLSN());
+        t.commit();
+
+        // LSNs keep growing when the log is truncated
+        long end = log.getEndLSN();
+        log.logTruncate();
+        assertTrue(log.getEndLSN() >= end);
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().insertTuple(t2.getId(), hf.getId(), Utility.getHeapTuple(new int[]{2, 0}));
+        Database.getBufferPool().flushAllPages();
+        assertTrue(page.getLSN() > end);
+        t2.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
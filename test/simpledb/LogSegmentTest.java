@@ -0,0 +1,130 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The log is a sequence of preallocated segment files listed in a manifest;
+ * records are found across segments when the log is reopened, and the
+ * files of truncated segments are recycled.
+ */
+public class LogSegmentTest {
+    private static final int SEGMENT_BYTES = 16 * 1024;
+
+    private File logFile;
+    private File dataFile;
+    private HeapFile hf;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        dataFile = File.createTempFile("segments", ".dat");
+        hf = Utility.createEmptyHeapFile(dataFile.getAbsolutePath(), 2);
+        logFile = File.createTempFile("segments", ".log");
+        logFile.delete();
+        log = open();
+        log.setFullPageImages(true);
+    }
+
+    @After public void tearDown() {
+        for (File f : segmentFiles()) {
+            f.delete();
+        }
+        logFile.delete();
+        dataFile.delete();
+        new File(dataFile.getPath() + ".fsm").delete();
+    }
+
+    private LogFile open() throws Exception {
+        // Only read when a LogFile is created
+        System.setProperty(LogFile.SEGMENT_SIZE_PROPERTY, String.valueOf(SEGMENT_BYTES));
+        try {
+            return new LogFile(logFile);
+        } finally {
+            System.clearProperty(LogFile.SEGMENT_SIZE_PROPERTY);
+        }
+    }
+
+    private List<File> segmentFiles() {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            File f = LogSegment.fileFor(logFile, i);
+            if (f.exists()) {
+                files.add(f);
+            }
+        }
+        return files;
+    }
+
+    private int highestSegmentNumber() {
+        List<File> files = segmentFiles();
+        String name = files.get(files.size() - 1).getName();
+        return Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    // Log a committed transaction that puts value on page pgNo; with full
+    // page images each one fills a segment
+    private void logCommitted(int pgNo, int value) throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(hf.getId(), pgNo);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+        after.insertTuple(Utility.getHeapTuple(new int[]{value, 0}));
+        log.logXactionBegin(tid);
+        log.logWrite(tid, before, after);
+        log.logCommit(tid);
+    }
+
+    @Test public void segmentsArePreallocated() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            logCommitted(i, i);
+        }
+        List<File> files = segmentFiles();
+        assertTrue(files.size() >= 3);
+        for (File f : files) {
+            assertEquals(SEGMENT_BYTES, f.length());
+        }
+    }
+
+    @Test public void recoverAcrossSegments() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            logCommitted(i, 10 + i);
+        }
+        // None of the pages were written; the reopened log redoes them all
+        log = open();
+        log.recover();
+        for (int i = 0; i < 6; i++) {
+            Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), i))).iterator();
+            assertEquals(new IntField(10 + i), it.next().getField(0));
+            assertFalse(it.hasNext());
+        }
+    }
+
+    @Test public void truncatedSegmentsAreRecycled() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            logCommitted(0, i);
+        }
+        log.logCheckpoint();
+        // The segments before the checkpoint's are gone, but up to
+        // MAX_FREE_SEGMENTS of their files are kept for reuse
+        assertTrue(segmentFiles().size() <= 2 + LogFile.MAX_FREE_SEGMENTS);
+        int highest = highestSegmentNumber();
+        for (int i = 0; i < LogFile.MAX_FREE_SEGMENTS - 1; i++) {
+            logCommitted(0, i);
+        }
+        assertEquals(highest, highestSegmentNumber());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentTest.class);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * HeapFiles in MMAP mode read the same pages as through the FileChannel,
+ * including pages written after the file was mapped.
+ */
+public class MmapReadTest {
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("mmap", ".dat");
+        hf = Utility.openHeapFile(2, file);
+        for (int i = 0; i < 3; i++) {
+            writePage(i, 10 * i, 10 * i + 5);
+        }
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".fsm").delete();
+    }
+
+    private HeapPageId page(int n) {
+        return new HeapPageId(hf.getId(), n);
+    }
+
+    // Write a page holding the values from..to-1
+    private void writePage(int n, int from, int to) throws Exception {
+        HeapPage page = new HeapPage(page(n), HeapPage.createEmptyPageData());
+        for (int i = from; i < to; i++) {
+            page.insertTuple(Utility.getHeapTuple(new int[]{i, 0}));
+        }
+        hf.writePage(page);
+    }
+
+    private byte[] read(int n) {
+        return hf.readPage(page(n)).getPageData();
+    }
+
+    private List<Integer> values(int n) {
+        List<Integer> values = new ArrayList<>();
+        Iterator<Tuple> it = ((HeapPage) hf.readPage(page(n))).iterator();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        return values;
+    }
+
+    @Test public void sameBytesAsChannel() throws Exception {
+        List<byte[]> channel = new ArrayList<>();
+        for (int i = 0; i < hf.numPages(); i++) {
+            channel.add(read(i));
+        }
+        hf.setAccessMode(HeapFile.AccessMode.MMAP);
+        for (int i = 0; i < hf.numPages(); i++) {
+            assertArrayEquals(channel.get(i), read(i));
+        }
+    }
+
+    @Test public void seesWritesAfterMapping() throws Exception {
+        hf.setAccessMode(HeapFile.AccessMode.MMAP);
+        assertEquals(Arrays.asList(10, 11, 12, 13, 14), values(1));
+        // Overwritten within the mapping, and appended past it
+        writePage(1, 100, 103);
+        writePage(3, 200, 201);
+        assertEquals(Arrays.asList(100, 101, 102), values(1));
+        assertEquals(Arrays.asList(200), values(3));
+    }
+
+    @Test public void pagePastEndIsEmpty() throws Exception {
+        hf.setAccessMode(HeapFile.AccessMode.MMAP);
+        assertArrayEquals(HeapPage.createEmptyPageData(), read(hf.numPages()));
+    }
+
+    @Test public void schemaOption() throws Exception {
+        File schema = File.createTempFile("schema", ".txt");
+        try {
+            FileWriter w = new FileWriter(schema);
+            w.write("mapped (a int, b int) mmap\nplain (a int, b int)\n");
+            w.close();
+            Database.getCatalog().loadSchema(schema.getAbsolutePath());
+            Catalog catalog = Database.getCatalog();
+            assertEquals(HeapFile.AccessMode.MMAP,
+                    ((HeapFile) catalog.getDatabaseFile(catalog.getTableId("mapped"))).getAccessMode());
+            assertEquals(HeapFile.AccessMode.CHANNEL,
+                    ((HeapFile) catalog.getDatabaseFile(catalog.getTableId("plain"))).getAccessMode());
+        } finally {
+            schema.delete();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MmapReadTest.class);
+    }
+}
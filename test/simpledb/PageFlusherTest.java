@@ -0,0 +1,114 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Committed dirty pages are written out ahead of eviction, by the
+ * background flusher once the pool is dirtier than its high watermark.
+ */
+public class PageFlusherTest {
+    private static final int PAGES = 5;
+
+    private File file;
+    private HeapFile hf;
+    private BufferPool pool;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        pool = Database.resetBufferPool(10);
+        pool.stopBackgroundFlusher();
+        file = File.createTempFile("flusher", ".dat");
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Transaction load = new Transaction();
+        load.start();
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < PAGES * hf.tuplesPerPage(); i++) {
+            tuples.add(Utility.getHeapTuple(new int[]{i, 0}));
+        }
+        pool.bulkInsert(load.getId(), hf.getId(), tuples);
+        load.commit();
+    }
+
+    @After public void tearDown() {
+        pool.stopBackgroundFlusher();
+        file.delete();
+        new File(file.getPath() + ".fsm").delete();
+    }
+
+    private HeapPageId page(int n) {
+        return new HeapPageId(hf.getId(), n);
+    }
+
+    // Delete the first tuple of each of the given pages
+    private void deleteFromPages(Transaction t, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            HeapPage page = (HeapPage) pool.getPage(t.getId(), page(i), Permissions.READ_ONLY);
+            Tuple first = page.iterator().next();
+            pool.deleteTuple(t.getId(), first);
+        }
+    }
+
+    private int freeSlotsOnDisk(int n) {
+        return ((HeapPage) hf.readPage(page(n))).getNumEmptySlots();
+    }
+
+    @Test public void flushCommittedPagesSkipsRunningTransactions() throws Exception {
+        int bulkPages = hf.numPages();
+        Transaction committed = new Transaction();
+        committed.start();
+        deleteFromPages(committed, 1, bulkPages);
+        committed.commit();
+        Transaction running = new Transaction();
+        running.start();
+        deleteFromPages(running, 1, 2);
+
+        assertEquals(bulkPages - 1, pool.countDirtyPages());
+        assertEquals(bulkPages - 2, pool.flushCommittedPages(bulkPages));
+        assertEquals(1, pool.countDirtyPages());
+        assertEquals(1, freeSlotsOnDisk(2));
+        // The page the running transaction changed is not written
+        assertEquals(0, freeSlotsOnDisk(1));
+        running.abort();
+    }
+
+    @Test public void flushCommittedPagesWritesAtMostMax() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPages(t, 1, 4);
+        t.commit();
+        assertEquals(2, pool.flushCommittedPages(2));
+        assertEquals(1, pool.countDirtyPages());
+    }
+
+    @Test public void backgroundFlusherWritesDownToLowWatermark() throws Exception {
+        pool.startBackgroundFlusher(0.2, 0.1);
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPages(t, 1, PAGES);
+        t.commit();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.countDirtyPages() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(PageFlusher.INTERVAL_MILLIS);
+        }
+        assertEquals(1, pool.countDirtyPages());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lowWatermarkAboveHigh() {
+        pool.startBackgroundFlusher(0.3, 0.5);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageFlusherTest.class);
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Pages pinned through PageHandles stay in the BufferPool until the handle
+ * is closed or its transaction completes.
+ */
+public class PageHandleTest {
+    private File file;
+    private HeapFile hf;
+    private BufferPool pool;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("handles", ".dat");
+        hf = Utility.openHeapFile(2, file);
+        for (int i = 0; i < 6; i++) {
+            hf.writePage(new HeapPage(page(i), HeapPage.createEmptyPageData()));
+        }
+        pool = new BufferPool(2);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".fsm").delete();
+    }
+
+    private HeapPageId page(int n) {
+        return new HeapPageId(hf.getId(), n);
+    }
+
+    private void readAll(int from) throws Exception {
+        for (int i = from; i < hf.numPages(); i++) {
+            pool.getPage(tid, page(i), Permissions.READ_ONLY);
+        }
+    }
+
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        try (PageHandle h = pool.pinPage(tid, page(0), Permissions.READ_ONLY)) {
+            assertEquals(page(0), h.getPage().getId());
+            readAll(1);
+            FrameDescriptor frame = pool.getFrameDescriptor(page(0));
+            assertNotNull(frame);
+            assertEquals(1, frame.getPinCount());
+            assertSame(frame.getPage(), h.getPage());
+        }
+        assertEquals(0, pool.getFrameDescriptor(page(0)).getPinCount());
+        readAll(1);
+        assertNull(pool.getFrameDescriptor(page(0)));
+    }
+
+    @Test(expected = DbException.class)
+    public void allPagesPinned() throws Exception {
+        pool.pinPage(tid, page(0), Permissions.READ_ONLY);
+        pool.pinPage(tid, page(1), Permissions.READ_ONLY);
+        pool.getPage(tid, page(2), Permissions.READ_ONLY);
+    }
+
+    @Test public void closeTwice() throws Exception {
+        PageHandle h1 = pool.pinPage(tid, page(0), Permissions.READ_ONLY);
+        PageHandle h2 = pool.pinPage(tid, page(0), Permissions.READ_ONLY);
+        assertEquals(2, pool.getFrameDescriptor(page(0)).getPinCount());
+        h1.close();
+        h1.close();
+        assertEquals(1, pool.getFrameDescriptor(page(0)).getPinCount());
+        pool.unpinPage(h2);
+        assertEquals(0, pool.getFrameDescriptor(page(0)).getPinCount());
+    }
+
+    @Test public void transactionCompleteReleasesPins() throws Exception {
+        pool.pinPage(tid, page(0), Permissions.READ_ONLY);
+        pool.pinPage(tid, page(1), Permissions.READ_ONLY);
+        pool.transactionComplete(tid);
+        assertEquals(0, pool.getFrameDescriptor(page(0)).getPinCount());
+        assertEquals(0, pool.getFrameDescriptor(page(1)).getPinCount());
+
+        tid = new TransactionId();
+        readAll(2);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageHandleTest.class);
+    }
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sequential scans have the pages after the one they read loaded into the
+ * BufferPool in the background, over a window that adapts to how many of
+ * those pages get used.
+ */
+public class ReadAheadTest {
+    private File file;
+    private HeapFile hf;
+    private BufferPool pool;
+    private ReadAheadPrefetcher prefetcher;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        pool = Database.resetBufferPool(64);
+        prefetcher = pool.getPrefetcher();
+        file = File.createTempFile("readahead", ".dat");
+        hf = Utility.openHeapFile(2, file);
+        for (int i = 0; i < 32; i++) {
+            hf.writePage(new HeapPage(page(i), HeapPage.createEmptyPageData()));
+        }
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".fsm").delete();
+    }
+
+    private HeapPageId page(int n) {
+        return new HeapPageId(hf.getId(), n);
+    }
+
+    private boolean cached(int n) {
+        return pool.getFrameDescriptor(page(n)) != null;
+    }
+
+    // Wait for the prefetcher to read a number of pages
+    private void awaitIssued(long n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (prefetcher.getIssuedCount() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, prefetcher.getIssuedCount());
+    }
+
+    @Test public void sequentialReadsReadAhead() throws Exception {
+        ReadAheadPrefetcher.Stream stream = prefetcher.openStream(hf.getId(), hf.numPages());
+        stream.pageRequested(0);
+        stream.pageRequested(1);
+        awaitIssued(ReadAheadPrefetcher.MIN_WINDOW);
+        assertTrue(cached(2));
+        assertTrue(cached(3));
+        assertFalse(cached(4));
+    }
+
+    @Test public void randomReadsDoNotReadAhead() throws Exception {
+        ReadAheadPrefetcher.Stream stream = prefetcher.openStream(hf.getId(), hf.numPages());
+        for (int pgNo : new int[]{5, 9, 3, 20}) {
+            stream.pageRequested(pgNo);
+        }
+        Thread.sleep(200);
+        assertEquals(0, prefetcher.getIssuedCount());
+    }
+
+    @Test public void windowGrowsWithHitsAndShrinksWithWaste() throws Exception {
+        ReadAheadPrefetcher.Stream stream = prefetcher.openStream(hf.getId(), hf.numPages());
+        stream.pageRequested(0);
+        stream.pageRequested(1);
+        awaitIssued(2);
+
+        // Using as many prefetched pages as the window doubles it
+        TransactionId tid = new TransactionId();
+        pool.getPage(tid, page(2), Permissions.READ_ONLY);
+        pool.getPage(tid, page(3), Permissions.READ_ONLY);
+        assertEquals(2, prefetcher.getHitCount());
+        assertEquals(2 * ReadAheadPrefetcher.MIN_WINDOW, prefetcher.getWindow());
+        assertEquals(1.0, prefetcher.getHitRate(), 0.0);
+
+        prefetcher.prefetchWasted();
+        assertEquals(ReadAheadPrefetcher.MIN_WINDOW, prefetcher.getWindow());
+        prefetcher.prefetchWasted();
+        assertEquals(ReadAheadPrefetcher.MIN_WINDOW, prefetcher.getWindow());
+        pool.transactionComplete(tid);
+    }
+
+    @Test public void disabled() throws Exception {
+        prefetcher.setEnabled(false);
+        ReadAheadPrefetcher.Stream stream = prefetcher.openStream(hf.getId(), hf.numPages());
+        for (int i = 0; i < 8; i++) {
+            stream.pageRequested(i);
+        }
+        Thread.sleep(200);
+        assertEquals(0, prefetcher.getIssuedCount());
+    }
+
+    @Test public void offForSmallPools() {
+        assertFalse(Database.resetBufferPool(4).getPrefetcher().isEnabled());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
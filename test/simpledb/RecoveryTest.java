@@ -0,0 +1,224 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Crash recovery: transactions that were running at the crash (losers) are
+ * undone, including changes that reached disk before a fuzzy checkpoint, and
+ * undo works on pages that the redo pass brought up to date in parallel.
+ * A crash is simulated by dropping the Database without writing anything
+ * out and recovering from the log.
+ */
+public class RecoveryTest {
+    private File file1;
+    private File file2;
+    private HeapFile hf1;
+    private HeapFile hf2;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file1 = File.createTempFile("recovery1", ".dat");
+        file2 = File.createTempFile("recovery2", ".dat");
+        hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
+        hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
+    }
+
+    @After public void tearDown() {
+        for (File f : new File[]{file1, file2}) {
+            f.delete();
+            new File(f.getPath() + ".fsm").delete();
+        }
+    }
+
+    // Drop everything in memory and recover from the log
+    private void crash(int redoThreads) throws IOException {
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().setRedoThreads(redoThreads);
+        Database.getLogFile().recover();
+    }
+
+    private static void insert(HeapFile hf, Transaction t, int value) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[]{value, 0}));
+    }
+
+    private static void insert(HeapFile hf, Transaction t, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            insert(hf, t, i);
+        }
+    }
+
+    // The tuples of a table as of the last commit, by their first field
+    private static Map<Integer, Tuple> tuples(HeapFile hf) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Map<Integer, Tuple> tuples = new HashMap<>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            tuples.put(((IntField) tup.getField(0)).getValue(), tup);
+        }
+        it.close();
+        t.commit();
+        return tuples;
+    }
+
+    private static List<Integer> values(HeapFile hf) throws Exception {
+        List<Integer> values = new ArrayList<>(tuples(hf).keySet());
+        Collections.sort(values);
+        return values;
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> values = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            values.add(i);
+        }
+        return values;
+    }
+
+    private void loserAcrossFuzzyCheckpoint(boolean fullPageImages) throws Exception {
+        Database.getLogFile().setFullPageImages(fullPageImages);
+        Transaction setup = new Transaction();
+        setup.start();
+        insert(hf1, setup, 1, 4);
+        setup.commit();
+        Map<Integer, Tuple> committed = tuples(hf1);
+
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(hf1, loser, 10);
+        Database.getBufferPool().deleteTuple(loser.getId(), committed.get(2));
+        // The loser's changes reach disk, and it is still running at the checkpoint
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        insert(hf1, loser, 11);
+        Database.getBufferPool().deleteTuple(loser.getId(), committed.get(3));
+
+        Transaction winner = new Transaction();
+        winner.start();
+        insert(hf2, winner, 20);
+        winner.commit();
+
+        crash(1);
+        assertEquals(Arrays.asList(1, 2, 3), values(hf1));
+        assertEquals(Arrays.asList(20), values(hf2));
+
+        // Recovery leaves nothing to recover the next time
+        crash(1);
+        assertEquals(Arrays.asList(1, 2, 3), values(hf1));
+        assertEquals(Arrays.asList(20), values(hf2));
+    }
+
+    @Test public void loserAcrossFuzzyCheckpoint() throws Exception {
+        loserAcrossFuzzyCheckpoint(false);
+    }
+
+    @Test public void loserAcrossFuzzyCheckpointFullPageImages() throws Exception {
+        loserAcrossFuzzyCheckpoint(true);
+    }
+
+    /** A loser and a winner that changed different tuples of one page. */
+    @Test public void loserAndWinnerOnOnePage() throws Exception {
+        Transaction setup = new Transaction();
+        setup.start();
+        insert(hf1, setup, 1, 4);
+        setup.commit();
+        Map<Integer, Tuple> committed = tuples(hf1);
+
+        Transaction loser = new Transaction();
+        Transaction winner = new Transaction();
+        loser.start();
+        winner.start();
+        insert(hf1, loser, 10);
+        insert(hf1, winner, 20);
+        Database.getBufferPool().deleteTuple(loser.getId(), committed.get(2));
+        Database.getBufferPool().deleteTuple(winner.getId(), committed.get(3));
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        insert(hf1, loser, 11);
+        winner.commit();
+
+        crash(1);
+        assertEquals(1, hf1.numPages());
+        assertEquals(Arrays.asList(1, 2, 20), values(hf1));
+    }
+
+    private void undoAfterParallelRedo(boolean fullPageImages) throws Exception {
+        Database.getLogFile().setFullPageImages(fullPageImages);
+        // Several pages whose committed changes are only in the log
+        Transaction setup = new Transaction();
+        setup.start();
+        insert(hf1, setup, 0, 2000);
+        setup.commit();
+        int pages = hf1.numPages();
+        assertTrue(pages > 3);
+        Map<Integer, Tuple> committed = tuples(hf1);
+
+        // A loser that changed all of those pages, on disk
+        Transaction loser = new Transaction();
+        loser.start();
+        for (int i = 0; i < 2000; i += 400) {
+            Database.getBufferPool().deleteTuple(loser.getId(), committed.get(i));
+        }
+        insert(hf1, loser, 5000, 5010);
+        Database.getBufferPool().flushAllPages();
+
+        Transaction winner = new Transaction();
+        winner.start();
+        insert(hf2, winner, 1, 4);
+        winner.commit();
+
+        crash(4);
+        assertEquals(range(0, 2000), values(hf1));
+        assertEquals(Arrays.asList(1, 2, 3), values(hf2));
+    }
+
+    @Test public void undoAfterParallelRedo() throws Exception {
+        undoAfterParallelRedo(false);
+    }
+
+    @Test public void undoAfterParallelRedoFullPageImages() throws Exception {
+        undoAfterParallelRedo(true);
+    }
+
+    /** The same committed history recovers to the same tables on one or many redo threads. */
+    @Test public void redoThreadsAgree() throws Exception {
+        Transaction setup = new Transaction();
+        setup.start();
+        insert(hf1, setup, 0, 1500);
+        setup.commit();
+        Database.getLogFile().logCheckpoint();
+        Map<Integer, Tuple> committed = tuples(hf1);
+        Transaction delete = new Transaction();
+        delete.start();
+        for (int i = 0; i < 1500; i += 7) {
+            Database.getBufferPool().deleteTuple(delete.getId(), committed.get(i));
+        }
+        delete.commit();
+
+        List<Integer> expected = values(hf1);
+        crash(4);
+        assertEquals(expected, values(hf1));
+        crash(1);
+        assertEquals(expected, values(hf1));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Abort follows the transaction's chain of log records back from its last
+ * one: its records are undone newest first, and records other transactions
+ * wrote in between are left alone.
+ */
+public class RollbackTest {
+    private File file1;
+    private File file2;
+    private HeapFile hf1;
+    private HeapFile hf2;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file1 = File.createTempFile("rollback1", ".dat");
+        file2 = File.createTempFile("rollback2", ".dat");
+        hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
+        hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
+        Transaction setup = new Transaction();
+        setup.start();
+        insert(hf1, setup, 1, 4);
+        setup.commit();
+        Database.getBufferPool().flushAllPages();
+    }
+
+    @After public void tearDown() {
+        for (File f : new File[]{file1, file2}) {
+            f.delete();
+            new File(f.getPath() + ".fsm").delete();
+        }
+    }
+
+    private static void insert(HeapFile hf, Transaction t, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                    Utility.getHeapTuple(new int[]{i, 0}));
+        }
+    }
+
+    private static void delete(HeapFile hf, Transaction t, int value) throws Exception {
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (((IntField) tup.getField(0)).getValue() == value) {
+                Database.getBufferPool().deleteTuple(t.getId(), tup);
+                return;
+            }
+        }
+        fail("no tuple " + value);
+    }
+
+    private static List<Integer> values(HeapFile hf) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        List<Integer> values = new ArrayList<>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        t.commit();
+        Collections.sort(values);
+        return values;
+    }
+
+    // The loser logs several records for one page, each flushed to disk,
+    // while another transaction logs and commits in between
+    private void interleaved(boolean fullPageImages) throws Exception {
+        Database.getLogFile().setFullPageImages(fullPageImages);
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(hf1, loser, 10, 11);
+        Database.getBufferPool().flushAllPages();
+
+        Transaction other = new Transaction();
+        other.start();
+        insert(hf2, other, 100, 150);
+        other.commit();
+
+        delete(hf1, loser, 2);
+        Database.getBufferPool().flushAllPages();
+        insert(hf1, loser, 11, 12);
+        Database.getBufferPool().flushAllPages();
+        // The loser's last records are for another page
+        insert(hf2, loser, 200, 201);
+        Database.getBufferPool().flushAllPages();
+        delete(hf1, loser, 10);
+        // The last change is only in memory
+
+        loser.abort();
+        assertEquals(Arrays.asList(1, 2, 3), values(hf1));
+        List<Integer> committed = new ArrayList<>();
+        for (int i = 100; i < 150; i++) {
+            committed.add(i);
+        }
+        assertEquals(committed, values(hf2));
+    }
+
+    @Test public void interleavedDeltas() throws Exception {
+        interleaved(false);
+    }
+
+    @Test public void interleavedFullPageImages() throws Exception {
+        interleaved(true);
+    }
+
+    @Test public void abortAcrossTruncate() throws Exception {
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(hf1, loser, 10, 12);
+        Database.getBufferPool().flushAllPages();
+        // The loser's records are kept, and chained, in the truncated log
+        Database.getLogFile().logTruncate();
+        delete(hf1, loser, 1);
+        Database.getBufferPool().flushAllPages();
+        loser.abort();
+        assertEquals(Arrays.asList(1, 2, 3), values(hf1));
+    }
+
+    @Test public void abortWithoutChanges() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        values(hf1);
+        t.abort();
+        assertEquals(Arrays.asList(1, 2, 3), values(hf1));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RollbackTest.class);
+    }
+}
@@ -0,0 +1,117 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Transactions that change single tuples of one page: each commits or
+ * aborts only its own tuples, also when the page was written out while
+ * they were running.
+ */
+public class RowLockTest {
+    private File file;
+    private HeapFile hf;
+    private PageId page0;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        Database.getLogFile().setFullPageImages(false);
+        file = File.createTempFile("rowlock", ".dat");
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        page0 = new HeapPageId(hf.getId(), 0);
+        Transaction setup = new Transaction();
+        setup.start();
+        insert(setup, 1);
+        insert(setup, 2);
+        setup.commit();
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".fsm").delete();
+    }
+
+    private void insert(Transaction t, int value) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[]{value, 0}));
+    }
+
+    private List<Integer> values() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        List<Integer> values = new ArrayList<>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        t.commit();
+        Collections.sort(values);
+        return values;
+    }
+
+    // Abort the way the system tests do, writing everything out around the abort
+    private static void abortWithFlushes(Transaction t) throws Exception {
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logAbort(t.getId());
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().transactionComplete(t.getId(), false);
+    }
+
+    @Test public void writersShareAPage() throws Exception {
+        Transaction t1 = new Transaction();
+        Transaction t2 = new Transaction();
+        t1.start();
+        t2.start();
+        insert(t1, 3);
+        insert(t2, 4);
+        assertEquals(1, hf.numPages());
+        assertTrue(Database.getBufferPool().holdsLock(t1.getId(), page0));
+        assertTrue(Database.getBufferPool().holdsLock(t2.getId(), page0));
+
+        t2.commit();
+        t1.abort();
+        assertEquals(Arrays.asList(1, 2, 4), values());
+    }
+
+    /** An abort undoes a change that was written out before it. */
+    @Test public void abortAfterFlush() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 3);
+        abortWithFlushes(t);
+
+        Database.getBufferPool().discardPage(page0);
+        assertEquals(Arrays.asList(1, 2), values());
+    }
+
+    /** Undoing one writer's flushed tuples keeps the other writer's. */
+    @Test public void abortAfterFlushKeepsOtherWriters() throws Exception {
+        Transaction t1 = new Transaction();
+        Transaction t2 = new Transaction();
+        t1.start();
+        t2.start();
+        insert(t1, 3);
+        insert(t2, 4);
+        abortWithFlushes(t1);
+        t2.commit();
+
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().discardPage(page0);
+        assertEquals(Arrays.asList(1, 2, 4), values());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RowLockTest.class);
+    }
+}
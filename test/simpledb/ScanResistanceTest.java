@@ -0,0 +1,99 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Large sequential scans go through the BufferPool cold: they recycle
+ * their own pages instead of evicting the pages other queries use.
+ */
+public class ScanResistanceTest {
+    private static final int POOL_PAGES = 8;
+
+    private File hotFile;
+    private File bigFile;
+    private HeapFile hot;
+    private HeapFile big;
+    private BufferPool pool;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        hotFile = File.createTempFile("hot", ".dat");
+        bigFile = File.createTempFile("big", ".dat");
+        hot = createTable(hotFile, 2);
+        big = createTable(bigFile, 20);
+        pool = new BufferPool(POOL_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        for (File f : new File[]{hotFile, bigFile}) {
+            f.delete();
+            new File(f.getPath() + ".fsm").delete();
+        }
+    }
+
+    private static HeapFile createTable(File f, int pages) throws Exception {
+        HeapFile hf = Utility.openHeapFile(2, f);
+        for (int i = 0; i < pages; i++) {
+            hf.writePage(new HeapPage(new HeapPageId(hf.getId(), i), HeapPage.createEmptyPageData()));
+        }
+        return hf;
+    }
+
+    private void read(HeapFile hf, int pgNo, boolean scan) throws Exception {
+        pool.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY, scan);
+    }
+
+    private boolean cached(HeapFile hf, int pgNo) {
+        return pool.getFrameDescriptor(new HeapPageId(hf.getId(), pgNo)) != null;
+    }
+
+    @Test public void largeScan() {
+        assertTrue(pool.isLargeScan(big.numPages()));
+        assertFalse(pool.isLargeScan(hot.numPages()));
+    }
+
+    @Test public void scanKeepsWorkingSet() throws Exception {
+        read(hot, 0, false);
+        read(hot, 1, false);
+        for (int i = 0; i < big.numPages(); i++) {
+            read(big, i, true);
+        }
+        assertTrue(cached(hot, 0));
+        assertTrue(cached(hot, 1));
+        assertEquals(POOL_PAGES, pool.getFrameDescriptors().size());
+
+        // Only the working set hits
+        long misses = pool.getMissCount();
+        read(hot, 0, false);
+        read(hot, 1, false);
+        assertEquals(misses, pool.getMissCount());
+    }
+
+    @Test public void scanPageUsedOtherwiseLeavesColdSet() throws Exception {
+        for (int i = 0; i < big.numPages(); i++) {
+            read(big, i, true);
+        }
+        int last = big.numPages() - 1;
+        read(big, last, false);
+        // A second scan recycles the cold pages, not the one read normally
+        for (int i = 0; i < POOL_PAGES; i++) {
+            read(big, i, true);
+        }
+        assertTrue(cached(big, last));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ScanResistanceTest.class);
+    }
+}
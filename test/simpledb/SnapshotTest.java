@@ -0,0 +1,259 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Snapshot transactions read the database as of the last commit before
+ * they started, from the versions kept by the VersionStore, and the
+ * versions are reclaimed once no snapshot can see them.
+ */
+public class SnapshotTest {
+    private File file;
+    private HeapFile hf;
+    private VersionStore versions;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("snapshot", ".dat");
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        versions = Database.getBufferPool().getVersionStore();
+        Transaction setup = new Transaction();
+        setup.start();
+        for (int i = 1; i <= 3; i++) {
+            insert(setup, i);
+        }
+        setup.commit();
+    }
+
+    @After public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".fsm").delete();
+    }
+
+    private void insert(Transaction t, int value) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[]{value, 0}));
+    }
+
+    private void delete(Transaction t, int value) throws Exception {
+        // Found by a snapshot, which does not wait for t's locks
+        Transaction reader = new Transaction();
+        reader.startSnapshot();
+        Tuple victim = null;
+        DbFileIterator it = hf.iterator(reader.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (((IntField) tup.getField(0)).getValue() == value) {
+                victim = tup;
+            }
+        }
+        it.close();
+        reader.commit();
+        Database.getBufferPool().deleteTuple(t.getId(), victim);
+    }
+
+    private List<Integer> values(Transaction t) throws Exception {
+        List<Integer> values = new ArrayList<>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        Collections.sort(values);
+        return values;
+    }
+
+    // The table as of the last commit, read by a new snapshot
+    private List<Integer> snapshotValues() throws Exception {
+        Transaction snap = new Transaction();
+        snap.startSnapshot();
+        List<Integer> values = values(snap);
+        snap.commit();
+        return values;
+    }
+
+    @Test public void snapshotDoesNotSeeLaterCommits() throws Exception {
+        Transaction snap = new Transaction();
+        snap.startSnapshot();
+        assertEquals(Arrays.asList(1, 2, 3), values(snap));
+
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 4);
+        delete(writer, 1);
+        writer.commit();
+
+        assertEquals(Arrays.asList(1, 2, 3), values(snap));
+        snap.commit();
+        assertEquals(Arrays.asList(2, 3, 4), snapshotValues());
+    }
+
+    @Test public void snapshotDoesNotSeeUncommittedChanges() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 4);
+
+        // Snapshots take no locks, so they do not wait for the writer
+        assertEquals(Arrays.asList(1, 2, 3), snapshotValues());
+        writer.commit();
+        assertEquals(Arrays.asList(1, 2, 3, 4), snapshotValues());
+    }
+
+    /** A page written out before its transaction commits is still published by the commit. */
+    private void pageFlushedBeforeCommit(boolean fullPageImages) throws Exception {
+        Database.getLogFile().setFullPageImages(fullPageImages);
+        Transaction old = new Transaction();
+        old.startSnapshot();
+        assertEquals(Arrays.asList(1, 2, 3), values(old));
+
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 4);
+        Database.getBufferPool().flushAllPages();
+        writer.commit();
+
+        assertEquals(Arrays.asList(1, 2, 3, 4), snapshotValues());
+        assertEquals(Arrays.asList(1, 2, 3), values(old));
+
+        // The next transaction's before image is the page as the writer committed it
+        Transaction next = new Transaction();
+        next.start();
+        insert(next, 5);
+        assertEquals(Arrays.asList(1, 2, 3, 4), snapshotValues());
+        next.abort();
+        assertEquals(Arrays.asList(1, 2, 3, 4), snapshotValues());
+        old.commit();
+    }
+
+    @Test public void pageFlushedBeforeCommit() throws Exception {
+        pageFlushedBeforeCommit(false);
+    }
+
+    /** With full page images the writer locks the whole page X, so the flush leaves it clean. */
+    @Test public void pageFlushedBeforeCommitFullPageImages() throws Exception {
+        pageFlushedBeforeCommit(true);
+    }
+
+    /** A page written out before its transaction commits is not evicted and read back as committed. */
+    @Test public void pageFlushedBeforeCommitStaysCached() throws Exception {
+        Database.getLogFile().setFullPageImages(true);
+        Database.getBufferPool().flushAllPages();
+        BufferPool pool = Database.resetBufferPool(3);
+        File otherFile = File.createTempFile("snapshot", ".dat");
+        try {
+            HeapFile other = Utility.createEmptyHeapFile(otherFile.getAbsolutePath(), 2);
+            Transaction load = new Transaction();
+            load.start();
+            List<Tuple> tuples = new ArrayList<>();
+            for (int i = 0; i < 5 * other.tuplesPerPage(); i++) {
+                tuples.add(Utility.getHeapTuple(new int[]{i, 0}));
+            }
+            pool.bulkInsert(load.getId(), other.getId(), tuples);
+            load.commit();
+
+            Transaction writer = new Transaction();
+            writer.start();
+            insert(writer, 99);
+            pool.flushAllPages();
+
+            // Reading more pages than the pool holds evicts all it can
+            Transaction reader = new Transaction();
+            reader.start();
+            for (int i = 0; i < other.numPages(); i++) {
+                pool.getPage(reader.getId(), new HeapPageId(other.getId(), i), Permissions.READ_ONLY);
+            }
+            reader.commit();
+
+            assertEquals(Arrays.asList(1, 2, 3), snapshotValues());
+            writer.commit();
+            assertEquals(Arrays.asList(1, 2, 3, 99), snapshotValues());
+        } finally {
+            otherFile.delete();
+            new File(otherFile.getPath() + ".fsm").delete();
+        }
+    }
+
+    @Test(expected = DbException.class)
+    public void snapshotCannotWrite() throws Exception {
+        Transaction snap = new Transaction();
+        snap.startSnapshot();
+        try {
+            Database.getBufferPool().getPage(snap.getId(), new HeapPageId(hf.getId(), 0),
+                    Permissions.READ_WRITE);
+        } finally {
+            snap.commit();
+        }
+    }
+
+    @Test public void vacuumKeepsVersionsSnapshotsNeed() throws Exception {
+        Transaction snap = new Transaction();
+        snap.startSnapshot();
+        values(snap);
+
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 4);
+        writer.commit();
+
+        assertEquals(1, versions.size());
+        assertEquals(0, versions.vacuum());
+        assertEquals(Arrays.asList(1, 2, 3), values(snap));
+
+        // Ending the last snapshot reclaims the version
+        snap.commit();
+        assertEquals(0, versions.size());
+    }
+
+    @Test public void vacuumDropsVersionsOnlyOlderSnapshotsNeed() throws Exception {
+        Transaction first = new Transaction();
+        first.startSnapshot();
+
+        Transaction w1 = new Transaction();
+        w1.start();
+        insert(w1, 4);
+        w1.commit();
+
+        Transaction second = new Transaction();
+        second.startSnapshot();
+
+        Transaction w2 = new Transaction();
+        w2.start();
+        insert(w2, 5);
+        w2.commit();
+
+        assertEquals(2, versions.size());
+        assertEquals(Arrays.asList(1, 2, 3), values(first));
+        assertEquals(Arrays.asList(1, 2, 3, 4), values(second));
+
+        // Only the second snapshot remains, and it cannot see the version w1 replaced
+        first.commit();
+        assertEquals(1, versions.size());
+        assertEquals(Arrays.asList(1, 2, 3, 4), values(second));
+        second.commit();
+        assertEquals(0, versions.size());
+    }
+
+    @Test public void noVersionsWithoutSnapshots() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 4);
+        writer.commit();
+        assertEquals(0, versions.size());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}